@@ -0,0 +1,36 @@
+package com.template.benchmarks;
+
+import com.template.contracts.PurchaseOrderContract;
+import net.corda.core.transactions.LedgerTransaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PurchaseOrderContract#verify} on synthetic purchases paid in a growing number of outputs,
+ * with and without a coupon.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ContractVerifyBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    public int payments;
+
+    @Param({"0", "20"})
+    public int discount;
+
+    private final PurchaseOrderContract contract = new PurchaseOrderContract();
+    private LedgerTransaction transaction;
+
+    @Setup
+    public void setup() throws Exception {
+        transaction = Fixtures.purchase(7000, discount, payments);
+    }
+
+    @Benchmark
+    public LedgerTransaction verifyPurchase() {
+        contract.verify(transaction);
+        return transaction;
+    }
+}
@@ -0,0 +1,100 @@
+package com.template.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import com.r3.corda.lib.tokens.contracts.FungibleTokenContract;
+import com.r3.corda.lib.tokens.contracts.NonFungibleTokenContract;
+import com.r3.corda.lib.tokens.contracts.commands.IssueTokenCommand;
+import com.r3.corda.lib.tokens.contracts.commands.MoveTokenCommand;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import com.r3.corda.lib.tokens.contracts.types.TokenType;
+import com.r3.corda.lib.tokens.money.FiatCurrency;
+import com.template.contracts.PurchaseOrderContract;
+import com.template.states.CouponToken;
+import com.template.states.CouponTokenType;
+import com.template.states.PurchaseOrderState;
+import net.corda.core.contracts.*;
+import net.corda.core.crypto.Crypto;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.testing.node.MockServices;
+
+import java.time.Instant;
+
+/**
+ * Parties, states and synthetic transactions shared by the benchmarks.
+ */
+final class Fixtures {
+    private Fixtures() {}
+
+    static final Party NOTARY = party("Notary");
+    static final Party BANK = party("Bank");
+    static final Party SHOP = party("Shop");
+    static final Party BUYER = party("Buyer");
+
+    static final TokenType JPY = FiatCurrency.Companion.getInstance("JPY");
+    static final IssuedTokenType ISSUED_JPY = new IssuedTokenType(BANK, JPY);
+    static final Instant ORDERED_AT = Instant.parse("2020-01-01T00:00:00Z");
+
+    private static final MockServices SERVICES = new MockServices(
+            ImmutableList.of("com.r3.corda.lib.tokens.contracts", "com.template.contracts"));
+
+    static Party party(String organisation) {
+        return new Party(new CordaX500Name(organisation, "Tokyo", "JP"), Crypto.generateKeyPair().getPublic());
+    }
+
+    static FungibleToken cash(long quantity, Party holder) {
+        return new FungibleToken(new Amount<>(quantity, ISSUED_JPY), holder, null);
+    }
+
+    static CouponToken coupon(String itemId, int discount) {
+        return new CouponToken(
+                new IssuedTokenType(SHOP, new CouponTokenType(itemId, discount)),
+                BUYER,
+                new UniqueIdentifier(),
+                null);
+    }
+
+    /**
+     * A sale of {@code price} paid to the shop in {@code payments} outputs, with a matching coupon
+     * input when {@code discount} is positive. The inputs come from an issuance recorded in {@link #SERVICES},
+     * from which the transaction is resolved as a node would resolve it.
+     */
+    static LedgerTransaction purchase(long price, int discount, int payments)
+            throws TransactionResolutionException, AttachmentResolutionException {
+        long amountDue = discount > 0 ? PurchaseOrderContract.discountedPrice(price, discount) : price;
+
+        CouponToken coupon = coupon("item123", discount);
+        TransactionBuilder issuance = new TransactionBuilder(NOTARY)
+                .addOutputState(cash(amountDue, BUYER), FungibleTokenContract.class.getName())
+                .addCommand(new IssueTokenCommand(ISSUED_JPY, ImmutableList.of(0)), BANK.getOwningKey());
+        if (discount > 0) {
+            issuance.addOutputState(coupon, NonFungibleTokenContract.class.getName())
+                    .addCommand(new IssueTokenCommand(coupon.getIssuedTokenType(), ImmutableList.of(1)), SHOP.getOwningKey());
+        }
+        SignedTransaction issued = SERVICES.signInitialTransaction(issuance);
+        SERVICES.recordTransactions(issued);
+
+        TransactionBuilder transactionBuilder = new TransactionBuilder(NOTARY);
+        for (int i = 0; i < issued.getTx().getOutputs().size(); i++) {
+            transactionBuilder.addInputState(issued.getTx().outRef(i));
+        }
+
+        transactionBuilder.addOutputState(new PurchaseOrderState(SHOP, BUYER, "item123", price, discount, ORDERED_AT), PurchaseOrderContract.ID);
+        for (int i = 0; i < payments; i++) {
+            long quantity = amountDue / payments + (i < amountDue % payments ? 1 : 0);
+            transactionBuilder.addOutputState(cash(quantity, SHOP), FungibleTokenContract.class.getName());
+        }
+
+        transactionBuilder
+                .addCommand(new PurchaseOrderContract.Commands.Purchase(price, JPY), SHOP.getOwningKey(), BUYER.getOwningKey())
+                .addCommand(new MoveTokenCommand(ISSUED_JPY, ImmutableList.of(0), ImmutableList.of()), BUYER.getOwningKey())
+                // A purchase redeeming a coupon needs a bounded time window holding the order time
+                .setTimeWindow(TimeWindow.between(ORDERED_AT.minusSeconds(30), ORDERED_AT.plusSeconds(30)));
+
+        return transactionBuilder.toLedgerTransaction(SERVICES);
+    }
+}
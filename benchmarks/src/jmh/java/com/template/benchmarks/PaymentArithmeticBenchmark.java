@@ -0,0 +1,43 @@
+package com.template.benchmarks;
+
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.template.contracts.PurchaseOrderContract;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The discount and payment arithmetic shared by the buyer flow and {@link PurchaseOrderContract}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PaymentArithmeticBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    public int outputs;
+
+    private List<FungibleToken> tokens;
+    private long price = 7000;
+    private int discount = 20;
+
+    @Setup
+    public void setup() {
+        tokens = new ArrayList<>();
+        for (int i = 0; i < outputs; i++) {
+            // Alternate payment and change outputs, as a sale paid from several cash states would have
+            tokens.add(Fixtures.cash(100, i % 2 == 0 ? Fixtures.SHOP : Fixtures.BUYER));
+        }
+    }
+
+    @Benchmark
+    public long discountedPrice() {
+        return PurchaseOrderContract.discountedPrice(price, discount);
+    }
+
+    @Benchmark
+    public long amountPaidTo() {
+        return PurchaseOrderContract.amountPaidTo(tokens, Fixtures.SHOP, Fixtures.JPY);
+    }
+}
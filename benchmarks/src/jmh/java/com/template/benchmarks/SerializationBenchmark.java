@@ -0,0 +1,79 @@
+package com.template.benchmarks;
+
+import com.template.states.CouponToken;
+import com.template.states.CouponTokenType;
+import com.template.states.PurchaseOrderState;
+import net.corda.core.serialization.SerializationContext;
+import net.corda.core.serialization.SerializationFactory;
+import net.corda.core.serialization.SerializedBytes;
+import net.corda.core.serialization.internal.SerializationEnvironment;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static net.corda.testing.internal.InternalSerializationTestHelpersKt.createTestSerializationEnv;
+
+/**
+ * AMQP serialization and deserialization, with the peer-to-peer context, of the states and token types sent
+ * between nodes in a sale.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializationBenchmark {
+    private SerializationFactory factory;
+    private SerializationContext context;
+
+    private CouponTokenType couponTokenType;
+    private PurchaseOrderState purchaseOrder;
+    private CouponToken coupon;
+
+    private SerializedBytes<CouponTokenType> couponTokenTypeBytes;
+    private SerializedBytes<PurchaseOrderState> purchaseOrderBytes;
+    private SerializedBytes<CouponToken> couponBytes;
+
+    @Setup
+    public void setup() {
+        SerializationEnvironment environment = createTestSerializationEnv();
+        factory = environment.getSerializationFactory();
+        context = environment.getP2pContext();
+
+        couponTokenType = new CouponTokenType("item123", 20);
+        purchaseOrder = new PurchaseOrderState(Fixtures.SHOP, Fixtures.BUYER, "item123", 700, 20, Fixtures.ORDERED_AT);
+        coupon = Fixtures.coupon("item123", 20);
+
+        couponTokenTypeBytes = factory.serialize(couponTokenType, context);
+        purchaseOrderBytes = factory.serialize(purchaseOrder, context);
+        couponBytes = factory.serialize(coupon, context);
+    }
+
+    @Benchmark
+    public SerializedBytes<CouponTokenType> serializeCouponTokenType() {
+        return factory.serialize(couponTokenType, context);
+    }
+
+    @Benchmark
+    public CouponTokenType deserializeCouponTokenType() {
+        return factory.deserialize(couponTokenTypeBytes, CouponTokenType.class, context);
+    }
+
+    @Benchmark
+    public SerializedBytes<PurchaseOrderState> serializePurchaseOrderState() {
+        return factory.serialize(purchaseOrder, context);
+    }
+
+    @Benchmark
+    public PurchaseOrderState deserializePurchaseOrderState() {
+        return factory.deserialize(purchaseOrderBytes, PurchaseOrderState.class, context);
+    }
+
+    @Benchmark
+    public SerializedBytes<CouponToken> serializeNonFungibleToken() {
+        return factory.serialize(coupon, context);
+    }
+
+    @Benchmark
+    public CouponToken deserializeNonFungibleToken() {
+        return factory.deserialize(couponBytes, CouponToken.class, context);
+    }
+}
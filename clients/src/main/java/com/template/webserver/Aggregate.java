@@ -0,0 +1,24 @@
+package com.template.webserver;
+
+import java.util.Map;
+
+/**
+ * A result merged across nodes, returned with each node's part of it and the nodes that failed to answer.
+ */
+public class Aggregate<K, V> {
+    private final Map<K, V> totals;
+    private final NodeConnections.FanOut<Map<K, V>> nodes;
+
+    Aggregate(Map<K, V> totals, NodeConnections.FanOut<Map<K, V>> nodes) {
+        this.totals = totals;
+        this.nodes = nodes;
+    }
+
+    public Map<K, V> getTotals() { return totals; }
+
+    public Map<String, Map<K, V>> getByNode() { return nodes.getResults(); }
+
+    public Map<String, String> getErrors() { return nodes.getErrors(); }
+
+    public long getElapsedMillis() { return nodes.getElapsedMillis(); }
+}
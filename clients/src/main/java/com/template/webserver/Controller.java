@@ -1,27 +1,401 @@
 package com.template.webserver;
 
-import net.corda.core.messaging.CordaRPCOps;
+import com.google.common.collect.ImmutableList;
+import com.template.flows.BuyerSellerFlow;
+import com.template.flows.CashConsolidationFlow;
+import com.template.flows.CouponExpiryFlow;
+import com.template.flows.CouponFlow;
+import com.template.flows.IssueCash;
+import com.template.flows.PurchaseOrderQueryFlow;
+import com.template.flows.ReportFlow;
+import com.template.flows.SalesRollupFlow;
+import com.template.flows.StateQueryFlow;
+import com.template.flows.WalletShapingFlow;
+import com.template.schemas.CouponSchemaV1;
+import com.template.states.CouponToken;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.FlowHandle;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.QueryCriteria;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.web.bind.annotation.GetMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
 /**
  * Define your API endpoints here.
+ *
+ * Flow endpoints never block a request thread on the ledger. By default the response completes
+ * asynchronously when the flow ends. With {@code async=true} they answer {@code 202 Accepted} at once,
+ * and the flow's outcome is polled from {@code /flows/{runId}}.
+ *
+ * Node specific endpoints are also served under {@code /nodes/{node}}, to route them to a node named in
+ * {@link NodeConnections}. Without that prefix they go to the default node. Endpoints under {@code /aggregate}
+ * query every node in parallel and merge the results.
  */
 @RestController
 @RequestMapping("/") // The paths for HTTP requests are relative to this base path.
 public class Controller {
-    private final CordaRPCOps proxy;
+    private final NodeConnections nodes;
+    private final FlowRegistry flows;
+    private final CouponCache coupons;
     private final static Logger logger = LoggerFactory.getLogger(Controller.class);
 
-    public Controller(NodeRPCConnection rpc) {
-        this.proxy = rpc.proxy;
+    public Controller(NodeConnections nodes, FlowRegistry flows, CouponCache coupons) {
+        this.nodes = nodes;
+        this.flows = flows;
+        this.coupons = coupons;
     }
 
     @GetMapping(value = "/templateendpoint", produces = "text/plain")
     private String templateendpoint() {
         return "Define an endpoint here.";
     }
-}
\ No newline at end of file
+
+    @GetMapping(value = "/nodes", produces = "application/json")
+    public List<String> nodes() {
+        return nodes.getAll().stream().map(NodeRPCConnection::getName).collect(Collectors.toList());
+    }
+
+    @PostMapping(value = {"/issue-cash", "/nodes/{node}/issue-cash"}, produces = "application/json")
+    public CompletableFuture<ResponseEntity<FlowStatus>> issueCash(
+            @PathVariable(required = false) String node,
+            @RequestParam long amount,
+            @RequestParam String to,
+            @RequestParam(defaultValue = "false") boolean async) {
+        NodeRPCConnection rpc = nodes.get(node);
+        return respond(rpc, "IssueCash", rpc.proxy.startFlowDynamic(IssueCash.class, amount, party(rpc, to)), async);
+    }
+
+    @PostMapping(value = {"/issue-coupon", "/nodes/{node}/issue-coupon"}, produces = "application/json")
+    public CompletableFuture<ResponseEntity<FlowStatus>> issueCoupon(
+            @PathVariable(required = false) String node,
+            @RequestParam String to,
+            @RequestParam String itemId,
+            @RequestParam int discount,
+            @RequestParam(required = false) String expiresAt,
+            @RequestParam(defaultValue = "false") boolean async) {
+        NodeRPCConnection rpc = nodes.get(node);
+        return respond(rpc, "IssueCoupon", rpc.proxy.startFlowDynamic(CouponFlow.IssueCoupon.class,
+                party(rpc, to), itemId, discount, expiresAt != null ? instant(expiresAt) : null), async);
+    }
+
+    /**
+     * Redeems the node's expired coupons now rather than waiting for its off-peak sweep.
+     */
+    @PostMapping(value = {"/sweep-expired-coupons", "/nodes/{node}/sweep-expired-coupons"}, produces = "application/json")
+    public CompletableFuture<ResponseEntity<FlowStatus>> sweepExpiredCoupons(
+            @PathVariable(required = false) String node,
+            @RequestParam(required = false) Integer batchSize,
+            @RequestParam(required = false) Integer maxBatches,
+            @RequestParam(defaultValue = "false") boolean async) {
+        NodeRPCConnection rpc = nodes.get(node);
+        return respond(rpc, "SweepExpiredCoupons",
+                rpc.proxy.startFlowDynamic(CouponExpiryFlow.SweepExpiredCoupons.class, batchSize, maxBatches), async);
+    }
+
+    /**
+     * Merges the node's small cash tokens from each issuer past the threshold into a few large ones.
+     */
+    @PostMapping(value = {"/consolidate-cash", "/nodes/{node}/consolidate-cash"}, produces = "application/json")
+    public CompletableFuture<ResponseEntity<FlowStatus>> consolidateCash(
+            @PathVariable(required = false) String node,
+            @RequestParam(defaultValue = "JPY") String currency,
+            @RequestParam(required = false) Integer threshold,
+            @RequestParam(required = false) Integer maxInputs,
+            @RequestParam(defaultValue = "false") boolean async) {
+        NodeRPCConnection rpc = nodes.get(node);
+        return respond(rpc, "ConsolidateCash",
+                rpc.proxy.startFlowDynamic(CashConsolidationFlow.ConsolidateCash.class, currency, threshold, maxInputs), async);
+    }
+
+    /**
+     * Splits the node's cash into tokens of one denomination, so its purchases can run in parallel.
+     */
+    @PostMapping(value = {"/shape-wallet", "/nodes/{node}/shape-wallet"}, produces = "application/json")
+    public CompletableFuture<ResponseEntity<FlowStatus>> shapeWallet(
+            @PathVariable(required = false) String node,
+            @RequestParam(defaultValue = "JPY") String currency,
+            @RequestParam(required = false) Long denomination,
+            @RequestParam(required = false) Integer count,
+            @RequestParam(defaultValue = "false") boolean async) {
+        NodeRPCConnection rpc = nodes.get(node);
+        return respond(rpc, "ShapeWallet",
+                rpc.proxy.startFlowDynamic(WalletShapingFlow.ShapeWallet.class, currency, denomination, count), async);
+    }
+
+    @PostMapping(value = {"/sell", "/nodes/{node}/sell"}, produces = "application/json")
+    public CompletableFuture<ResponseEntity<FlowStatus>> sell(
+            @PathVariable(required = false) String node,
+            @RequestParam String buyer,
+            @RequestParam String itemId,
+            @RequestParam int price,
+            @RequestParam(defaultValue = "false") boolean async) {
+        NodeRPCConnection rpc = nodes.get(node);
+        return respond(rpc, "Sell", rpc.proxy.startFlowDynamic(BuyerSellerFlow.Seller.class, party(rpc, buyer), itemId, price), async);
+    }
+
+    @PostMapping(value = {"/redeem", "/nodes/{node}/redeem"}, produces = "application/json")
+    public CompletableFuture<ResponseEntity<FlowStatus>> redeem(
+            @PathVariable(required = false) String node,
+            @RequestParam String issuer,
+            @RequestParam(defaultValue = "false") boolean async) {
+        NodeRPCConnection rpc = nodes.get(node);
+        return respond(rpc, "RedeemCoupon", rpc.proxy.startFlowDynamic(CouponFlow.RedeemCoupon.class, party(rpc, issuer)), async);
+    }
+
+    @GetMapping(value = "/flows/{runId}", produces = "application/json")
+    public ResponseEntity<FlowStatus> flowStatus(@PathVariable String runId) {
+        FlowStatus status = flows.get(runId);
+        return status != null ?
+                ResponseEntity.ok(status) :
+                ResponseEntity.notFound().build();
+    }
+
+    /**
+     * Checks a coupon at the point of sale, from the webserver's cache where possible.
+     */
+    @GetMapping(value = {"/coupons/{linearId}/validation", "/nodes/{node}/coupons/{linearId}/validation"}, produces = "application/json")
+    public CouponValidation validateCoupon(
+            @PathVariable(required = false) String node,
+            @PathVariable String linearId,
+            @RequestParam String holder,
+            @RequestParam String itemId) {
+        return coupons.validate(nodes.get(node), UUID.fromString(linearId), CordaX500Name.parse(holder).toString(), itemId);
+    }
+
+    /**
+     * Returns one page of a kind of state, such as {@code /states/coupon?page=2&size=100&holder=O=PartyA,L=Tokyo,C=JP}.
+     */
+    @GetMapping(value = {"/states/{kind}", "/nodes/{node}/states/{kind}"}, produces = "application/json")
+    public CompletableFuture<StateQueryFlow.StatePage> states(
+            @PathVariable(required = false) String node,
+            @PathVariable String kind,
+            @RequestParam(defaultValue = "1") int page,
+            @RequestParam(defaultValue = "100") int size,
+            @RequestParam(required = false) String issuer,
+            @RequestParam(required = false) String holder,
+            @RequestParam(required = false) String itemId) {
+        NodeRPCConnection rpc = nodes.get(node);
+        StateQueryFlow.Filters filters = new StateQueryFlow.Filters(
+                issuer != null ? party(rpc, issuer) : null,
+                holder != null ? party(rpc, holder) : null,
+                itemId);
+        return rpc.proxy.startFlowDynamic(StateQueryFlow.QueryStates.class,
+                StateQueryFlow.Kind.valueOf(kind.toUpperCase().replace('-', '_')), page, size, filters)
+                .getReturnValue().toCompletableFuture();
+    }
+
+    @GetMapping(value = {"/states", "/nodes/{node}/states"}, produces = "application/json")
+    public CompletableFuture<Map<StateQueryFlow.Kind, Long>> stateCounts(@PathVariable(required = false) String node) {
+        return nodes.get(node).proxy.startFlowDynamic(StateQueryFlow.CountStates.class).getReturnValue().toCompletableFuture();
+    }
+
+    /**
+     * Returns one page of purchase orders, newest first, such as {@code /orders?itemId=item123&from=2020-01-01T00:00:00Z}.
+     * Orders are matched from {@code from} inclusive until {@code until} exclusive.
+     */
+    @GetMapping(value = {"/orders", "/nodes/{node}/orders"}, produces = "application/json")
+    public CompletableFuture<StateQueryFlow.StatePage> orders(
+            @PathVariable(required = false) String node,
+            @RequestParam(defaultValue = "1") int page,
+            @RequestParam(defaultValue = "100") int size,
+            @RequestParam(required = false) String seller,
+            @RequestParam(required = false) String buyer,
+            @RequestParam(required = false) String itemId,
+            @RequestParam(required = false) String from,
+            @RequestParam(required = false) String until) {
+        NodeRPCConnection rpc = nodes.get(node);
+        return rpc.proxy.startFlowDynamic(PurchaseOrderQueryFlow.FindOrders.class, orderFilters(rpc, seller, buyer, itemId, from, until), page, size)
+                .getReturnValue().toCompletableFuture();
+    }
+
+    /**
+     * Writes the order rows of purchase orders the node recorded before the purchase order schema was added,
+     * so {@code /orders} and the reports find them.
+     */
+    @PostMapping(value = {"/orders/backfill", "/nodes/{node}/orders/backfill"}, produces = "application/json")
+    public CompletableFuture<ResponseEntity<FlowStatus>> backfillOrders(
+            @PathVariable(required = false) String node,
+            @RequestParam(defaultValue = "false") boolean async) {
+        NodeRPCConnection rpc = nodes.get(node);
+        return respond(rpc, "BackfillOrders", rpc.proxy.startFlowDynamic(PurchaseOrderQueryFlow.BackfillOrders.class), async);
+    }
+
+    /**
+     * Sums the node's unconsumed tokens by token type and issuer, held by {@code holder} if given.
+     */
+    @GetMapping(value = {"/reports/balances", "/nodes/{node}/reports/balances"}, produces = "application/json")
+    public CompletableFuture<List<ReportFlow.BalanceRow>> balances(
+            @PathVariable(required = false) String node,
+            @RequestParam(required = false) String holder) {
+        NodeRPCConnection rpc = nodes.get(node);
+        return rpc.proxy.startFlowDynamic(ReportFlow.Balances.class, holder != null ? party(rpc, holder) : null)
+                .getReturnValue().toCompletableFuture();
+    }
+
+    /**
+     * Counts and sums the purchase orders by seller and item, filtered as {@code /orders} is.
+     */
+    @GetMapping(value = {"/reports/sales", "/nodes/{node}/reports/sales"}, produces = "application/json")
+    public CompletableFuture<List<ReportFlow.SalesRow>> sales(
+            @PathVariable(required = false) String node,
+            @RequestParam(required = false) String seller,
+            @RequestParam(required = false) String buyer,
+            @RequestParam(required = false) String itemId,
+            @RequestParam(required = false) String from,
+            @RequestParam(required = false) String until) {
+        NodeRPCConnection rpc = nodes.get(node);
+        return rpc.proxy.startFlowDynamic(ReportFlow.Sales.class, orderFilters(rpc, seller, buyer, itemId, from, until))
+                .getReturnValue().toCompletableFuture();
+    }
+
+    /**
+     * Reads the node's sales rollups, such as {@code /reports/rollups?bucket=hour&itemId=item123&from=2020-01-01T00:00:00Z}.
+     */
+    @GetMapping(value = {"/reports/rollups", "/nodes/{node}/reports/rollups"}, produces = "application/json")
+    public CompletableFuture<List<SalesRollupFlow.Rollup>> rollups(
+            @PathVariable(required = false) String node,
+            @RequestParam(defaultValue = "hour") String bucket,
+            @RequestParam(required = false) String seller,
+            @RequestParam(required = false) String itemId,
+            @RequestParam(required = false) String from,
+            @RequestParam(required = false) String until) {
+        NodeRPCConnection rpc = nodes.get(node);
+        return rpc.proxy.startFlowDynamic(SalesRollupFlow.QueryRollups.class,
+                SalesRollupFlow.BucketSize.valueOf(bucket.toUpperCase()),
+                seller != null ? party(rpc, seller) : null,
+                itemId,
+                from != null ? instant(from) : null,
+                until != null ? instant(until) : null)
+                .getReturnValue().toCompletableFuture();
+    }
+
+    /**
+     * Recomputes the node's sales rollups from its vault.
+     */
+    @PostMapping(value = {"/reports/rollups/rebuild", "/nodes/{node}/reports/rollups/rebuild"}, produces = "application/json")
+    public CompletableFuture<ResponseEntity<FlowStatus>> rebuildRollups(
+            @PathVariable(required = false) String node,
+            @RequestParam(defaultValue = "false") boolean async) {
+        NodeRPCConnection rpc = nodes.get(node);
+        return respond(rpc, "RebuildRollups", rpc.proxy.startFlowDynamic(SalesRollupFlow.RebuildRollups.class), async);
+    }
+
+    /**
+     * Counts the unconsumed coupons in every node's vault by issuer, querying the nodes in parallel.
+     */
+    @GetMapping(value = "/aggregate/coupons-outstanding", produces = "application/json")
+    public Aggregate<String, CouponsOutstanding> couponsOutstanding() {
+        NodeConnections.FanOut<Map<String, CouponsOutstanding>> byNode = nodes.fanOut(Controller::couponsOutstanding);
+
+        Map<String, CouponsOutstanding> totals = new TreeMap<>();
+        byNode.getResults().values().forEach(issuers ->
+                issuers.forEach((issuer, outstanding) -> totals.merge(issuer, outstanding, CouponsOutstanding::add)));
+        return new Aggregate<>(totals, byNode);
+    }
+
+    @GetMapping(value = "/rpc-pool", produces = "application/json")
+    public Map<String, RPCPoolMetrics> rpcPool() {
+        Map<String, RPCPoolMetrics> pools = new LinkedHashMap<>();
+        nodes.getAll().forEach(node -> pools.put(node.getName(), node.getPoolMetrics()));
+        return pools;
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<String> badRequest(IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(e.getMessage());
+    }
+
+    private CompletableFuture<ResponseEntity<FlowStatus>> respond(NodeRPCConnection rpc, String flowName, FlowHandle<?> handle, boolean async) {
+        CompletableFuture<FlowStatus> finished = flows.track(rpc.getName(), flowName, handle);
+
+        if (async) {
+            FlowStatus status = flows.get(handle.getId().getUuid().toString());
+            return CompletableFuture.completedFuture(ResponseEntity
+                    .accepted()
+                    .location(URI.create("/flows/" + status.getRunId()))
+                    .body(status));
+        }
+
+        return finished.thenApply(status -> {
+            if (status.getState() == FlowStatus.State.FAILED) {
+                logger.warn("{} {} on {} failed: {}", flowName, status.getRunId(), rpc.getName(), status.getError());
+                return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(status);
+            }
+            return ResponseEntity.ok(status);
+        });
+    }
+
+    /**
+     * Sums the discounts and counts the coupons by issuer, two grouped queries whatever the number of issuers.
+     */
+    private static Map<String, CouponsOutstanding> couponsOutstanding(NodeRPCConnection node) {
+        Field issuer = couponField("issuer");
+
+        List<Object> discounts = node.proxy.vaultQueryByCriteria(
+                new QueryCriteria.VaultCustomQueryCriteria(Builder.sum(couponField("discount"), ImmutableList.of(issuer))),
+                CouponToken.class).getOtherResults();
+        List<Object> counts = node.proxy.vaultQueryByCriteria(
+                new QueryCriteria.VaultCustomQueryCriteria(ReportFlow.count(issuer, ImmutableList.of(issuer))),
+                CouponToken.class).getOtherResults();
+
+        // Pairs of aggregate then issuer
+        Map<String, Long> countByIssuer = new HashMap<>();
+        for (int i = 0; i + 1 < counts.size(); i += 2) {
+            countByIssuer.put((String) counts.get(i + 1), ((Number) counts.get(i)).longValue());
+        }
+        Map<String, CouponsOutstanding> outstanding = new TreeMap<>();
+        for (int i = 0; i + 1 < discounts.size(); i += 2) {
+            String name = (String) discounts.get(i + 1);
+            outstanding.put(name, new CouponsOutstanding(
+                    countByIssuer.getOrDefault(name, 0L),
+                    ((Number) discounts.get(i)).longValue()));
+        }
+        return outstanding;
+    }
+
+    private static Field couponField(String name) {
+        try {
+            return CouponSchemaV1.PersistentCoupon.class.getDeclaredField(name);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Party party(NodeRPCConnection rpc, String name) {
+        Party party = rpc.proxy.wellKnownPartyFromX500Name(CordaX500Name.parse(name));
+        if (party == null) {
+            throw new IllegalArgumentException("Unknown party " + name);
+        }
+        return party;
+    }
+
+    private static PurchaseOrderQueryFlow.OrderFilters orderFilters(NodeRPCConnection rpc, String seller, String buyer,
+                                                                    String itemId, String from, String until) {
+        return new PurchaseOrderQueryFlow.OrderFilters(
+                seller != null ? party(rpc, seller) : null,
+                buyer != null ? party(rpc, buyer) : null,
+                itemId,
+                from != null ? instant(from) : null,
+                until != null ? instant(until) : null);
+    }
+
+    private static Instant instant(String text) {
+        try {
+            return Instant.parse(text);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Expected an ISO-8601 instant but found " + text);
+        }
+    }
+}
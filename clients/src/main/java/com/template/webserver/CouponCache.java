@@ -0,0 +1,225 @@
+package com.template.webserver;
+
+import com.google.common.collect.ImmutableList;
+import com.template.states.CouponToken;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import rx.Subscription;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Each node's unconsumed coupons by linear ID, so point-of-sale checks are answered without a round trip to the node.
+ *
+ * Each node's cache is filled by the snapshot of a single {@code vaultTrack} query, one page of {@code config.coupons.cacheSize},
+ * and kept current from its updates. When it is full the least recently used coupon is evicted. A coupon not in the
+ * cache, evicted or beyond the first page, is looked up on the node and cached if found.
+ */
+@Component
+public class CouponCache {
+    private final static Logger logger = LoggerFactory.getLogger(CouponCache.class);
+
+    private final NodeConnections nodes;
+    private final int cacheSize;
+    private final long resubscribeMillis;
+    private final Map<String, NodeCoupons> caches = new HashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "coupon-cache");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public CouponCache(NodeConnections nodes,
+                       @Value("${config.coupons.cacheSize:100000}") int cacheSize,
+                       @Value("${config.coupons.resubscribeMillis:5000}") long resubscribeMillis) {
+        this.nodes = nodes;
+        this.cacheSize = cacheSize;
+        this.resubscribeMillis = resubscribeMillis;
+    }
+
+    @PostConstruct
+    public void start() {
+        for (NodeRPCConnection node : nodes.getAll()) {
+            NodeCoupons cache = new NodeCoupons(node);
+            caches.put(node.getName(), cache);
+            scheduler.execute(cache::subscribe);
+        }
+    }
+
+    /**
+     * Checks that coupon {@code linearId} is unconsumed in {@code node}'s vault, held by {@code holder} and for {@code itemId}.
+     */
+    public CouponValidation validate(NodeRPCConnection node, UUID linearId, String holder, String itemId) {
+        return caches.get(node.getName()).validate(linearId, holder, itemId);
+    }
+
+    public long getHits() { return hits.sum(); }
+
+    public long getMisses() { return misses.sum(); }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+        caches.values().forEach(NodeCoupons::unsubscribe);
+    }
+
+    private class NodeCoupons {
+        private final NodeRPCConnection node;
+        // Guarded by itself. Bumped by every vault update, so a lookup on the node that raced one is not cached.
+        private final Map<UUID, Entry> coupons;
+        private long version;
+        private Subscription subscription;
+
+        NodeCoupons(NodeRPCConnection node) {
+            this.node = node;
+            this.coupons = new LinkedHashMap<UUID, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<UUID, Entry> eldest) {
+                    return size() > cacheSize;
+                }
+            };
+        }
+
+        CouponValidation validate(UUID linearId, String holder, String itemId) {
+            Entry coupon;
+            long seen;
+            synchronized (coupons) {
+                coupon = coupons.get(linearId);
+                seen = version;
+            }
+            if (coupon != null) {
+                hits.increment();
+                return CouponValidation.of(coupon, holder, itemId, true);
+            }
+
+            misses.increment();
+            List<StateAndRef<CouponToken>> found = node.proxy.vaultQueryByCriteria(
+                    new QueryCriteria.LinearStateQueryCriteria(null, ImmutableList.of(linearId)),
+                    CouponToken.class).getStates();
+            if (found.isEmpty()) {
+                return CouponValidation.notFound(linearId.toString());
+            }
+
+            coupon = new Entry(found.get(0).getState().getData());
+            synchronized (coupons) {
+                if (version == seen) {
+                    coupons.put(linearId, coupon);
+                }
+            }
+            return CouponValidation.of(coupon, holder, itemId, false);
+        }
+
+        void subscribe() {
+            try {
+                DataFeed<Vault.Page<CouponToken>, Vault.Update<CouponToken>> feed = node.proxy.vaultTrackByWithPagingSpec(
+                        CouponToken.class,
+                        new QueryCriteria.VaultQueryCriteria(),
+                        new PageSpecification(DEFAULT_PAGE_NUM, cacheSize));
+
+                synchronized (coupons) {
+                    coupons.clear();
+                    version++;
+                    for (StateAndRef<CouponToken> coupon : feed.getSnapshot().getStates()) {
+                        put(coupon);
+                    }
+                    subscription = feed.getUpdates().subscribe(this::onUpdate, this::onError);
+                    logger.info("Cached {} of {} coupons on {}", coupons.size(), feed.getSnapshot().getTotalStatesAvailable(), node.getName());
+                }
+            } catch (Exception e) {
+                onError(e);
+            }
+        }
+
+        private void onUpdate(Vault.Update<CouponToken> update) {
+            synchronized (coupons) {
+                version++;
+                for (StateAndRef<CouponToken> coupon : update.getConsumed()) {
+                    coupons.remove(coupon.getState().getData().getLinearId().getId());
+                }
+                for (StateAndRef<CouponToken> coupon : update.getProduced()) {
+                    put(coupon);
+                }
+            }
+        }
+
+        private void put(StateAndRef<CouponToken> coupon) {
+            CouponToken token = coupon.getState().getData();
+            coupons.put(token.getLinearId().getId(), new Entry(token));
+        }
+
+        private void onError(Throwable error) {
+            logger.warn("Coupon subscription on {} failed, resubscribing in {} ms: {}", node.getName(), resubscribeMillis, error.getMessage());
+            // Without updates the cache could vouch for spent coupons, so fall back to the node until resubscribed
+            unsubscribe();
+            if (!scheduler.isShutdown()) {
+                scheduler.schedule(this::subscribe, resubscribeMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void unsubscribe() {
+            synchronized (coupons) {
+                coupons.clear();
+                version++;
+                if (subscription != null) {
+                    subscription.unsubscribe();
+                    subscription = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * The parts of a coupon needed to validate it, with parties as {@link CouponToken#partyToString} gives them.
+     */
+    static class Entry {
+        private final UUID linearId;
+        private final String issuer;
+        private final String holder;
+        private final String itemId;
+        private final int discount;
+        private final Instant expiresAt;
+
+        Entry(CouponToken coupon) {
+            this.linearId = coupon.getLinearId().getId();
+            this.issuer = CouponToken.partyToString(coupon.getIssuer());
+            this.holder = CouponToken.partyToString(coupon.getHolder());
+            this.itemId = coupon.getCouponTokenType().getItemId();
+            this.discount = coupon.getCouponTokenType().getDiscount();
+            this.expiresAt = coupon.getCouponTokenType().getExpiresAt();
+        }
+
+        UUID getLinearId() { return linearId; }
+
+        String getIssuer() { return issuer; }
+
+        String getHolder() { return holder; }
+
+        String getItemId() { return itemId; }
+
+        int getDiscount() { return discount; }
+
+        Instant getExpiresAt() { return expiresAt; }
+    }
+}
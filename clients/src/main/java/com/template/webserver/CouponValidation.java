@@ -0,0 +1,80 @@
+package com.template.webserver;
+
+import com.template.states.CouponToken;
+
+import java.time.Instant;
+
+/**
+ * The answer to whether a coupon can be used by a consumer for an item, as returned by {@code /coupons/{linearId}/validation}.
+ */
+public class CouponValidation {
+    private final String linearId;
+    private final boolean valid;
+    private final String reason;
+    private final String issuer;
+    private final String holder;
+    private final String itemId;
+    private final Integer discount;
+    private final Instant expiresAt;
+    private final boolean cached;
+
+    private CouponValidation(String linearId, boolean valid, String reason, String issuer, String holder, String itemId,
+                             Integer discount, Instant expiresAt, boolean cached) {
+        this.linearId = linearId;
+        this.valid = valid;
+        this.reason = reason;
+        this.issuer = issuer;
+        this.holder = holder;
+        this.itemId = itemId;
+        this.discount = discount;
+        this.expiresAt = expiresAt;
+        this.cached = cached;
+    }
+
+    static CouponValidation of(CouponCache.Entry coupon, String holder, String itemId, boolean cached) {
+        String reason = null;
+        if (!coupon.getHolder().equals(holder)) {
+            reason = "Coupon is held by " + coupon.getHolder();
+        } else if (!coupon.getItemId().equals(itemId)) {
+            reason = "Coupon is for item " + coupon.getItemId();
+        } else if (coupon.getExpiresAt() != null && !Instant.now().isBefore(coupon.getExpiresAt())) {
+            reason = "Coupon expired at " + coupon.getExpiresAt();
+        }
+        return new CouponValidation(coupon.getLinearId().toString(), reason == null, reason,
+                coupon.getIssuer(), coupon.getHolder(), coupon.getItemId(), coupon.getDiscount(), coupon.getExpiresAt(), cached);
+    }
+
+    static CouponValidation notFound(String linearId) {
+        return new CouponValidation(linearId, false, "No unconsumed coupon " + linearId, null, null, null, null, null, false);
+    }
+
+    public String getLinearId() { return linearId; }
+
+    public boolean isValid() { return valid; }
+
+    /**
+     * Why the coupon is not valid, or null if it is.
+     */
+    public String getReason() { return reason; }
+
+    public String getIssuer() { return issuer; }
+
+    /**
+     * The holder, as {@link CouponToken#partyToString} gives it.
+     */
+    public String getHolder() { return holder; }
+
+    public String getItemId() { return itemId; }
+
+    public Integer getDiscount() { return discount; }
+
+    /**
+     * When the coupon expires, or null if it never does.
+     */
+    public Instant getExpiresAt() { return expiresAt; }
+
+    /**
+     * Whether the answer came from the webserver's cache rather than a vault query on the node.
+     */
+    public boolean isCached() { return cached; }
+}
@@ -0,0 +1,22 @@
+package com.template.webserver;
+
+/**
+ * The number of unconsumed coupons from one issuer, and the sum of their discounts in percent.
+ */
+public class CouponsOutstanding {
+    private final long count;
+    private final long totalDiscount;
+
+    CouponsOutstanding(long count, long totalDiscount) {
+        this.count = count;
+        this.totalDiscount = totalDiscount;
+    }
+
+    CouponsOutstanding add(CouponsOutstanding other) {
+        return new CouponsOutstanding(count + other.count, totalDiscount + other.totalDiscount);
+    }
+
+    public long getCount() { return count; }
+
+    public long getTotalDiscount() { return totalDiscount; }
+}
@@ -0,0 +1,56 @@
+package com.template.webserver;
+
+import net.corda.core.messaging.FlowHandle;
+import net.corda.core.transactions.SignedTransaction;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Remembers the flows started through the webserver by run ID, so clients can poll for their outcome.
+ *
+ * Only the most recent {@code config.flows.retained} flows are kept.
+ */
+@Component
+public class FlowRegistry {
+    private final Map<String, FlowStatus> flows;
+
+    public FlowRegistry(@Value("${config.flows.retained:10000}") int retained) {
+        this.flows = Collections.synchronizedMap(new LinkedHashMap<String, FlowStatus>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FlowStatus> eldest) {
+                return size() > retained;
+            }
+        });
+    }
+
+    /**
+     * Registers a started flow and returns a future completed, on an RPC thread, with its status once the flow ends.
+     */
+    public CompletableFuture<FlowStatus> track(String node, String flowName, FlowHandle<?> handle) {
+        FlowStatus status = new FlowStatus(handle.getId().getUuid().toString(), node, flowName, Instant.now());
+        flows.put(status.getRunId(), status);
+
+        return handle.getReturnValue().toCompletableFuture().handle((result, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                status.failed(cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName());
+            } else {
+                status.completed(result instanceof SignedTransaction ?
+                        ((SignedTransaction) result).getId().toString() :
+                        String.valueOf(result));
+            }
+            return status;
+        });
+    }
+
+    public FlowStatus get(String runId) {
+        return flows.get(runId);
+    }
+}
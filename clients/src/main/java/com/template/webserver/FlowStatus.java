@@ -0,0 +1,61 @@
+package com.template.webserver;
+
+import java.time.Instant;
+
+/**
+ * The progress of a flow started through the webserver, as returned by the flow endpoints and {@code /flows/{runId}}.
+ */
+public class FlowStatus {
+    public enum State { RUNNING, COMPLETED, FAILED }
+
+    private final String runId;
+    private final String node;
+    private final String flow;
+    private final Instant startedAt;
+
+    private volatile State state = State.RUNNING;
+    private volatile String result;
+    private volatile String error;
+    private volatile Instant finishedAt;
+
+    FlowStatus(String runId, String node, String flow, Instant startedAt) {
+        this.runId = runId;
+        this.node = node;
+        this.flow = flow;
+        this.startedAt = startedAt;
+    }
+
+    void completed(String result) {
+        this.result = result;
+        this.finishedAt = Instant.now();
+        this.state = State.COMPLETED;
+    }
+
+    void failed(String error) {
+        this.error = error;
+        this.finishedAt = Instant.now();
+        this.state = State.FAILED;
+    }
+
+    public String getRunId() { return runId; }
+
+    /**
+     * The node the flow was started on.
+     */
+    public String getNode() { return node; }
+
+    public String getFlow() { return flow; }
+
+    public State getState() { return state; }
+
+    /**
+     * The transaction ID, or other result, of a completed flow.
+     */
+    public String getResult() { return result; }
+
+    public String getError() { return error; }
+
+    public Instant getStartedAt() { return startedAt; }
+
+    public Instant getFinishedAt() { return finishedAt; }
+}
@@ -0,0 +1,158 @@
+package com.template.webserver;
+
+import net.corda.core.utilities.NetworkHostAndPort;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * The RPC connections of every node the webserver serves, by name.
+ *
+ * Nodes are listed in {@code config.nodes} as {@code Name=host:port} pairs separated by commas, such as
+ * {@code Bank=localhost:10006,Amazon=localhost:10009}. Each node logs in as {@code config.nodes.<Name>.username}
+ * and {@code config.nodes.<Name>.password}, falling back to {@code config.rpc.username} and {@code config.rpc.password}.
+ * Without {@code config.nodes}, the single node at {@code config.rpc.host} and {@code config.rpc.port} is served
+ * under the name {@code config.rpc.node}. The first node listed is the default, used by requests that name no node.
+ */
+@Component
+public class NodeConnections implements AutoCloseable {
+    private final Environment environment;
+    private final NodeRPCConnection.PoolSettings pool;
+    private final long fanOutTimeoutMillis;
+    // In configuration order
+    private final Map<String, NodeRPCConnection> nodes = new LinkedHashMap<>();
+    private ExecutorService fanOut;
+
+    public NodeConnections(Environment environment,
+                           @Value("${config.rpc.pool.size:4}") int poolSize,
+                           @Value("${config.rpc.pool.checkout:round-robin}") String checkout,
+                           @Value("${config.rpc.pool.waitMillis:5000}") long waitMillis,
+                           @Value("${config.rpc.pool.healthCheckMillis:10000}") long healthCheckMillis,
+                           @Value("${config.rpc.pool.maxBackoffMillis:30000}") long maxBackoffMillis,
+                           @Value("${config.nodes.fanOutTimeoutMillis:10000}") long fanOutTimeoutMillis) {
+        this.environment = environment;
+        this.pool = new NodeRPCConnection.PoolSettings(poolSize, checkout, waitMillis, healthCheckMillis, maxBackoffMillis);
+        this.fanOutTimeoutMillis = fanOutTimeoutMillis;
+    }
+
+    @PostConstruct
+    public void initialiseNodeConnections() {
+        String configured = environment.getProperty("config.nodes", "").trim();
+
+        if (configured.isEmpty()) {
+            add(environment.getProperty("config.rpc.node", "node"), new NetworkHostAndPort(
+                    environment.getRequiredProperty("config.rpc.host"),
+                    environment.getRequiredProperty("config.rpc.port", Integer.class)));
+        } else {
+            for (String node : configured.split(",")) {
+                String[] nameAndAddress = node.trim().split("=", 2);
+                if (nameAndAddress.length != 2 || nameAndAddress[0].isEmpty()) {
+                    throw new IllegalArgumentException("Expected Name=host:port in config.nodes but found " + node);
+                }
+                add(nameAndAddress[0], NetworkHostAndPort.parse(nameAndAddress[1]));
+            }
+        }
+
+        fanOut = Executors.newFixedThreadPool(nodes.size(), runnable -> {
+            Thread thread = new Thread(runnable, "node-fan-out");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private void add(String name, NetworkHostAndPort address) {
+        if (nodes.containsKey(name)) {
+            throw new IllegalArgumentException("Node " + name + " is configured twice");
+        }
+        NodeRPCConnection node = new NodeRPCConnection(name, address,
+                environment.getProperty("config.nodes." + name + ".username", environment.getRequiredProperty("config.rpc.username")),
+                environment.getProperty("config.nodes." + name + ".password", environment.getRequiredProperty("config.rpc.password")),
+                pool);
+        node.initialiseNodeRPCConnection();
+        nodes.put(name, node);
+    }
+
+    /**
+     * Returns the named node, or the default node if {@code name} is null.
+     */
+    public NodeRPCConnection get(String name) {
+        if (name == null) {
+            return nodes.values().iterator().next();
+        }
+        NodeRPCConnection node = nodes.get(name);
+        if (node == null) {
+            throw new IllegalArgumentException("Unknown node " + name + ", expected one of " + nodes.keySet());
+        }
+        return node;
+    }
+
+    public Collection<NodeRPCConnection> getAll() {
+        return Collections.unmodifiableCollection(nodes.values());
+    }
+
+    /**
+     * Runs {@code query} against every node in parallel, so the whole takes as long as the slowest node.
+     * Nodes that fail or take longer than {@code config.nodes.fanOutTimeoutMillis} are reported in the errors
+     * rather than failing the rest.
+     */
+    public <T> FanOut<T> fanOut(Function<NodeRPCConnection, T> query) {
+        long started = System.nanoTime();
+        Map<String, Future<T>> futures = new LinkedHashMap<>();
+        nodes.forEach((name, node) -> futures.put(name, fanOut.submit(() -> query.apply(node))));
+
+        long deadline = started + TimeUnit.MILLISECONDS.toNanos(fanOutTimeoutMillis);
+        Map<String, T> results = new LinkedHashMap<>();
+        Map<String, String> errors = new LinkedHashMap<>();
+        futures.forEach((name, future) -> {
+            try {
+                results.put(name, future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                errors.put(name, "Timed out after " + fanOutTimeoutMillis + " ms");
+            } catch (ExecutionException e) {
+                errors.put(name, e.getCause().getMessage() != null ? e.getCause().getMessage() : e.getCause().getClass().getSimpleName());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                errors.put(name, "Interrupted");
+            }
+        });
+
+        return new FanOut<>(results, errors, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    @PreDestroy
+    @Override
+    public void close() {
+        if (fanOut != null) {
+            fanOut.shutdownNow();
+        }
+        nodes.values().forEach(NodeRPCConnection::close);
+    }
+
+    /**
+     * The results of a {@link #fanOut}, by node name.
+     */
+    public static class FanOut<T> {
+        private final Map<String, T> results;
+        private final Map<String, String> errors;
+        private final long elapsedMillis;
+
+        FanOut(Map<String, T> results, Map<String, String> errors, long elapsedMillis) {
+            this.results = results;
+            this.errors = errors;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public Map<String, T> getResults() { return results; }
+
+        public Map<String, String> getErrors() { return errors; }
+
+        public long getElapsedMillis() { return elapsedMillis; }
+    }
+}
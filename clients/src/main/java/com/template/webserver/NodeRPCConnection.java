@@ -1,48 +1,305 @@
 package com.template.webserver;
 
+import com.template.services.FlowMetric;
 import net.corda.client.rpc.CordaRPCClient;
 import net.corda.client.rpc.CordaRPCConnection;
+import net.corda.client.rpc.RPCException;
 import net.corda.core.messaging.CordaRPCOps;
 import net.corda.core.utilities.NetworkHostAndPort;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.stereotype.Component;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import javax.annotation.PostConstruct;
-import javax.annotation.PreDestroy;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Wraps an RPC connection to a Corda node.
+ * Wraps a pool of RPC connections to a Corda node.
  *
- * The RPC connection is configured using command line arguments.
+ * The RPC connections are configured using command line arguments, see {@link NodeConnections}. {@link #proxy} checks a connection out
+ * of the pool for each call, round-robin or least busy first, so concurrent requests use separate Artemis
+ * sessions. Connections are health checked in the background and reconnected with exponential backoff
+ * when they fail, so the webserver outlives node restarts. A call that fails because its connection broke
+ * is not retried, as it may already have reached the node.
  */
-@Component
 public class NodeRPCConnection implements AutoCloseable {
-    // The host of the node we are connecting to.
-    @Value("${config.rpc.host}")
-    private String host;
-    // The RPC port of the node we are connecting to.
-    @Value("${config.rpc.username}")
-    private String username;
-    // The username for logging into the RPC client.
-    @Value("${config.rpc.password}")
-    private String password;
-    // The password for logging into the RPC client.
-    @Value("${config.rpc.port}")
-    private int rpcPort;
-
-    private CordaRPCConnection rpcConnection;
+    private final String name;
+    private final String host;
+    private final int rpcPort;
+    private final String username;
+    private final String password;
+    private final int poolSize;
+    private final String checkout;
+    private final long waitMillis;
+    private final long healthCheckMillis;
+    private final long maxBackoffMillis;
+
+    private static final long MIN_BACKOFF_MILLIS = 500;
+    private static final long MAX_WAIT_SLICE_MILLIS = 100;
+    private final static Logger logger = LoggerFactory.getLogger(NodeRPCConnection.class);
+
+    private final List<PooledRPCConnection> connections = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final Object available = new Object();
+    private CordaRPCClient rpcClient;
+    private ScheduledExecutorService scheduler;
+    private boolean leastBusy;
+
+    private final LongAdder checkouts = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private final FlowMetric waitMicros = new FlowMetric();
+
     CordaRPCOps proxy;
 
-    @PostConstruct
-    public void initialiseNodeRPCConnection() {
+    NodeRPCConnection(String name, NetworkHostAndPort address, String username, String password, PoolSettings pool) {
+        this.name = name;
+        this.host = address.getHost();
+        this.rpcPort = address.getPort();
+        this.username = username;
+        this.password = password;
+        this.poolSize = pool.size;
+        this.checkout = pool.checkout;
+        this.waitMillis = pool.waitMillis;
+        this.healthCheckMillis = pool.healthCheckMillis;
+        this.maxBackoffMillis = pool.maxBackoffMillis;
+    }
+
+    /**
+     * The name the webserver routes to this node by.
+     */
+    public String getName() {
+        return name;
+    }
+
+    void initialiseNodeRPCConnection() {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("config.rpc.pool.size must be positive");
+        }
+        if (!checkout.equals("round-robin") && !checkout.equals("least-busy")) {
+            throw new IllegalArgumentException("Unknown config.rpc.pool.checkout " + checkout);
+        }
+        leastBusy = checkout.equals("least-busy");
+
         NetworkHostAndPort rpcAddress = new NetworkHostAndPort(host, rpcPort);
-        CordaRPCClient rpcClient = new CordaRPCClient(rpcAddress);
-        rpcConnection = rpcClient.start(username, password);
-        proxy = rpcConnection.getProxy();
+        rpcClient = new CordaRPCClient(rpcAddress);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rpc-pool-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // A node that is down at startup is retried in the background rather than failing the webserver
+        for (int i = 0; i < poolSize; i++) {
+            PooledRPCConnection connection = new PooledRPCConnection(i);
+            connections.add(connection);
+            connect(connection);
+        }
+
+        proxy = (CordaRPCOps) Proxy.newProxyInstance(
+                CordaRPCOps.class.getClassLoader(),
+                new Class<?>[]{CordaRPCOps.class},
+                (self, method, args) -> invoke(self, method, args));
+        scheduler.scheduleWithFixedDelay(this::checkHealth, healthCheckMillis, healthCheckMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public RPCPoolMetrics getPoolMetrics() {
+        int healthy = 0;
+        int inUse = 0;
+        for (PooledRPCConnection connection : connections) {
+            healthy += connection.healthy ? 1 : 0;
+            inUse += connection.inUse.get();
+        }
+        return new RPCPoolMetrics(poolSize, healthy, inUse,
+                checkouts.sum(), timeouts.sum(), failures.sum(), reconnects.sum(), waitMicros);
+    }
+
+    private Object invoke(Object self, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return self == args[0];
+                case "hashCode":
+                    return System.identityHashCode(self);
+                default:
+                    return "Pooled RPC proxy for " + name + " at " + host + ":" + rpcPort;
+            }
+        }
+
+        PooledRPCConnection connection = checkout();
+        try {
+            return method.invoke(connection.connection.getProxy(), args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RPCException) {
+                fail(connection, cause);
+            }
+            throw cause;
+        } finally {
+            connection.inUse.decrementAndGet();
+        }
+    }
+
+    private PooledRPCConnection checkout() {
+        long started = System.nanoTime();
+        PooledRPCConnection connection = select();
+
+        if (connection == null) {
+            long deadline = started + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+            synchronized (available) {
+                while ((connection = select()) == null) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        timeouts.increment();
+                        throw new RPCException("No RPC connection to " + name + " at " + host + ":" + rpcPort + " became available within " + waitMillis + " ms");
+                    }
+                    try {
+                        available.wait(Math.min(remaining, MAX_WAIT_SLICE_MILLIS));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RPCException("Interrupted waiting for an RPC connection");
+                    }
+                }
+            }
+        }
+
+        checkouts.increment();
+        waitMicros.update(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started));
+        return connection;
+    }
+
+    /**
+     * Picks a healthy connection and marks it in use, or returns null if none is healthy.
+     */
+    private PooledRPCConnection select() {
+        PooledRPCConnection selected = null;
+        if (leastBusy) {
+            for (PooledRPCConnection connection : connections) {
+                if (connection.healthy && (selected == null || connection.inUse.get() < selected.inUse.get())) {
+                    selected = connection;
+                }
+            }
+        } else {
+            for (int i = 0; i < poolSize && selected == null; i++) {
+                PooledRPCConnection connection = connections.get(Math.floorMod(next.getAndIncrement(), poolSize));
+                if (connection.healthy) {
+                    selected = connection;
+                }
+            }
+        }
+        if (selected != null) {
+            selected.inUse.incrementAndGet();
+        }
+        return selected;
     }
 
-    @PreDestroy
+    private void connect(PooledRPCConnection connection) {
+        if (scheduler.isShutdown()) {
+            return;
+        }
+        try {
+            connection.connection = rpcClient.start(username, password);
+            if (connection.failedAttempts > 0) {
+                reconnects.increment();
+                logger.info("RPC connection {} to {} reconnected after {} attempts", connection.index, name, connection.failedAttempts);
+            }
+            connection.failedAttempts = 0;
+            synchronized (available) {
+                connection.healthy = true;
+                available.notifyAll();
+            }
+        } catch (Exception e) {
+            connection.failedAttempts++;
+            long backoff = backoffMillis(connection.failedAttempts);
+            logger.warn("RPC connection {} to {} at {}:{} failed, retrying in {} ms: {}", connection.index, name, host, rpcPort, backoff, e.getMessage());
+            scheduler.schedule(() -> connect(connection), backoff, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void fail(PooledRPCConnection connection, Throwable cause) {
+        if (!connection.fail()) {
+            return;
+        }
+        failures.increment();
+        logger.warn("RPC connection {} to {} broke: {}", connection.index, name, cause.getMessage());
+
+        CordaRPCConnection broken = connection.connection;
+        scheduler.execute(() -> {
+            try {
+                broken.forceClose();
+            } catch (Exception e) {
+                logger.debug("Closing broken RPC connection {} failed", connection.index, e);
+            }
+            connect(connection);
+        });
+    }
+
+    private void checkHealth() {
+        for (PooledRPCConnection connection : connections) {
+            // Connections carrying calls have just proved themselves
+            if (connection.healthy && connection.inUse.get() == 0) {
+                try {
+                    connection.connection.getProxy().currentNodeTime();
+                } catch (Exception e) {
+                    fail(connection, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Doubles from {@link #MIN_BACKOFF_MILLIS} up to the configured maximum, with up to 20% jitter so
+     * the pool does not reconnect in lockstep.
+     */
+    private long backoffMillis(int attempts) {
+        long backoff = Math.min(maxBackoffMillis, MIN_BACKOFF_MILLIS << Math.min(attempts - 1, 16));
+        return backoff + ThreadLocalRandom.current().nextLong(backoff / 5 + 1);
+    }
+
+    @Override
     public void close() {
-        rpcConnection.notifyServerAndClose();
+        scheduler.shutdownNow();
+        for (PooledRPCConnection connection : connections) {
+            if (connection.connection != null) {
+                try {
+                    connection.connection.notifyServerAndClose();
+                } catch (Exception e) {
+                    logger.debug("Closing RPC connection {} failed", connection.index, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The {@code config.rpc.pool} settings, shared by the pools for every node.
+     */
+    static class PoolSettings {
+        // The number of RPC connections to open.
+        final int size;
+        // How a connection is picked for each call, "round-robin" or "least-busy".
+        final String checkout;
+        // How long a call waits for a healthy connection before failing.
+        final long waitMillis;
+        // How often idle connections are checked.
+        final long healthCheckMillis;
+        // The longest wait between reconnection attempts.
+        final long maxBackoffMillis;
+
+        PoolSettings(int size, String checkout, long waitMillis, long healthCheckMillis, long maxBackoffMillis) {
+            this.size = size;
+            this.checkout = checkout;
+            this.waitMillis = waitMillis;
+            this.healthCheckMillis = healthCheckMillis;
+            this.maxBackoffMillis = maxBackoffMillis;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,33 @@
+package com.template.webserver;
+
+import net.corda.client.rpc.CordaRPCConnection;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One slot of the {@link NodeRPCConnection} pool. The connection in a slot is replaced when it is
+ * reconnected, so callers take it afresh on every checkout.
+ */
+class PooledRPCConnection {
+    final int index;
+    final AtomicInteger inUse = new AtomicInteger();
+    volatile CordaRPCConnection connection;
+    volatile boolean healthy;
+    // Only touched by whichever thread is (re)connecting the slot
+    int failedAttempts;
+
+    PooledRPCConnection(int index) {
+        this.index = index;
+    }
+
+    /**
+     * Marks the slot unhealthy, returning false if it already was, so only one caller reconnects it.
+     */
+    synchronized boolean fail() {
+        if (!healthy) {
+            return false;
+        }
+        healthy = false;
+        return true;
+    }
+}
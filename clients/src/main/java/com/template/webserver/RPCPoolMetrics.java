@@ -0,0 +1,44 @@
+package com.template.webserver;
+
+import com.template.services.FlowMetric;
+
+/**
+ * A snapshot of the {@link NodeRPCConnection} pool's usage, with checkout wait times in microseconds.
+ */
+public class RPCPoolMetrics {
+    private final int size;
+    private final int healthy;
+    private final int inUse;
+    private final long checkouts;
+    private final long timeouts;
+    private final long failures;
+    private final long reconnects;
+    private final FlowMetric waitMicros;
+
+    RPCPoolMetrics(int size, int healthy, int inUse, long checkouts, long timeouts, long failures, long reconnects, FlowMetric waitMicros) {
+        this.size = size;
+        this.healthy = healthy;
+        this.inUse = inUse;
+        this.checkouts = checkouts;
+        this.timeouts = timeouts;
+        this.failures = failures;
+        this.reconnects = reconnects;
+        this.waitMicros = waitMicros;
+    }
+
+    public int getSize() { return size; }
+
+    public int getHealthy() { return healthy; }
+
+    public int getInUse() { return inUse; }
+
+    public long getCheckouts() { return checkouts; }
+
+    public long getTimeouts() { return timeouts; }
+
+    public long getFailures() { return failures; }
+
+    public long getReconnects() { return reconnects; }
+
+    public FlowMetric getWaitMicros() { return waitMicros; }
+}
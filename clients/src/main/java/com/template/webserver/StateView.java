@@ -0,0 +1,69 @@
+package com.template.webserver;
+
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.states.NonFungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.TokenType;
+import com.template.states.CouponToken;
+import com.template.states.CouponTokenType;
+import com.template.states.PurchaseOrderState;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A JSON friendly view of a vault state, with parties as X.500 names and the state's fields flattened into {@link #getFields()}.
+ */
+public class StateView {
+    private final String ref;
+    private final String type;
+    private final Map<String, Object> fields;
+
+    private StateView(String ref, String type, Map<String, Object> fields) {
+        this.ref = ref;
+        this.type = type;
+        this.fields = fields;
+    }
+
+    public static StateView of(StateAndRef<?> stateAndRef) {
+        ContractState state = stateAndRef.getState().getData();
+        Map<String, Object> fields = new LinkedHashMap<>();
+
+        if (state instanceof FungibleToken) {
+            FungibleToken token = (FungibleToken) state;
+            fields.put("holder", CouponToken.partyToString(token.getHolder()));
+            fields.put("issuer", CouponToken.partyToString(token.getIssuer()));
+            fields.put("token", token.getTokenType().getTokenIdentifier());
+            fields.put("quantity", token.getAmount().getQuantity());
+        } else if (state instanceof NonFungibleToken) {
+            NonFungibleToken token = (NonFungibleToken) state;
+            TokenType tokenType = token.getTokenType();
+            fields.put("holder", CouponToken.partyToString(token.getHolder()));
+            fields.put("issuer", CouponToken.partyToString(token.getIssuer()));
+            fields.put("token", tokenType.getTokenIdentifier());
+            fields.put("linearId", token.getLinearId().toString());
+            if (tokenType instanceof CouponTokenType) {
+                fields.put("itemId", ((CouponTokenType) tokenType).getItemId());
+                fields.put("discount", ((CouponTokenType) tokenType).getDiscount());
+                fields.put("expiresAt", ((CouponTokenType) tokenType).getExpiresAt());
+            }
+        } else if (state instanceof PurchaseOrderState) {
+            PurchaseOrderState order = (PurchaseOrderState) state;
+            fields.put("seller", CouponToken.partyToString(order.getSeller()));
+            fields.put("buyer", CouponToken.partyToString(order.getBuyer()));
+            fields.put("itemId", order.getItemId());
+            fields.put("price", order.getPrice());
+            fields.put("discount", order.getDiscount());
+            fields.put("orderedAt", order.getOrderedAt());
+        }
+
+        return new StateView(stateAndRef.getRef().toString(), state.getClass().getSimpleName(), fields);
+    }
+
+    public String getRef() { return ref; }
+
+    public String getType() { return type; }
+
+    public Map<String, Object> getFields() { return fields; }
+}
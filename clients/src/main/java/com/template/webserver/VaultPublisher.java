@@ -0,0 +1,184 @@
+package com.template.webserver;
+
+import com.google.common.collect.ImmutableMap;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.states.NonFungibleToken;
+import com.template.states.PurchaseOrderState;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.stereotype.Component;
+import rx.Subscription;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Follows each node's vault with one {@code vaultTrack} subscription per state type, and pushes the changes
+ * to browsers on {@code /topic/vault/{node}/{type}}, where type is one of {@link #TYPES}.
+ *
+ * The unconsumed states of each type are held here, so a browser subscribing to {@code /app/vault/{node}/{type}}
+ * is answered with a snapshot without querying the node. If a subscription fails, such as when the node
+ * restarts, it is retried after {@code config.ws.resubscribeMillis} and the fresh snapshot is pushed to everyone.
+ *
+ * Only the first {@code config.ws.snapshotLimit} states of a type are held. Every message carries the node's
+ * total count of the type, so a snapshot missing states is marked truncated rather than passed off as complete.
+ */
+@Component
+public class VaultPublisher {
+    static final Map<String, Class<? extends ContractState>> TYPES = ImmutableMap.of(
+            "fungible", FungibleToken.class,
+            "nonfungible", NonFungibleToken.class,
+            "purchaseorders", PurchaseOrderState.class);
+
+    private final static Logger logger = LoggerFactory.getLogger(VaultPublisher.class);
+
+    private final NodeConnections nodes;
+    private final SimpMessagingTemplate messaging;
+    private final int snapshotLimit;
+    private final long resubscribeMillis;
+    private final Map<String, Feed<?>> feeds = new HashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "vault-publisher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public VaultPublisher(NodeConnections nodes,
+                          SimpMessagingTemplate messaging,
+                          @Value("${config.ws.snapshotLimit:10000}") int snapshotLimit,
+                          @Value("${config.ws.resubscribeMillis:5000}") long resubscribeMillis) {
+        this.nodes = nodes;
+        this.messaging = messaging;
+        this.snapshotLimit = snapshotLimit;
+        this.resubscribeMillis = resubscribeMillis;
+    }
+
+    @PostConstruct
+    public void start() {
+        for (NodeRPCConnection node : nodes.getAll()) {
+            TYPES.forEach((type, stateClass) -> {
+                Feed<?> feed = new Feed<>(node, type, stateClass);
+                feeds.put(node.getName() + "/" + type, feed);
+                scheduler.execute(feed::subscribe);
+            });
+        }
+    }
+
+    /**
+     * The current states of {@code type} on {@code node}, numbered with the sequence of the last update applied.
+     */
+    public VaultUpdate snapshot(String node, String type) {
+        Feed<?> feed = feeds.get(nodes.get(node).getName() + "/" + type);
+        if (feed == null) {
+            throw new IllegalArgumentException("Unknown vault type " + type + ", expected one of " + TYPES.keySet());
+        }
+        return feed.snapshot();
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+        feeds.values().forEach(Feed::unsubscribe);
+    }
+
+    private class Feed<T extends ContractState> {
+        private final NodeRPCConnection node;
+        private final String type;
+        private final Class<T> stateClass;
+        private final String destination;
+        // Guarded by this, which also keeps messages in sequence order
+        private final Map<StateRef, StateView> states = new LinkedHashMap<>();
+        private long sequence;
+        private long total;
+        private Subscription subscription;
+
+        Feed(NodeRPCConnection node, String type, Class<T> stateClass) {
+            this.node = node;
+            this.type = type;
+            this.stateClass = stateClass;
+            this.destination = "/topic/vault/" + node.getName() + "/" + type;
+        }
+
+        synchronized VaultUpdate snapshot() {
+            return new VaultUpdate(node.getName(), type, sequence, true, Collections.emptyList(), new ArrayList<>(states.values()), total);
+        }
+
+        void subscribe() {
+            try {
+                DataFeed<Vault.Page<T>, Vault.Update<T>> feed = node.proxy.vaultTrackByWithPagingSpec(
+                        stateClass,
+                        new QueryCriteria.VaultQueryCriteria(),
+                        new PageSpecification(DEFAULT_PAGE_NUM, snapshotLimit));
+
+                synchronized (this) {
+                    states.clear();
+                    for (StateAndRef<T> state : feed.getSnapshot().getStates()) {
+                        states.put(state.getRef(), StateView.of(state));
+                    }
+                    total = feed.getSnapshot().getTotalStatesAvailable();
+                    sequence++;
+                    messaging.convertAndSend(destination, snapshot());
+                    subscription = feed.getUpdates().subscribe(this::onUpdate, this::onError);
+                    if (states.size() < total) {
+                        logger.warn("Following {} of {} {} states on {}, raise config.ws.snapshotLimit to hold them all",
+                                states.size(), total, type, node.getName());
+                    } else {
+                        logger.info("Following {} {} states on {}", states.size(), type, node.getName());
+                    }
+                }
+            } catch (Exception e) {
+                onError(e);
+            }
+        }
+
+        private synchronized void onUpdate(Vault.Update<T> update) {
+            List<String> consumed = new ArrayList<>();
+            List<StateView> produced = new ArrayList<>();
+            for (StateAndRef<T> state : update.getConsumed()) {
+                states.remove(state.getRef());
+                consumed.add(state.getRef().toString());
+            }
+            for (StateAndRef<T> state : update.getProduced()) {
+                StateView view = StateView.of(state);
+                // Held states stay within the snapshot limit, while total still counts every state on the node
+                if (states.size() < snapshotLimit) {
+                    states.put(state.getRef(), view);
+                }
+                produced.add(view);
+            }
+            total += produced.size() - consumed.size();
+            sequence++;
+            messaging.convertAndSend(destination, new VaultUpdate(node.getName(), type, sequence, false, consumed, produced, total));
+        }
+
+        private void onError(Throwable error) {
+            logger.warn("Vault subscription for {} on {} failed, resubscribing in {} ms: {}", type, node.getName(), resubscribeMillis, error.getMessage());
+            unsubscribe();
+            if (!scheduler.isShutdown()) {
+                scheduler.schedule(this::subscribe, resubscribeMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        synchronized void unsubscribe() {
+            if (subscription != null) {
+                subscription.unsubscribe();
+                subscription = null;
+            }
+        }
+    }
+}
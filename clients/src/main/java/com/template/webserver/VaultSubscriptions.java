@@ -0,0 +1,31 @@
+package com.template.webserver;
+
+import org.springframework.messaging.handler.annotation.DestinationVariable;
+import org.springframework.messaging.handler.annotation.MessageExceptionHandler;
+import org.springframework.messaging.simp.annotation.SendToUser;
+import org.springframework.messaging.simp.annotation.SubscribeMapping;
+import org.springframework.stereotype.Controller;
+
+/**
+ * Answers a browser's STOMP subscription to {@code /app/vault/{node}/{type}} with a snapshot of that type's states.
+ * The browser subscribes to {@code /topic/vault/{node}/{type}} first, so no delta falls between the two.
+ */
+@Controller
+public class VaultSubscriptions {
+    private final VaultPublisher publisher;
+
+    public VaultSubscriptions(VaultPublisher publisher) {
+        this.publisher = publisher;
+    }
+
+    @SubscribeMapping("/vault/{node}/{type}")
+    public VaultUpdate snapshot(@DestinationVariable String node, @DestinationVariable String type) {
+        return publisher.snapshot(node, type);
+    }
+
+    @MessageExceptionHandler(IllegalArgumentException.class)
+    @SendToUser(destinations = "/queue/errors", broadcast = false)
+    public String badRequest(IllegalArgumentException e) {
+        return e.getMessage();
+    }
+}
@@ -0,0 +1,55 @@
+package com.template.webserver;
+
+import java.util.List;
+
+/**
+ * A message pushed to browsers on {@code /topic/vault/{node}/{type}}, or sent once on subscribing to {@code /app/vault/{node}/{type}}.
+ *
+ * A snapshot replaces everything a browser holds for the type. A delta removes the {@code consumed} refs and adds
+ * the {@code produced} states. Sequence numbers increase by one per message, so a browser drops deltas numbered
+ * at or below its snapshot, and refetches the snapshot if it sees a gap.
+ *
+ * A snapshot holds at most {@code config.ws.snapshotLimit} states. {@code total} counts every unconsumed state of
+ * the type on the node, so a browser can tell from {@code truncated} that the snapshot is missing some.
+ */
+public class VaultUpdate {
+    private final String node;
+    private final String type;
+    private final long sequence;
+    private final boolean snapshot;
+    private final List<String> consumed;
+    private final List<StateView> produced;
+    private final long total;
+
+    VaultUpdate(String node, String type, long sequence, boolean snapshot, List<String> consumed, List<StateView> produced, long total) {
+        this.node = node;
+        this.type = type;
+        this.sequence = sequence;
+        this.snapshot = snapshot;
+        this.consumed = consumed;
+        this.produced = produced;
+        this.total = total;
+    }
+
+    public String getNode() { return node; }
+
+    public String getType() { return type; }
+
+    public long getSequence() { return sequence; }
+
+    public boolean isSnapshot() { return snapshot; }
+
+    public List<String> getConsumed() { return consumed; }
+
+    public List<StateView> getProduced() { return produced; }
+
+    /**
+     * The unconsumed states of the type on the node once this message is applied.
+     */
+    public long getTotal() { return total; }
+
+    /**
+     * Whether a snapshot holds fewer states than {@link #getTotal()}.
+     */
+    public boolean isTruncated() { return snapshot && produced.size() < total; }
+}
@@ -0,0 +1,48 @@
+package com.template.webserver;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
+import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
+import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
+
+/**
+ * Serves STOMP over WebSocket at {@code /ws}, for browsers to follow {@link VaultPublisher}'s vault updates.
+ *
+ * Messages queue per session while a slow browser is still receiving earlier ones. A session whose queue
+ * grows past {@code config.ws.sendBufferBytes}, or whose send takes longer than {@code config.ws.sendTimeMillis},
+ * is closed rather than allowed to hold memory, and the browser reconnects and takes a new snapshot.
+ *
+ * Only pages served by this webserver may connect, unless {@code config.ws.allowedOrigins} lists other origins,
+ * such as {@code https://dashboard.example.com}, separated by commas.
+ */
+@Configuration
+@EnableWebSocketMessageBroker
+public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
+    @Value("${config.ws.sendBufferBytes:524288}")
+    private int sendBufferBytes;
+    @Value("${config.ws.sendTimeMillis:10000}")
+    private int sendTimeMillis;
+    @Value("${config.ws.allowedOrigins:}")
+    private String[] allowedOrigins;
+
+    @Override
+    public void registerStompEndpoints(StompEndpointRegistry registry) {
+        registry.addEndpoint("/ws").setAllowedOrigins(allowedOrigins);
+    }
+
+    @Override
+    public void configureMessageBroker(MessageBrokerRegistry registry) {
+        registry.enableSimpleBroker("/topic", "/queue");
+        registry.setApplicationDestinationPrefixes("/app");
+    }
+
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        registration
+                .setSendBufferSizeLimit(sendBufferBytes)
+                .setSendTimeLimit(sendTimeMillis);
+    }
+}
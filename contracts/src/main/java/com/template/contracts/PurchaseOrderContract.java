@@ -1,6 +1,9 @@
 package com.template.contracts;
 
 import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.states.NonFungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.TokenType;
+import com.template.states.CouponTokenType;
 import com.template.states.PurchaseOrderState;
 import net.corda.core.contracts.CommandData;
 import net.corda.core.contracts.CommandWithParties;
@@ -21,6 +24,28 @@ public class PurchaseOrderContract implements Contract {
 
     public interface Commands extends CommandData {
         class Issue implements Commands {}
+
+        /**
+         * Issues a purchase order paid for in the same transaction. The buyer may redeem one coupon
+         * from the seller for the ordered item, which takes its discount off {@code price}.
+         */
+        class Purchase implements Commands {
+            private final long price;
+            private final TokenType currency;
+
+            public Purchase(long price, TokenType currency) {
+                this.price = price;
+                this.currency = currency;
+            }
+
+            public long getPrice() {
+                return price;
+            }
+
+            public TokenType getCurrency() {
+                return currency;
+            }
+        }
     }
 
     @Override
@@ -31,7 +56,7 @@ public class PurchaseOrderContract implements Contract {
         CommandData commandData = command.getValue();
         String commandName = commandData.getClass().getSimpleName();
 
-        if (commandData instanceof Commands.Issue) {
+        if (commandData instanceof Commands.Issue || commandData instanceof Commands.Purchase) {
             /* Shape constraints */
 
             // Verifies there is no PurchaseOrder in the input
@@ -77,9 +102,108 @@ public class PurchaseOrderContract implements Contract {
                 throw new IllegalArgumentException(String.format("%s requires signatures from all contract participants."));
             }
 
+            if (commandData instanceof Commands.Purchase) {
+                verifyPayment(tx, purchaseOrder, (Commands.Purchase) commandData, commandName);
+            }
+
         } else {
             throw new IllegalArgumentException("Command not supported.");
         }
 
     }
+
+    /**
+     * Checks the coupon redeemed with the purchase, if any, does not expire before the time window ends, that the
+     * order records the price and discount, and that the seller is paid the discounted price.
+     */
+    private static void verifyPayment(LedgerTransaction tx, PurchaseOrderState purchaseOrder, Commands.Purchase purchase, String commandName) {
+        if (purchase.getPrice() < 0) {
+            throw new IllegalArgumentException(String.format("Price must not be negative in %s", commandName));
+        }
+
+        // Verifies at most one coupon from the seller for the ordered item is redeemed
+        List<NonFungibleToken> coupons = tx.inputsOfType(NonFungibleToken.class);
+        if (coupons.size() > 1) {
+            throw new IllegalArgumentException(String.format("%s must have at most one coupon as input.", commandName));
+        }
+
+        // Verifies the order records the price and when it was made, within the transaction's time window if it has one
+        if (purchaseOrder.getPrice() == null || purchaseOrder.getPrice() != purchase.getPrice()) {
+            throw new IllegalArgumentException(String.format("Order price must match the price in %s", commandName));
+        }
+        if (purchaseOrder.getOrderedAt() == null) {
+            throw new IllegalArgumentException(String.format("Order time must be set in %s", commandName));
+        }
+        if (tx.getTimeWindow() != null && !tx.getTimeWindow().contains(purchaseOrder.getOrderedAt())) {
+            throw new IllegalArgumentException(String.format("Order time must be within the time window in %s", commandName));
+        }
+
+        long amountRequested = purchase.getPrice();
+        int discount = 0;
+        if (coupons.size() == 1) {
+            NonFungibleToken coupon = coupons.get(0);
+            if (!(coupon.getIssuedTokenType().getTokenType() instanceof CouponTokenType)) {
+                throw new IllegalArgumentException(String.format("Only coupons can be redeemed in %s", commandName));
+            }
+            CouponTokenType couponTokenType = (CouponTokenType) coupon.getIssuedTokenType().getTokenType();
+
+            if (!coupon.getIssuer().getOwningKey().equals(purchaseOrder.getSeller().getOwningKey())) {
+                throw new IllegalArgumentException(String.format("Coupon in %s must be issued by the seller", commandName));
+            }
+            if (!couponTokenType.getItemId().equals(purchaseOrder.getItemId())) {
+                throw new IllegalArgumentException(String.format(
+                        "Coupon for item (%s) cannot be used for purchase of item (%s)",
+                        couponTokenType.getItemId(),
+                        purchaseOrder.getItemId()));
+            }
+            // The order time is chosen by the buyer, so the coupon must outlast the whole time window
+            if (tx.getTimeWindow() == null || tx.getTimeWindow().getUntilTime() == null) {
+                throw new IllegalArgumentException(String.format("Redeeming a coupon needs a time window with an end in %s", commandName));
+            }
+            if (couponTokenType.isExpired(tx.getTimeWindow().getUntilTime())) {
+                throw new IllegalArgumentException(String.format("Coupon expires at %s before the time window ends in %s",
+                        couponTokenType.getExpiresAt(), commandName));
+            }
+
+            discount = couponTokenType.getDiscount();
+            amountRequested = discountedPrice(purchase.getPrice(), discount);
+        }
+
+        // Verifies the order records the discount of the coupon redeemed, if any
+        if (purchaseOrder.getDiscount() == null || purchaseOrder.getDiscount() != discount) {
+            throw new IllegalArgumentException(String.format("Order discount (%d%%) must match the coupon redeemed (%d%%) in %s",
+                    purchaseOrder.getDiscount(), discount, commandName));
+        }
+
+        // Verifies the seller receives exactly the discounted price
+        long amountPaid = amountPaidTo(tx.outputsOfType(FungibleToken.class), purchaseOrder.getSeller(), purchase.getCurrency());
+
+        if (amountPaid != amountRequested) {
+            throw new IllegalArgumentException(String.format(
+                    "Amount paid (%d %s) does not match sale price (%d %s) in %s",
+                    amountPaid, purchase.getCurrency().getTokenIdentifier(),
+                    amountRequested, purchase.getCurrency().getTokenIdentifier(),
+                    commandName));
+        }
+    }
+
+    /**
+     * The price after a coupon's percentage discount, rounded in the seller's favour.
+     */
+    public static long discountedPrice(long price, int discount) {
+        return price - price * discount / 100;
+    }
+
+    /**
+     * The total quantity of {@code currency} held by {@code payee} in {@code outputs}.
+     */
+    public static long amountPaidTo(List<FungibleToken> outputs, AbstractParty payee, TokenType currency) {
+        long amountPaid = 0;
+        for (FungibleToken token : outputs) {
+            if (token.getHolder().getOwningKey().equals(payee.getOwningKey()) && token.getTokenType().equals(currency)) {
+                amountPaid += token.getAmount().getQuantity();
+            }
+        }
+        return amountPaid;
+    }
 }
@@ -0,0 +1,8 @@
+package com.template.schemas;
+
+/**
+ * The family of schemas for coupons held as {@link com.template.states.CouponToken}.
+ */
+public class CouponSchema {
+    private CouponSchema() {}
+}
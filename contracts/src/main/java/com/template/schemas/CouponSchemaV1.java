@@ -0,0 +1,91 @@
+package com.template.schemas;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import org.jetbrains.annotations.Nullable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * A coupon schema which exposes the issuer, holder, item ID, discount and expiry of a coupon
+ * as indexed columns, so coupons can be looked up without loading every NonFungibleToken.
+ */
+public class CouponSchemaV1 extends MappedSchema {
+    public static final CouponSchemaV1 INSTANCE = new CouponSchemaV1();
+
+    public CouponSchemaV1() {
+        super(CouponSchema.class, 1, ImmutableList.of(PersistentCoupon.class));
+    }
+
+    @Nullable
+    @Override
+    public String getMigrationResource() {
+        return "coupon.changelog-master";
+    }
+
+    @Entity
+    @Table(name = "coupon_states", indexes = {
+            @Index(name = "coupon_issuer_idx", columnList = "issuer"),
+            @Index(name = "coupon_holder_idx", columnList = "holder"),
+            @Index(name = "coupon_item_idx", columnList = "item_id"),
+            @Index(name = "coupon_discount_idx", columnList = "discount"),
+            @Index(name = "coupon_expires_idx", columnList = "expires_at")
+    })
+    public static class PersistentCoupon extends PersistentState {
+        @Column(name = "issuer") private final String issuer;
+        @Column(name = "holder") private final String holder;
+        @Column(name = "item_id") private final String itemId;
+        @Column(name = "discount") private final int discount;
+        @Column(name = "linear_id") private final UUID linearId;
+        @Column(name = "expires_at") private final Instant expiresAt;
+
+        public PersistentCoupon(String issuer, String holder, String itemId, int discount, UUID linearId, Instant expiresAt) {
+            this.issuer = issuer;
+            this.holder = holder;
+            this.itemId = itemId;
+            this.discount = discount;
+            this.linearId = linearId;
+            this.expiresAt = expiresAt;
+        }
+
+        // Default constructor required by hibernate.
+        public PersistentCoupon() {
+            this.issuer = null;
+            this.holder = null;
+            this.itemId = null;
+            this.discount = 0;
+            this.linearId = null;
+            this.expiresAt = null;
+        }
+
+        public String getIssuer() {
+            return issuer;
+        }
+
+        public String getHolder() {
+            return holder;
+        }
+
+        public String getItemId() {
+            return itemId;
+        }
+
+        public int getDiscount() {
+            return discount;
+        }
+
+        public UUID getLinearId() {
+            return linearId;
+        }
+
+        public Instant getExpiresAt() {
+            return expiresAt;
+        }
+    }
+}
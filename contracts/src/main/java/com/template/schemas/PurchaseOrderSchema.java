@@ -0,0 +1,8 @@
+package com.template.schemas;
+
+/**
+ * The family of schemas for {@link com.template.states.PurchaseOrderState}.
+ */
+public class PurchaseOrderSchema {
+    private PurchaseOrderSchema() {}
+}
@@ -0,0 +1,89 @@
+package com.template.schemas;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import org.jetbrains.annotations.Nullable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.time.Instant;
+
+/**
+ * A purchase order schema which exposes the seller, buyer, item ID and order time as indexed columns,
+ * alongside the price and discount, so orders can be reported on without loading every order.
+ */
+public class PurchaseOrderSchemaV1 extends MappedSchema {
+    public static final PurchaseOrderSchemaV1 INSTANCE = new PurchaseOrderSchemaV1();
+
+    public PurchaseOrderSchemaV1() {
+        super(PurchaseOrderSchema.class, 1, ImmutableList.of(PersistentPurchaseOrder.class));
+    }
+
+    @Nullable
+    @Override
+    public String getMigrationResource() {
+        return "purchase-order.changelog-master";
+    }
+
+    @Entity
+    @Table(name = "purchase_order_states", indexes = {
+            @Index(name = "purchase_order_seller_idx", columnList = "seller"),
+            @Index(name = "purchase_order_buyer_idx", columnList = "buyer"),
+            @Index(name = "purchase_order_item_idx", columnList = "item_id"),
+            @Index(name = "purchase_order_ordered_at_idx", columnList = "ordered_at")
+    })
+    public static class PersistentPurchaseOrder extends PersistentState {
+        @Column(name = "seller") private final String seller;
+        @Column(name = "buyer") private final String buyer;
+        @Column(name = "item_id") private final String itemId;
+        @Column(name = "price") private final Long price;
+        @Column(name = "discount") private final Integer discount;
+        @Column(name = "ordered_at") private final Instant orderedAt;
+
+        public PersistentPurchaseOrder(String seller, String buyer, String itemId, Long price, Integer discount, Instant orderedAt) {
+            this.seller = seller;
+            this.buyer = buyer;
+            this.itemId = itemId;
+            this.price = price;
+            this.discount = discount;
+            this.orderedAt = orderedAt;
+        }
+
+        // Default constructor required by hibernate.
+        public PersistentPurchaseOrder() {
+            this.seller = null;
+            this.buyer = null;
+            this.itemId = null;
+            this.price = null;
+            this.discount = null;
+            this.orderedAt = null;
+        }
+
+        public String getSeller() {
+            return seller;
+        }
+
+        public String getBuyer() {
+            return buyer;
+        }
+
+        public String getItemId() {
+            return itemId;
+        }
+
+        public Long getPrice() {
+            return price;
+        }
+
+        public Integer getDiscount() {
+            return discount;
+        }
+
+        public Instant getOrderedAt() {
+            return orderedAt;
+        }
+    }
+}
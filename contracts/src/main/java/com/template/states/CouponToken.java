@@ -0,0 +1,89 @@
+package com.template.states;
+
+import com.google.common.collect.ImmutableList;
+import com.r3.corda.lib.tokens.contracts.NonFungibleTokenContract;
+import com.r3.corda.lib.tokens.contracts.states.NonFungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import com.template.schemas.CouponSchemaV1;
+import net.corda.core.contracts.BelongsToContract;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.CryptoUtils;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * A NonFungibleToken holding a {@link CouponTokenType}.
+ *
+ * Besides the token SDK's own schema, coupons are also mapped to {@link CouponSchemaV1}
+ * so they can be queried by issuer, holder, item ID, discount and expiry.
+ */
+@BelongsToContract(NonFungibleTokenContract.class)
+public class CouponToken extends NonFungibleToken {
+
+    public CouponToken(@NotNull IssuedTokenType token,
+                       @NotNull AbstractParty holder,
+                       @NotNull UniqueIdentifier linearId,
+                       @Nullable SecureHash tokenTypeJarHash) {
+        super(token, holder, linearId, tokenTypeJarHash);
+
+        if (!(token.getTokenType() instanceof CouponTokenType)) {
+            throw new IllegalArgumentException("CouponToken must hold a CouponTokenType");
+        }
+    }
+
+    @NotNull
+    public CouponTokenType getCouponTokenType() {
+        return (CouponTokenType) getIssuedTokenType().getTokenType();
+    }
+
+    @NotNull
+    @Override
+    public CouponToken withNewHolder(@NotNull AbstractParty newHolder) {
+        return new CouponToken(getIssuedTokenType(), newHolder, getLinearId(), getTokenTypeJarHash());
+    }
+
+    // NonFungibleToken narrows the return type to a list of its own schema,
+    // so a raw list is needed to add CouponSchemaV1 next to it.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    @NotNull
+    @Override
+    public List supportedSchemas() {
+        return ImmutableList.<MappedSchema>builder()
+                .addAll(super.supportedSchemas())
+                .add(CouponSchemaV1.INSTANCE)
+                .build();
+    }
+
+    @NotNull
+    @Override
+    public PersistentState generateMappedObject(@NotNull MappedSchema schema) {
+        if (schema instanceof CouponSchemaV1) {
+            CouponTokenType couponTokenType = getCouponTokenType();
+            return new CouponSchemaV1.PersistentCoupon(
+                    partyToString(getIssuer()),
+                    partyToString(getHolder()),
+                    couponTokenType.getItemId(),
+                    couponTokenType.getDiscount(),
+                    getLinearId().getId(),
+                    couponTokenType.getExpiresAt());
+        }
+
+        return super.generateMappedObject(schema);
+    }
+
+    /**
+     * Returns the value stored in the holder/issuer columns of {@link CouponSchemaV1} for a party.
+     */
+    @NotNull
+    public static String partyToString(@NotNull AbstractParty party) {
+        CordaX500Name name = party.nameOrNull();
+        return name != null ? name.toString() : CryptoUtils.toStringShort(party.getOwningKey());
+    }
+}
@@ -1,7 +1,11 @@
 package com.template.states;
 
 import com.r3.corda.lib.tokens.contracts.types.TokenType;
+import net.corda.core.serialization.ConstructorForDeserialization;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Instant;
 
 public class CouponTokenType extends TokenType {
     public static final String IDENTIFIER = "CouponToken";
@@ -10,10 +14,19 @@ public class CouponTokenType extends TokenType {
 
     private final int discount;
 
-    public CouponTokenType(@NotNull String itemId, int discount) {
+    // Null for a coupon which never expires
+    private final Instant expiresAt;
+
+    @ConstructorForDeserialization
+    public CouponTokenType(@NotNull String itemId, int discount, @Nullable Instant expiresAt) {
         super(IDENTIFIER, 0);
         this.itemId = itemId;
         this.discount = discount;
+        this.expiresAt = expiresAt;
+    }
+
+    public CouponTokenType(@NotNull String itemId, int discount) {
+        this(itemId, discount, null);
     }
 
     public String getItemId() {
@@ -22,9 +35,21 @@ public class CouponTokenType extends TokenType {
 
     public int getDiscount() {  return discount; }
 
+    @Nullable
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Whether the coupon can no longer be used at {@code time}. A coupon expires at its expiry instant.
+     */
+    public boolean isExpired(@NotNull Instant time) {
+        return expiresAt != null && !time.isBefore(expiresAt);
+    }
+
     @NotNull
     @Override
     public String toString() {
-        return super.toString() + " " + discount +  "% off discount";
+        return super.toString() + " " + discount +  "% off discount" + (expiresAt != null ? " until " + expiresAt : "");
     }
 }
@@ -2,24 +2,53 @@ package com.template.states;
 
 import com.google.common.collect.ImmutableList;
 import com.template.contracts.PurchaseOrderContract;
+import com.template.schemas.PurchaseOrderSchemaV1;
 import net.corda.core.contracts.BelongsToContract;
-import net.corda.core.contracts.ContractState;
 import net.corda.core.identity.AbstractParty;
 import net.corda.core.identity.Party;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import net.corda.core.schemas.QueryableState;
+import net.corda.core.serialization.ConstructorForDeserialization;
+import net.corda.core.serialization.DeprecatedConstructorForDeserialization;
 import org.jetbrains.annotations.NotNull;
 
+import java.time.Instant;
 import java.util.List;
 
+/**
+ * An order for an item, mapped to {@link PurchaseOrderSchemaV1} so orders can be queried by seller, buyer,
+ * item ID and order time. Orders made by a sale record the full price, the percentage discount of any
+ * coupon redeemed and when they were ordered.
+ *
+ * Orders recorded before the price, discount and order time were added have null in their place.
+ */
 @BelongsToContract(PurchaseOrderContract.class)
-public class PurchaseOrderState implements ContractState {
+public class PurchaseOrderState implements QueryableState {
     private final Party seller;
     private final Party buyer;
     private final String itemId;
+    private final Long price;
+    private final Integer discount;
+    private final Instant orderedAt;
 
-    public PurchaseOrderState(Party seller, Party buyer, String itemId) {
+    @ConstructorForDeserialization
+    public PurchaseOrderState(Party seller, Party buyer, String itemId, Long price, Integer discount, Instant orderedAt) {
         this.seller = seller;
         this.buyer = buyer;
         this.itemId = itemId;
+        this.price = price;
+        this.discount = discount;
+        this.orderedAt = orderedAt;
+    }
+
+    public PurchaseOrderState(Party seller, Party buyer, String itemId, long price, int discount, Instant orderedAt) {
+        this(seller, buyer, itemId, Long.valueOf(price), Integer.valueOf(discount), orderedAt);
+    }
+
+    @DeprecatedConstructorForDeserialization(version = 1)
+    public PurchaseOrderState(Party seller, Party buyer, String itemId) {
+        this(seller, buyer, itemId, null, null, null);
     }
 
     public Party getSeller() {
@@ -34,14 +63,49 @@ public class PurchaseOrderState implements ContractState {
         return itemId;
     }
 
+    public Long getPrice() {
+        return price;
+    }
+
+    public Integer getDiscount() {
+        return discount;
+    }
+
+    public Instant getOrderedAt() {
+        return orderedAt;
+    }
+
     @NotNull
     @Override
     public List<AbstractParty> getParticipants() {
         return ImmutableList.of(seller, buyer);
     }
 
+    @NotNull
+    @Override
+    public Iterable<MappedSchema> supportedSchemas() {
+        return ImmutableList.of(PurchaseOrderSchemaV1.INSTANCE);
+    }
+
+    @NotNull
+    @Override
+    public PersistentState generateMappedObject(@NotNull MappedSchema schema) {
+        if (schema instanceof PurchaseOrderSchemaV1) {
+            return new PurchaseOrderSchemaV1.PersistentPurchaseOrder(
+                    CouponToken.partyToString(seller),
+                    CouponToken.partyToString(buyer),
+                    itemId,
+                    price,
+                    discount,
+                    orderedAt);
+        }
+
+        throw new IllegalArgumentException("Unrecognised schema " + schema);
+    }
+
     @Override
     public String toString() {
-        return "Purchase Order for item " + itemId + " from Seller " + seller.getName() + " to Buyer " + buyer.getName();
+        return "Purchase Order for item " + itemId + " from Seller " + seller.getName() + " to Buyer " + buyer.getName() +
+                (price != null ? " at " + price : "") + (discount != null && discount > 0 ? " less " + discount + "%" : "");
     }
 }
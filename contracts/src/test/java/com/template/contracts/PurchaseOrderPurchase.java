@@ -0,0 +1,216 @@
+package com.template.contracts;
+
+import com.google.common.collect.ImmutableList;
+import com.r3.corda.lib.tokens.contracts.FungibleTokenContract;
+import com.r3.corda.lib.tokens.contracts.NonFungibleTokenContract;
+import com.r3.corda.lib.tokens.contracts.commands.MoveTokenCommand;
+import com.r3.corda.lib.tokens.contracts.commands.RedeemTokenCommand;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import com.r3.corda.lib.tokens.contracts.types.TokenType;
+import com.r3.corda.lib.tokens.money.FiatCurrency;
+import com.template.states.CouponToken;
+import com.template.states.CouponTokenType;
+import com.template.states.PurchaseOrderState;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.TimeWindow;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.Party;
+import net.corda.testing.node.MockServices;
+import org.junit.Test;
+
+import java.security.PublicKey;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static com.template.utils.Mocks.*;
+import static net.corda.testing.node.NodeTestUtils.transaction;
+
+public class PurchaseOrderPurchase {
+    private final MockServices ledgerServices = new MockServices(
+            ImmutableList.of("com.r3.corda.lib.tokens.contracts", "com.template.contracts")
+    );
+
+    private final TokenType jpy = FiatCurrency.Companion.getInstance("JPY");
+    private final IssuedTokenType issuedJpy = new IssuedTokenType(megaBank.getParty(), jpy);
+
+    private FungibleToken cash(long quantity, Party holder) {
+        return new FungibleToken(new Amount<>(quantity, issuedJpy), holder, null);
+    }
+
+    private CouponToken coupon(String itemId, int discount, Party issuer) {
+        return coupon(itemId, discount, issuer, null);
+    }
+
+    private CouponToken coupon(String itemId, int discount, Party issuer, Instant expiresAt) {
+        return new CouponToken(
+                new IssuedTokenType(issuer, new CouponTokenType(itemId, discount, expiresAt)),
+                partyB.getParty(),
+                new UniqueIdentifier(),
+                null);
+    }
+
+    /**
+     * Checks the seller is paid exactly the price when no coupon is used
+     */
+    @Test
+    public void paymentMustMatchPrice() {
+        PurchaseOrderState output = new PurchaseOrderState(partyA.getParty(), partyB.getParty(), "item123", 700, 0, Instant.now());
+        List<PublicKey> signers = ImmutableList.of(partyA.getPublicKey(), partyB.getPublicKey());
+
+        transaction(ledgerServices, tx -> {
+            tx.input(FungibleTokenContract.class.getName(), cash(1000, partyB.getParty()));
+            tx.command(ImmutableList.of(partyB.getPublicKey()), new MoveTokenCommand(issuedJpy, ImmutableList.of(0), ImmutableList.of(1, 2)));
+            tx.command(signers, new PurchaseOrderContract.Commands.Purchase(700, jpy));
+            tx.output(PurchaseOrderContract.ID, output);
+
+            // Seller underpaid, fails.
+            tx.tweak(tw -> {
+                tw.output(FungibleTokenContract.class.getName(), cash(600, partyA.getParty()));
+                tw.output(FungibleTokenContract.class.getName(), cash(400, partyB.getParty()));
+                return tw.fails();
+            });
+
+            tx.output(FungibleTokenContract.class.getName(), cash(700, partyA.getParty()));
+            tx.output(FungibleTokenContract.class.getName(), cash(300, partyB.getParty()));
+            return tx.verifies();
+        });
+    }
+
+    /**
+     * Checks a redeemed coupon must be for the ordered item and its discount is taken off the price
+     */
+    @Test
+    public void couponDiscountIsApplied() {
+        Instant now = Instant.now();
+        PurchaseOrderState output = new PurchaseOrderState(partyA.getParty(), partyB.getParty(), "item123", 700, 50, now);
+        List<PublicKey> signers = ImmutableList.of(partyA.getPublicKey(), partyB.getPublicKey());
+        List<PublicKey> couponSigners = ImmutableList.of(partyA.getPublicKey(), partyB.getPublicKey());
+
+        transaction(ledgerServices, tx -> {
+            tx.input(FungibleTokenContract.class.getName(), cash(1000, partyB.getParty()));
+            tx.command(ImmutableList.of(partyB.getPublicKey()), new MoveTokenCommand(issuedJpy, ImmutableList.of(0), ImmutableList.of(1, 2)));
+            tx.command(signers, new PurchaseOrderContract.Commands.Purchase(700, jpy));
+            tx.output(PurchaseOrderContract.ID, output);
+            tx.timeWindow(now, Duration.ofSeconds(60));
+
+            // Coupon for another item, fails.
+            tx.tweak(tw -> {
+                CouponToken wrongItem = coupon("item456", 50, partyA.getParty());
+                tw.input(NonFungibleTokenContract.class.getName(), wrongItem);
+                tw.command(couponSigners, new RedeemTokenCommand(wrongItem.getIssuedTokenType(), ImmutableList.of(1), ImmutableList.of()));
+                tw.output(FungibleTokenContract.class.getName(), cash(350, partyA.getParty()));
+                tw.output(FungibleTokenContract.class.getName(), cash(650, partyB.getParty()));
+                return tw.fails();
+            });
+
+            CouponToken coupon = coupon("item123", 50, partyA.getParty());
+            tx.input(NonFungibleTokenContract.class.getName(), coupon);
+            tx.command(couponSigners, new RedeemTokenCommand(coupon.getIssuedTokenType(), ImmutableList.of(1), ImmutableList.of()));
+
+            // Full price paid despite the coupon, fails.
+            tx.tweak(tw -> {
+                tw.output(FungibleTokenContract.class.getName(), cash(700, partyA.getParty()));
+                tw.output(FungibleTokenContract.class.getName(), cash(300, partyB.getParty()));
+                return tw.fails();
+            });
+
+            tx.output(FungibleTokenContract.class.getName(), cash(350, partyA.getParty()));
+            tx.output(FungibleTokenContract.class.getName(), cash(650, partyB.getParty()));
+            return tx.verifies();
+        });
+    }
+
+    /**
+     * Checks the order records the price, the coupon's discount and an order time within the time window
+     */
+    @Test
+    public void orderRecordsTheSale() {
+        Instant now = Instant.now();
+        List<PublicKey> signers = ImmutableList.of(partyA.getPublicKey(), partyB.getPublicKey());
+
+        transaction(ledgerServices, tx -> {
+            tx.input(FungibleTokenContract.class.getName(), cash(1000, partyB.getParty()));
+            tx.command(ImmutableList.of(partyB.getPublicKey()), new MoveTokenCommand(issuedJpy, ImmutableList.of(0), ImmutableList.of(1, 2)));
+            tx.command(signers, new PurchaseOrderContract.Commands.Purchase(700, jpy));
+            tx.output(FungibleTokenContract.class.getName(), cash(700, partyA.getParty()));
+            tx.output(FungibleTokenContract.class.getName(), cash(300, partyB.getParty()));
+            tx.timeWindow(now, Duration.ofSeconds(60));
+
+            // Order price differs from the sale price, fails.
+            tx.tweak(tw -> {
+                tw.output(PurchaseOrderContract.ID, new PurchaseOrderState(partyA.getParty(), partyB.getParty(), "item123", 500, 0, now));
+                return tw.fails();
+            });
+
+            // Order claims a discount without a coupon, fails.
+            tx.tweak(tw -> {
+                tw.output(PurchaseOrderContract.ID, new PurchaseOrderState(partyA.getParty(), partyB.getParty(), "item123", 700, 10, now));
+                return tw.fails();
+            });
+
+            // Order time outside the time window, fails.
+            tx.tweak(tw -> {
+                tw.output(PurchaseOrderContract.ID, new PurchaseOrderState(partyA.getParty(), partyB.getParty(), "item123", 700, 0, now.minus(Duration.ofHours(1))));
+                return tw.fails();
+            });
+
+            tx.output(PurchaseOrderContract.ID, new PurchaseOrderState(partyA.getParty(), partyB.getParty(), "item123", 700, 0, now));
+            return tx.verifies();
+        });
+    }
+
+    /**
+     * Checks a coupon can only be redeemed by an order whose time window ends before it expires
+     */
+    @Test
+    public void expiredCouponIsRejected() {
+        Instant now = Instant.now();
+        PurchaseOrderState output = new PurchaseOrderState(partyA.getParty(), partyB.getParty(), "item123", 700, 50, now);
+        List<PublicKey> signers = ImmutableList.of(partyA.getPublicKey(), partyB.getPublicKey());
+
+        transaction(ledgerServices, tx -> {
+            tx.input(FungibleTokenContract.class.getName(), cash(1000, partyB.getParty()));
+            tx.command(ImmutableList.of(partyB.getPublicKey()), new MoveTokenCommand(issuedJpy, ImmutableList.of(0), ImmutableList.of(1, 2)));
+            tx.command(signers, new PurchaseOrderContract.Commands.Purchase(700, jpy));
+            tx.output(PurchaseOrderContract.ID, output);
+            tx.output(FungibleTokenContract.class.getName(), cash(350, partyA.getParty()));
+            tx.output(FungibleTokenContract.class.getName(), cash(650, partyB.getParty()));
+
+            // Coupon expired before the order, fails.
+            tx.tweak(tw -> {
+                CouponToken expired = coupon("item123", 50, partyA.getParty(), now.minus(Duration.ofMinutes(1)));
+                tw.input(NonFungibleTokenContract.class.getName(), expired);
+                tw.command(signers, new RedeemTokenCommand(expired.getIssuedTokenType(), ImmutableList.of(1), ImmutableList.of()));
+                tw.timeWindow(now, Duration.ofSeconds(60));
+                return tw.fails();
+            });
+
+            // Coupon expiring after the order time but within the time window, fails.
+            tx.tweak(tw -> {
+                CouponToken expiring = coupon("item123", 50, partyA.getParty(), now.plus(Duration.ofSeconds(30)));
+                tw.input(NonFungibleTokenContract.class.getName(), expiring);
+                tw.command(signers, new RedeemTokenCommand(expiring.getIssuedTokenType(), ImmutableList.of(1), ImmutableList.of()));
+                tw.timeWindow(now, Duration.ofSeconds(60));
+                return tw.fails();
+            });
+
+            CouponToken coupon = coupon("item123", 50, partyA.getParty(), now.plus(Duration.ofDays(1)));
+            tx.input(NonFungibleTokenContract.class.getName(), coupon);
+            tx.command(signers, new RedeemTokenCommand(coupon.getIssuedTokenType(), ImmutableList.of(1), ImmutableList.of()));
+
+            // Redeeming a coupon without a time window, fails.
+            tx.tweak(tw -> tw.fails());
+
+            // Redeeming a coupon with an open ended time window, fails.
+            tx.tweak(tw -> {
+                tw.timeWindow(TimeWindow.fromOnly(now.minus(Duration.ofSeconds(1))));
+                return tw.fails();
+            });
+
+            tx.timeWindow(now, Duration.ofSeconds(60));
+            return tx.verifies();
+        });
+    }
+}
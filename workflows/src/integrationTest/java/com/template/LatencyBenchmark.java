@@ -0,0 +1,203 @@
+package com.template;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.r3.corda.lib.tokens.contracts.types.TokenType;
+import com.r3.corda.lib.tokens.money.FiatCurrency;
+import com.r3.corda.lib.tokens.workflows.types.PartyAndAmount;
+import com.template.flows.BuyerSellerFlow;
+import com.template.flows.CashBatchFlow;
+import com.template.flows.CouponFlow;
+import com.template.flows.IssueCash;
+import net.corda.client.rpc.CordaRPCClient;
+import net.corda.core.contracts.Amount;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.driver.DriverParameters;
+import net.corda.testing.driver.NodeHandle;
+import net.corda.testing.driver.NodeParameters;
+import net.corda.testing.node.TestCordapp;
+import net.corda.testing.node.User;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.Arrays.asList;
+import static net.corda.testing.common.internal.ParametersUtilitiesKt.testNetworkParameters;
+import static net.corda.testing.driver.Driver.driver;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives sustained mixed traffic over RPC against Bank, Shop and Consumer nodes running out of process,
+ * so the latencies include RPC and serialization as well as the flows themselves.
+ *
+ * Each worker repeatedly picks one of cash issuance, coupon issuance, a sale or a coupon redemption and
+ * records its latency in a histogram for that flow. The run fails if any flow's p99 exceeds the threshold, or if
+ * more than the allowed share of any flow's runs fail, other than redemptions. The first failure of each flow is
+ * printed with the report.
+ *
+ * Run with {@code ./gradlew workflows:latencyBenchmark}. The system properties
+ * {@code benchmark.durationSeconds} (default 60), {@code benchmark.workers} (default 8),
+ * {@code benchmark.p99Millis} (default 5000) and {@code benchmark.maxErrorRate} (default 0.01) configure the run, passed as {@code -Pbenchmark.p99Millis=...}.
+ */
+public class LatencyBenchmark {
+    private final TestIdentity bank = new TestIdentity(new CordaX500Name("Bank", "", "GB"));
+    private final TestIdentity consumer = new TestIdentity(new CordaX500Name("Consumer", "", "US"));
+    private final TestIdentity shop = new TestIdentity(new CordaX500Name("Shop", "", "US"));
+
+    final List<User> rpcUsers = ImmutableList.of(
+            new User("user1", "test", ImmutableSet.of("ALL")));
+
+    private static final String ITEM_ID = "book-123";
+    private static final int PRICE = 200;
+
+    // Relative weights of the flows in the traffic mix
+    private static final String[] MIX = {
+            "IssueCash",
+            "IssueCoupon", "IssueCoupon",
+            "Sell", "Sell", "Sell", "Sell",
+            "RedeemCoupon"
+    };
+
+    // Redemptions fail when sales have used up every coupon, which is expected in this mix
+    private static final Set<String> EXPECTED_TO_FAIL = ImmutableSet.of("RedeemCoupon");
+
+    private final long durationSeconds = Long.getLong("benchmark.durationSeconds", 60);
+    private final int workers = Integer.getInteger("benchmark.workers", 8);
+    private final long p99Millis = Long.getLong("benchmark.p99Millis", 5000);
+    private final double maxErrorRate = Double.parseDouble(System.getProperty("benchmark.maxErrorRate", "0.01"));
+
+    private final Map<String, Histogram> histograms = new TreeMap<>();
+    private final Map<String, AtomicLong> errors = new TreeMap<>();
+    private final Map<String, AtomicReference<Throwable>> firstErrors = new TreeMap<>();
+
+    @Test
+    public void mixedTrafficLatency() {
+        for (String flow : new TreeSet<>(asList(MIX))) {
+            // Microseconds, three significant digits
+            histograms.put(flow, new ConcurrentHistogram(3));
+            errors.put(flow, new AtomicLong());
+            firstErrors.put(flow, new AtomicReference<>());
+        }
+
+        driver(new DriverParameters()
+                .withStartNodesInProcess(false)
+                .withNetworkParameters(testNetworkParameters(Collections.emptyList(), 4))
+                .withCordappsForAllNodes(asList(
+                        TestCordapp.findCordapp("com.template.flows"),
+                        TestCordapp.findCordapp("com.template.contracts"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.tokens.workflows"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.tokens.contracts"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.tokens.money")
+                )), dsl -> {
+
+            try {
+                NodeHandle bankHandle = dsl.startNode(new NodeParameters().withProvidedName(bank.getName()).withRpcUsers(rpcUsers)).get();
+                NodeHandle consumerHandle = dsl.startNode(new NodeParameters().withProvidedName(consumer.getName()).withRpcUsers(rpcUsers)).get();
+                NodeHandle shopHandle = dsl.startNode(new NodeParameters().withProvidedName(shop.getName()).withRpcUsers(rpcUsers)).get();
+
+                CordaRPCOps rpcProxyBank = new CordaRPCClient(bankHandle.getRpcAddress()).start("user1", "test").getProxy();
+                CordaRPCOps rpcProxyConsumer = new CordaRPCClient(consumerHandle.getRpcAddress()).start("user1", "test").getProxy();
+                CordaRPCOps rpcProxyShop = new CordaRPCClient(shopHandle.getRpcAddress()).start("user1", "test").getProxy();
+
+                Party consumerParty = consumerHandle.getNodeInfo().getLegalIdentities().get(0);
+                Party shopParty = shopHandle.getNodeInfo().getLegalIdentities().get(0);
+
+                // Fund the consumer with many cash states up front, so sales rarely wait on each other's change
+                TokenType jpy = FiatCurrency.Companion.getInstance("JPY");
+                List<PartyAndAmount<TokenType>> payouts = new ArrayList<>();
+                for (int i = 0; i < 200; i++) {
+                    payouts.add(new PartyAndAmount<>(consumerParty, new Amount<>(PRICE * 10, jpy)));
+                }
+                rpcProxyBank.startFlowDynamic(CashBatchFlow.IssueBatch.class, payouts, null).getReturnValue().get();
+
+                ExecutorService executor = Executors.newFixedThreadPool(workers);
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+                List<Future<?>> running = new ArrayList<>();
+                for (int i = 0; i < workers; i++) {
+                    running.add(executor.submit(() -> {
+                        while (System.nanoTime() < deadline) {
+                            String flow = MIX[ThreadLocalRandom.current().nextInt(MIX.length)];
+                            long started = System.nanoTime();
+                            try {
+                                switch (flow) {
+                                    case "IssueCash":
+                                        rpcProxyBank.startFlowDynamic(IssueCash.class, (long) PRICE * 10, consumerParty).getReturnValue().get();
+                                        break;
+                                    case "IssueCoupon":
+                                        rpcProxyShop.startFlowDynamic(CouponFlow.IssueCoupon.class, consumerParty, ITEM_ID, 10).getReturnValue().get();
+                                        break;
+                                    case "Sell":
+                                        rpcProxyShop.startFlowDynamic(BuyerSellerFlow.Seller.class, consumerParty, ITEM_ID, PRICE).getReturnValue().get();
+                                        break;
+                                    default:
+                                        rpcProxyConsumer.startFlowDynamic(CouponFlow.RedeemCoupon.class, shopParty).getReturnValue().get();
+                                        break;
+                                }
+                                histograms.get(flow).recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started));
+                            } catch (Exception e) {
+                                errors.get(flow).incrementAndGet();
+                                firstErrors.get(flow).compareAndSet(null, e);
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> worker : running) {
+                    worker.get();
+                }
+                executor.shutdown();
+            } catch (Exception e) {
+                throw new RuntimeException("Caught exception during benchmark: ", e);
+            }
+
+            return null;
+        });
+
+        System.out.println(report());
+
+        errors.forEach((flow, count) -> {
+            long runs = histograms.get(flow).getTotalCount() + count.get();
+            double errorRate = runs == 0 ? 0 : (double) count.get() / runs;
+            assertTrue(String.format("%s failed %d of %d runs, first with %s", flow, count.get(), runs, firstErrors.get(flow).get()),
+                    EXPECTED_TO_FAIL.contains(flow) || errorRate <= maxErrorRate);
+        });
+        histograms.forEach((flow, histogram) -> assertTrue(
+                String.format("%s p99 of %d ms exceeds %d ms", flow, histogram.getValueAtPercentile(99) / 1000, p99Millis),
+                histogram.getValueAtPercentile(99) <= TimeUnit.MILLISECONDS.toMicros(p99Millis)));
+    }
+
+    private String report() {
+        StringBuilder str = new StringBuilder();
+        str.append(String.format("%-14s %8s %8s %10s %10s %10s %10s %10s%n",
+                "flow (ms)", "count", "errors", "mean", "p50", "p95", "p99", "max"));
+        histograms.forEach((flow, histogram) -> str.append(String.format("%-14s %8d %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                flow,
+                histogram.getTotalCount(),
+                errors.get(flow).get(),
+                histogram.getMean() / 1000,
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(95) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getMaxValue() / 1000.0)));
+        firstErrors.forEach((flow, error) -> {
+            if (error.get() != null) {
+                str.append(String.format("First %s failure: %s%n", flow, Throwables.getRootCause(error.get())));
+            }
+        });
+        return str.toString();
+    }
+}
@@ -0,0 +1,31 @@
+package com.template.flows;
+
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.node.ServiceHub;
+
+/**
+ * Reads optional settings from the CorDapp's config file, falling back to a default when a key is absent.
+ */
+public class AppConfig {
+    private AppConfig() {}
+
+    public static int getInt(ServiceHub serviceHub, String key, int defaultValue) {
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        return config.exists(key) ? config.getInt(key) : defaultValue;
+    }
+
+    public static long getLong(ServiceHub serviceHub, String key, long defaultValue) {
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        return config.exists(key) ? config.getLong(key) : defaultValue;
+    }
+
+    public static boolean getBoolean(ServiceHub serviceHub, String key, boolean defaultValue) {
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        return config.exists(key) ? config.getBoolean(key) : defaultValue;
+    }
+
+    public static String getString(ServiceHub serviceHub, String key, String defaultValue) {
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        return config.exists(key) ? config.getString(key) : defaultValue;
+    }
+}
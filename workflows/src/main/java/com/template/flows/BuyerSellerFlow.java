@@ -3,14 +3,16 @@ package com.template.flows;
 import co.paralleluniverse.fibers.Suspendable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
 import com.r3.corda.lib.tokens.contracts.states.NonFungibleToken;
 import com.r3.corda.lib.tokens.contracts.types.TokenType;
 import com.r3.corda.lib.tokens.money.FiatCurrency;
 import com.r3.corda.lib.tokens.workflows.types.PartyAndAmount;
+import com.template.states.CouponToken;
 import com.template.states.CouponTokenType;
 import com.template.contracts.PurchaseOrderContract;
 import com.template.states.PurchaseOrderState;
+import com.template.services.CouponIndexService;
+import com.template.services.FlowMetricsService;
 // import net.corda.confidential.IdentitySyncFlow;
 import net.corda.core.contracts.*;
 import net.corda.core.crypto.SecureHash;
@@ -23,13 +25,13 @@ import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 import net.corda.core.utilities.ProgressTracker;
 
-import java.time.Clock;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.List;
 import java.util.UUID;
 
 import static com.r3.corda.lib.tokens.workflows.flows.move.MoveTokensUtilitiesKt.addMoveFungibleTokens;
-import static com.r3.corda.lib.tokens.workflows.flows.redeem.RedeemFlowUtilitiesKt.addNonFungibleTokensToRedeem;
+import static com.r3.corda.lib.tokens.workflows.flows.redeem.RedeemFlowUtilitiesKt.addTokensToRedeem;
 
 
 public class BuyerSellerFlow {
@@ -78,6 +80,9 @@ public class BuyerSellerFlow {
         @Override
         @Suspendable
         public SignedTransaction call() throws FlowException {
+            FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+            long started = metrics.start();
+
             FlowSession session = initiateFlow(sellto);
 
             // Send sale request to buyer
@@ -90,115 +95,68 @@ public class BuyerSellerFlow {
                     super(otherSession, progressTracker);
                 }
 
-                private TransactionState loadTransactionState(StateRef ref) {
-                    try {
-                        // SignedTransaction.getInputs() returns a list of
-                        // StateRef. So we need to load corresponding TransactionState
-                        // by calling ServiceHub.loadState().
-                        return getServiceHub().loadState(ref);
-                    } catch (TransactionResolutionException tre) {
-                        // TODO: handling exceptions in lambda function
-                        return null;
-                    }
-                }
-
                 // As part of `SignTransactionFlow`, the contracts of the
                 // transaction's input and output states are run automatically.
-                // Inside `checkTransaction`, we define our own additional logic
-                // for checking the received transaction. If `checkTransaction`
+                // The Purchase command makes PurchaseOrderContract check the
+                // coupon and the payment, so here we only check the command
+                // and the order are the ones we asked for. If `checkTransaction`
                 // throws an exception, we'll refuse to sign.
                 @Override
                 protected void checkTransaction(SignedTransaction stx) throws FlowException {
-                    System.out.println("Verifying transaction on the seller side...");
-
-                    StringBuffer str = new StringBuffer();
-
-                    str.append("*************INPUTS***********\n");
-                    stx.getTx().getInputs().forEach(it -> {
-                        str.append("************************\n");
-                        str.append(it.toString() + "\n\n");
-                        try {
-                            TransactionState ts = getServiceHub().loadState(it);
-                            str.append(ts.toString() + "\n\n");
-                        } catch (TransactionResolutionException tre) {
-                            str.append("Failed to load transaction state " + it.toString() + "\n");
-                        }
-                    });
-
-                    StateRef[] matchedStates = stx.getTx().getInputs().stream().filter(stateRef -> {
-                        TransactionState ts = loadTransactionState(stateRef);
-                        return (ts.getData() instanceof NonFungibleToken);
-                    }).toArray(StateRef[]::new);
-
-                    str.append("**********Number of coupons***********\n");
-                    str.append( matchedStates.length + "\n");
-
-                    int amountRequested = price;
-                    if (matchedStates.length == 1) {
-                        TransactionState ts = loadTransactionState(matchedStates[0]);
-                        NonFungibleToken nonFungibleToken = (NonFungibleToken) ts.getData();
-                        CouponTokenType couponTokenType = (CouponTokenType) nonFungibleToken.getIssuedTokenType().getTokenType();
-
-                        PurchaseOrderState purchaseOrderState = (PurchaseOrderState) stx.getTx().getOutputStates().stream().filter(state -> {
-                            return state instanceof PurchaseOrderState;
-                        }).findAny().orElse(null);
-
-                        if (purchaseOrderState == null) {
-                            throw new FlowException("There should be exactly one PurchaseOrder state in output");
-                        } else if (!purchaseOrderState.getItemId().equals(couponTokenType.getItemId())) {
-                            throw new IllegalArgumentException(String.format(
-                                    "Coupon for item (%s) cannot be used for purchase of item (%s)",
-                                    couponTokenType.getItemId(),
-                                    purchaseOrderState.getItemId()));
-                        }
-
+                    long checkStarted = metrics.start();
+                    checkSale(stx);
+                    metrics.time("Seller", "check", checkStarted);
+                }
 
-                        amountRequested -= Math.round(price * couponTokenType.getDiscount() / 100);
-                    } else if (matchedStates.length > 1) {
-                        throw new FlowException("There should be at most one coupon state in transaction");
+                private void checkSale(SignedTransaction stx) throws FlowException {
+                    if (getLogger().isDebugEnabled()) {
+                        getLogger().debug("Verifying transaction " + stx.getId() + " on the seller side:\n" + stx.getTx());
                     }
 
-                    str.append("*************OUTPUTS***********\n");
-                    stx.getTx().getOutputStates().forEach(it -> {
-                        str.append("************************\n");
-                        str.append(it.toString() + "\n\n");
-
-                    });
-
-                    Party myself = getServiceHub().getMyInfo().getLegalIdentities().get(0);
-
-                    stx.getTx().getOutputStates().stream().filter(it -> {
-                         return (it instanceof FungibleToken &&
-                                ((FungibleToken) it).getHolder().equals(myself));
-                    });
-
-                    long amountPaid = 0;
-                    List<ContractState> outputStates = stx.getTx().getOutputStates();
-                    for (int i = 0; i < outputStates.size(); i++) {
-                        ContractState cs = outputStates.get(i);
-                        if (cs instanceof FungibleToken &&
-                                ((FungibleToken) cs).getHolder().equals(myself)) {
-
-                            FungibleToken token = (FungibleToken) cs;
-                            amountPaid += token.getAmount().getQuantity();
+                    PurchaseOrderContract.Commands.Purchase purchase = null;
+                    for (Command<?> command : stx.getTx().getCommands()) {
+                        if (command.getValue() instanceof PurchaseOrderContract.Commands.Purchase) {
+                            purchase = (PurchaseOrderContract.Commands.Purchase) command.getValue();
                         }
                     }
+                    if (purchase == null) {
+                        throw new FlowException("The transaction must use the Purchase command");
+                    }
+                    if (purchase.getPrice() != price || !purchase.getCurrency().equals(FiatCurrency.Companion.getInstance("JPY"))) {
+                        throw new FlowException("Sale price (" + purchase.getPrice() + " " + purchase.getCurrency().getTokenIdentifier() +
+                                ") does not match the requested price (" + price + " JPY)");
+                    }
 
-                    str.append("******AMOUNT REQUESTED: " + amountRequested + " **************\n\n");
-                    str.append("******AMOUNT PAID: " + amountPaid + " **************\n\n");
-
-                    if (amountRequested != amountPaid) {
-                        throw new FlowException("Amount paid (" + amountPaid + " JPY) does not match sale price (" + amountRequested + " JPY)");
+                    PurchaseOrderState purchaseOrderState = stx.getTx().outputsOfType(PurchaseOrderState.class).stream()
+                            .findAny().orElse(null);
+                    if (purchaseOrderState == null) {
+                        throw new FlowException("There should be exactly one PurchaseOrder state in output");
+                    }
+                    if (!purchaseOrderState.getSeller().equals(getOurIdentity()) ||
+                            !purchaseOrderState.getBuyer().equals(getOtherSideSession().getCounterparty()) ||
+                            !purchaseOrderState.getItemId().equals(itemId)) {
+                        throw new FlowException("Purchase order does not match the sale request: " + purchaseOrderState);
+                    }
+                    // The contract keeps the order time inside the time window, which the notary checks
+                    if (stx.getTx().getTimeWindow() == null) {
+                        throw new FlowException("The transaction must have a time window");
                     }
                 }
             }
 
             // Respond to CollectSignatures request from buyer
             try{
+                long phaseStarted = metrics.start();
                 SecureHash hash = subFlow(new SignTxFlow(session, SignTransactionFlow.tracker())).getId();
+                phaseStarted = metrics.time("Seller", "signTransaction", phaseStarted);
 
-                return subFlow(new ReceiveFinalityFlow(session, hash));
+                SignedTransaction finalisedTx = subFlow(new ReceiveFinalityFlow(session, hash));
+                metrics.time("Seller", "finality", phaseStarted);
+                metrics.time("Seller", "total", started);
+                metrics.increment("Seller", "completed");
+                return finalisedTx;
             } catch (FlowException ex) {
+                metrics.increment("Seller", "failed");
                 throw ex;
             }
 
@@ -224,66 +182,96 @@ public class BuyerSellerFlow {
 
             Party sellerParty = session.getCounterparty();
             Party buyerParty = getServiceHub().getMyInfo().getLegalIdentities().get(0);
-            Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
-
-            // Prepare for shared transaction
-            TransactionBuilder transactionBuilder = new TransactionBuilder(notary);
 
             // Initialize the amount we are going to pay to the price in sale request
             int paidAmount = saleRequest.getPrice();
 
-            // Check if there's a coupon from the seller
-            NonFungibleToken nonFungibleToken = BuyerSellerFlow.queryNonFungibleTokenByIssuer(getServiceHub(), sellerParty);
-
-            if (nonFungibleToken != null) {
-                CouponTokenType couponTokenType = (CouponTokenType) nonFungibleToken.getIssuedTokenType().getTokenType();
-                addNonFungibleTokensToRedeem(
-                        transactionBuilder,
-                        getServiceHub(),
-                        couponTokenType,
-                        sellerParty
-                );
-
-                paidAmount -= Math.round(paidAmount * couponTokenType.getDiscount() / 100);
-            }
-
             // Fungible TokenType for the money
             TokenType currencyTokenType = FiatCurrency.Companion.getInstance("JPY");
-            PartyAndAmount partyAndAmount = new PartyAndAmount(
-                    sellerParty,
-                    new Amount(paidAmount, currencyTokenType));
 
-            addMoveFungibleTokens(
-                    transactionBuilder,
-                    getServiceHub(),
-                    ImmutableList.of(partyAndAmount),
-                    buyerParty);
+            FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+            long started = metrics.start();
+            long phaseStarted = started;
 
-            PurchaseOrderState outputState = new PurchaseOrderState(sellerParty, buyerParty, saleRequest.getItemId());
-            transactionBuilder
-                    .addOutputState(outputState, PurchaseOrderContract.ID)
-                    .addCommand(
-                    new PurchaseOrderContract.Commands.Issue(),
-                    ImmutableList.of(sellerParty.getOwningKey(), buyerParty.getOwningKey()));
+            // Check if there's a coupon from the seller, soft locked so concurrent purchases never pick the same one
+            UUID lockId = getRunId().getUuid();
+            StateAndRef<CouponToken> coupon = CouponSelection.selectAndLock(getServiceHub(), lockId, sellerParty, buyerParty, null);
+            phaseStarted = metrics.time("Buyer", "couponQuery", phaseStarted);
 
-            // Set TimeWindow for the transaction
-            Clock clock = getServiceHub().getClock();
-            transactionBuilder.setTimeWindow(clock.instant(), Duration.ofSeconds(60));
+            try {
+                // A coupon stays on its own notary, otherwise pay from the notary holding most of our cash
+                Party notary = coupon != null ?
+                        coupon.getState().getNotary() :
+                        NotaryBinding.notaryForFungibleTokens(this, currencyTokenType);
 
-            // subFlow(new IdentitySyncFlow.Send(session, transactionBuilder.toWireTransaction(getServiceHub())));
+                // Prepare for shared transaction
+                TransactionBuilder transactionBuilder = new TransactionBuilder(notary);
 
-            // Verify the transaction locally first
-            transactionBuilder.verify(getServiceHub());
-
-            // Sign the transaction
-            SignedTransaction partlySignedTx = getServiceHub().signInitialTransaction(transactionBuilder);
+                int discount = 0;
+                if (coupon != null) {
+                    CouponTokenType couponTokenType = coupon.getState().getData().getCouponTokenType();
+                    addTokensToRedeem(transactionBuilder, ImmutableList.of(coupon), null);
 
+                    discount = couponTokenType.getDiscount();
+                    paidAmount = (int) PurchaseOrderContract.discountedPrice(paidAmount, discount);
+                }
 
+                // Move any cash held on other notaries onto the transaction's notary
+                NotaryBinding.gatherFungibleTokens(this, notary, currencyTokenType, paidAmount);
+                phaseStarted = metrics.time("Buyer", "notaryChange", phaseStarted);
 
-            // Collect signatures from other participants in the transaction
-            SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(partlySignedTx, ImmutableSet.of(session)));
+                PartyAndAmount partyAndAmount = new PartyAndAmount(
+                        sellerParty,
+                        new Amount(paidAmount, currencyTokenType));
 
-            return subFlow(new FinalityFlow(fullySignedTx, ImmutableList.of(session)));
+                // Pay from the smallest token covering the price where there is one, leaving the rest to other purchases
+                addMoveFungibleTokens(
+                        transactionBuilder,
+                        getServiceHub(),
+                        ImmutableList.of(partyAndAmount),
+                        buyerParty,
+                        CashSelection.bestFit(this, lockId, notary, currencyTokenType, paidAmount));
+
+                // The order time is the middle of the transaction's time window
+                Instant orderedAt = getServiceHub().getClock().instant();
+                PurchaseOrderState outputState = new PurchaseOrderState(
+                        sellerParty, buyerParty, saleRequest.getItemId(), saleRequest.getPrice(), discount, orderedAt);
+                transactionBuilder
+                        .addOutputState(outputState, PurchaseOrderContract.ID)
+                        .addCommand(
+                        new PurchaseOrderContract.Commands.Purchase(saleRequest.getPrice(), currencyTokenType),
+                        ImmutableList.of(sellerParty.getOwningKey(), buyerParty.getOwningKey()));
+
+                // Set TimeWindow for the transaction
+                transactionBuilder.setTimeWindow(orderedAt, Duration.ofSeconds(60));
+
+                // subFlow(new IdentitySyncFlow.Send(session, transactionBuilder.toWireTransaction(getServiceHub())));
+
+                phaseStarted = metrics.time("Buyer", "build", phaseStarted);
+
+                // Verify the transaction locally first
+                transactionBuilder.verify(getServiceHub());
+                phaseStarted = metrics.time("Buyer", "verify", phaseStarted);
+
+                // Sign the transaction
+                SignedTransaction partlySignedTx = getServiceHub().signInitialTransaction(transactionBuilder);
+                phaseStarted = metrics.time("Buyer", "sign", phaseStarted);
+
+                // Collect signatures from other participants in the transaction
+                SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(partlySignedTx, ImmutableSet.of(session)));
+                metrics.time("Buyer", "collectSignatures", phaseStarted);
+
+                SignedTransaction finalisedTx = NotaryBinding.finalise(this, fullySignedTx, ImmutableList.of(session));
+                metrics.time("Buyer", "total", started);
+                metrics.increment("Buyer", "completed");
+                return finalisedTx;
+            } catch (FlowException | RuntimeException e) {
+                metrics.increment("Buyer", "failed");
+
+                // Hand the coupon and cash back to other purchases without waiting for the flow to end
+                CouponSelection.release(getServiceHub(), lockId);
+                throw e;
+            }
         }
     }
 
@@ -318,24 +306,10 @@ public class BuyerSellerFlow {
 
     @Suspendable
     public static NonFungibleToken queryNonFungibleTokenByIssuer (ServiceHub serviceHub, Party issuer) {
-        List<StateAndRef<NonFungibleToken>> nonFungibleStateRefs = serviceHub
-                .getVaultService()
-                .queryBy(NonFungibleToken.class)
-                .getStates();
-
-        StateAndRef<NonFungibleToken> match =
-                nonFungibleStateRefs.stream()
-                        .filter(stateAndRef -> {
-                            NonFungibleToken nonFungibleToken = stateAndRef.getState().getData();
-                            TokenType realTokenType = nonFungibleToken.getIssuedTokenType().getTokenType();
-
-                            return (realTokenType instanceof CouponTokenType &&
-                                nonFungibleToken.getIssuer().equals(issuer));
-                        })
-                        .findAny().orElse(null);
+        StateAndRef<CouponToken> match = serviceHub.cordaService(CouponIndexService.class).findCoupon(issuer, null);
 
         return match != null ?
-                (NonFungibleToken) match.getState().getData() :
+                match.getState().getData() :
                 null;
 
     }
@@ -0,0 +1,513 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.template.services.CampaignSchemaV1;
+import com.template.services.CampaignSchemaV1.PersistentCampaign;
+import com.template.services.CampaignSchemaV1.PersistentChunk;
+import com.template.services.CampaignSchemaV1.PersistentRow;
+import com.template.services.CampaignService;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.utilities.ProgressTracker;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.template.services.CampaignSchemaV1.DONE;
+import static com.template.services.CampaignSchemaV1.FAILED;
+import static com.template.services.CampaignSchemaV1.PENDING;
+import static com.template.services.CampaignSchemaV1.STARTED;
+
+/**
+ * Flows driving coupon campaigns run by {@link CampaignService}.
+ */
+public class CampaignFlow {
+    private CampaignFlow() {}
+
+    static final String CHUNK_SIZE_CONFIG = "coupon.campaign.chunkSize";
+    static final String MAX_IN_FLIGHT_CONFIG = "coupon.campaign.maxInFlight";
+
+    static final int DEFAULT_CHUNK_SIZE = 200;
+    static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    // Keeps the persistence context small while storing large campaigns.
+    private static final int FLUSH_INTERVAL = 1000;
+
+    private static final int MAX_ERROR_LENGTH = 1024;
+
+    private static final List<String> RESUMABLE = Arrays.asList(PENDING, FAILED);
+
+    @CordaSerializable
+    public static class CampaignProgress {
+        private final String campaignId;
+        private final int totalRows;
+        private final long issued;
+        private final long failed;
+        private final int totalChunks;
+        private final int chunksDone;
+        private final int chunksInFlight;
+        private final long elapsedMillis;
+        private final double couponsPerSecond;
+
+        public CampaignProgress(String campaignId, int totalRows, long issued, long failed, int totalChunks,
+                                int chunksDone, int chunksInFlight, long elapsedMillis, double couponsPerSecond) {
+            this.campaignId = campaignId;
+            this.totalRows = totalRows;
+            this.issued = issued;
+            this.failed = failed;
+            this.totalChunks = totalChunks;
+            this.chunksDone = chunksDone;
+            this.chunksInFlight = chunksInFlight;
+            this.elapsedMillis = elapsedMillis;
+            this.couponsPerSecond = couponsPerSecond;
+        }
+
+        public String getCampaignId() { return campaignId; }
+
+        public int getTotalRows() { return totalRows; }
+
+        public long getIssued() { return issued; }
+
+        public long getFailed() { return failed; }
+
+        public int getTotalChunks() { return totalChunks; }
+
+        public int getChunksDone() { return chunksDone; }
+
+        public int getChunksInFlight() { return chunksInFlight; }
+
+        public long getElapsedMillis() { return elapsedMillis; }
+
+        public double getCouponsPerSecond() { return couponsPerSecond; }
+
+        public boolean isComplete() { return chunksDone == totalChunks; }
+
+        @Override
+        public String toString() {
+            return String.format("Campaign %s: %d issued, %d failed of %d rows, %d/%d chunks done, %d in flight (%.1f coupons/s)",
+                    campaignId, issued, failed, totalRows, chunksDone, totalChunks, chunksInFlight, couponsPerSecond);
+        }
+    }
+
+    /**
+     * Hands a campaign to {@link CampaignService}, returning the campaign ID.
+     *
+     * The service stores the campaign with {@link StoreCampaign} in the background and launches its chunks once
+     * it is committed. Its progress is available straight away; should storing it fail, the campaign is unknown.
+     *
+     * Chunk size and the number of chunk flows in flight default to the
+     * {@code coupon.campaign.chunkSize} and {@code coupon.campaign.maxInFlight} CorDapp settings.
+     */
+    @StartableByRPC
+    public static class StartCampaign extends FlowLogic<String> {
+        private final ProgressTracker progressTracker = new ProgressTracker();
+
+        private final List<CouponFlow.CouponRequest> requests;
+        private final Integer chunkSize;
+        private final Integer maxInFlight;
+
+        public StartCampaign(List<CouponFlow.CouponRequest> requests, Integer chunkSize, Integer maxInFlight) {
+            this.requests = requests;
+            this.chunkSize = chunkSize;
+            this.maxInFlight = maxInFlight;
+        }
+
+        public StartCampaign(List<CouponFlow.CouponRequest> requests) {
+            this(requests, null, null);
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Override
+        @Suspendable
+        public String call() throws FlowException {
+            int rowsPerChunk = chunkSize != null ? chunkSize : AppConfig.getInt(getServiceHub(), CHUNK_SIZE_CONFIG, DEFAULT_CHUNK_SIZE);
+            int chunksInFlight = maxInFlight != null ? maxInFlight : AppConfig.getInt(getServiceHub(), MAX_IN_FLIGHT_CONFIG, DEFAULT_MAX_IN_FLIGHT);
+            if (rowsPerChunk < 1 || chunksInFlight < 1) {
+                throw new FlowException("Chunk size and chunks in flight must be positive");
+            }
+            if (requests.isEmpty()) {
+                throw new FlowException("Campaign has no recipients");
+            }
+
+            String campaignId = UUID.randomUUID().toString();
+            getServiceHub().cordaService(CampaignService.class).start(campaignId, requests, rowsPerChunk, chunksInFlight);
+            return campaignId;
+        }
+    }
+
+    /**
+     * Stores a campaign with its chunks and rows, returning the chunk IDs. Started by {@link CampaignService},
+     * which launches the chunks once this flow has committed them.
+     */
+    @StartableByService
+    public static class StoreCampaign extends FlowLogic<List<String>> {
+        private final String campaignId;
+        private final List<CouponFlow.CouponRequest> requests;
+        private final int rowsPerChunk;
+        private final int maxInFlight;
+
+        public StoreCampaign(String campaignId, List<CouponFlow.CouponRequest> requests, int rowsPerChunk, int maxInFlight) {
+            this.campaignId = campaignId;
+            this.requests = requests;
+            this.rowsPerChunk = rowsPerChunk;
+            this.maxInFlight = maxInFlight;
+        }
+
+        @Override
+        @Suspendable
+        public List<String> call() throws FlowException {
+            int totalChunks = CampaignSchemaV1.chunkCount(requests.size(), rowsPerChunk);
+            Instant createdAt = getServiceHub().getClock().instant();
+
+            getServiceHub().withEntityManager(entityManager -> {
+                entityManager.persist(new PersistentCampaign(campaignId, requests.size(), totalChunks, maxInFlight, createdAt));
+                for (int chunkIndex = 0; chunkIndex < totalChunks; chunkIndex++) {
+                    entityManager.persist(new PersistentChunk(campaignId, chunkIndex));
+                }
+                for (int row = 0; row < requests.size(); row++) {
+                    CouponFlow.CouponRequest request = requests.get(row);
+                    entityManager.persist(new PersistentRow(campaignId, row / rowsPerChunk, row,
+                            request.getRecipient().getName().toString(), request.getItemId(), request.getDiscount(),
+                            request.getExpiresAt()));
+                    if ((row + 1) % FLUSH_INTERVAL == 0) {
+                        entityManager.flush();
+                        entityManager.clear();
+                    }
+                }
+                entityManager.flush();
+            });
+
+            return IntStream.range(0, totalChunks)
+                    .mapToObj(chunkIndex -> CampaignSchemaV1.chunkId(campaignId, chunkIndex))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Issues the coupons of one campaign chunk and records the outcome of each row.
+     *
+     * A chunk already claimed by another flow, or already done, is left alone. Rows are issued in batches of up
+     * to {@code maxOutputsPerTransaction}, which defaults to the {@code coupon.issue.maxOutputsPerTransaction}
+     * CorDapp setting, and each row's transaction is recorded as it is finalised. Rows which already have a
+     * result are skipped, so a chunk which failed part way and is run again never issues a coupon twice.
+     */
+    @StartableByService
+    public static class IssueCampaignChunk extends FlowLogic<CouponFlow.IssueCouponsResult> {
+        private final ProgressTracker progressTracker = new ProgressTracker();
+
+        private final String chunkId;
+        private final Integer maxOutputsPerTransaction;
+
+        public IssueCampaignChunk(String chunkId, Integer maxOutputsPerTransaction) {
+            this.chunkId = chunkId;
+            this.maxOutputsPerTransaction = maxOutputsPerTransaction;
+        }
+
+        public IssueCampaignChunk(String chunkId) {
+            this(chunkId, null);
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Override
+        @Suspendable
+        public CouponFlow.IssueCouponsResult call() throws FlowException {
+            int batchSize = maxOutputsPerTransaction != null ?
+                    maxOutputsPerTransaction :
+                    AppConfig.getInt(getServiceHub(), CouponFlow.IssueCoupons.MAX_OUTPUTS_CONFIG, CouponFlow.IssueCoupons.DEFAULT_MAX_OUTPUTS_PER_TRANSACTION);
+            if (batchSize < 1) {
+                throw new FlowException("Maximum outputs per transaction must be positive");
+            }
+
+            String runId = getRunId().getUuid().toString();
+
+            String campaignId = getServiceHub().withEntityManager(entityManager -> {
+                PersistentChunk chunk = entityManager.find(PersistentChunk.class, chunkId);
+                if (chunk == null ||
+                        DONE.equals(chunk.getStatus()) ||
+                        (STARTED.equals(chunk.getStatus()) && !runId.equals(chunk.getRunId()))) {
+                    return null;
+                }
+                chunk.start(runId);
+                entityManager.flush();
+                return chunk.getCampaignId();
+            });
+
+            if (campaignId == null) {
+                getLogger().info("Campaign chunk " + chunkId + " is already claimed");
+                return null;
+            }
+
+            List<PersistentRow> rows = getServiceHub().withEntityManager(entityManager -> {
+                return entityManager
+                        .createQuery("SELECT r FROM CouponCampaignRow r WHERE r.chunkId = :chunkId ORDER BY r.rowIndex", PersistentRow.class)
+                        .setParameter("chunkId", chunkId)
+                        .getResultList();
+            });
+
+            // Rows with a result from an earlier run are skipped, and rows whose recipient cannot be resolved
+            // are failed up front.
+            List<String> rowIds = new ArrayList<>();
+            List<String> unknownRowIds = new ArrayList<>();
+            List<CouponFlow.CouponRequest> requests = new ArrayList<>();
+            for (PersistentRow row : rows) {
+                if (row.getError() != null || isRecorded(row.getTxId())) {
+                    continue;
+                }
+                Party recipient = getServiceHub().getIdentityService()
+                        .wellKnownPartyFromX500Name(CordaX500Name.parse(row.getRecipient()));
+                if (recipient == null) {
+                    unknownRowIds.add(row.getRowId());
+                } else {
+                    rowIds.add(row.getRowId());
+                    requests.add(new CouponFlow.CouponRequest(recipient, row.getItemId(), row.getDiscount(), row.getExpiresAt()));
+                }
+            }
+            // Detached entities are not needed across the checkpoints of the issuance below.
+            rows = null;
+
+            getServiceHub().withEntityManager(entityManager -> {
+                for (String rowId : unknownRowIds) {
+                    entityManager.find(PersistentRow.class, rowId).setResult(null, "Unknown recipient");
+                }
+                entityManager.flush();
+            });
+
+            Instant start = getServiceHub().getClock().instant();
+            List<CouponFlow.CouponResult> results = new ArrayList<>();
+            int transactions = 0;
+
+            for (int from = 0; from < requests.size(); from += batchSize) {
+                int to = Math.min(from + batchSize, requests.size());
+                List<String> batchRowIds = new ArrayList<>(rowIds.subList(from, to));
+                CouponFlow.IssueCouponsResult batch = issueBatch(new ArrayList<>(requests.subList(from, to)), batchRowIds);
+
+                getServiceHub().withEntityManager(entityManager -> {
+                    for (CouponFlow.CouponResult couponResult : batch.getResults()) {
+                        PersistentRow row = entityManager.find(PersistentRow.class, batchRowIds.get(couponResult.getRow()));
+                        if (couponResult.isIssued()) {
+                            row.setResult(couponResult.getTxId().toString(), null);
+                        } else if (!isRecorded(row.getTxId())) {
+                            // A transaction recorded before finality failed part way still issued the row.
+                            row.setResult(null, truncate(couponResult.getError()));
+                        }
+                    }
+                    entityManager.flush();
+                });
+
+                for (CouponFlow.CouponResult couponResult : batch.getResults()) {
+                    results.add(new CouponFlow.CouponResult(from + couponResult.getRow(),
+                            couponResult.getTxId(), couponResult.getLinearId(), couponResult.getError()));
+                }
+                transactions += batch.getTransactions();
+            }
+
+            // The chunk's totals cover every row, including those issued by earlier runs.
+            long[] totals = getServiceHub().withEntityManager(entityManager -> {
+                Object[] counts = entityManager
+                        .createQuery("SELECT COUNT(r.txId), COUNT(r.error) FROM CouponCampaignRow r WHERE r.chunkId = :chunkId", Object[].class)
+                        .setParameter("chunkId", chunkId)
+                        .getSingleResult();
+                long issued = ((Number) counts[0]).longValue();
+                long failed = ((Number) counts[1]).longValue();
+
+                entityManager.find(PersistentChunk.class, chunkId).finish((int) issued, (int) failed);
+                entityManager.flush();
+                return new long[]{issued, failed};
+            });
+
+            getServiceHub().cordaService(CampaignService.class).chunkCompleted(campaignId, totals[0], totals[1]);
+
+            long elapsedMillis = Duration.between(start, getServiceHub().getClock().instant()).toMillis();
+            return new CouponFlow.IssueCouponsResult(results, transactions, elapsedMillis);
+        }
+
+        /**
+         * Issues one batch of the chunk's rows, whose IDs line up with {@code requests}.
+         */
+        @Suspendable
+        protected CouponFlow.IssueCouponsResult issueBatch(List<CouponFlow.CouponRequest> requests, List<String> rowIds) throws FlowException {
+            return subFlow(new CampaignCoupons(requests, rowIds));
+        }
+
+        private boolean isRecorded(String txId) {
+            return txId != null && getServiceHub().getValidatedTransactions().getTransaction(SecureHash.parse(txId)) != null;
+        }
+
+        private static String truncate(String error) {
+            return error != null && error.length() > MAX_ERROR_LENGTH ? error.substring(0, MAX_ERROR_LENGTH) : error;
+        }
+    }
+
+    /**
+     * Issues a batch of campaign rows, writing each row's transaction ID before the transaction is finalised,
+     * so the row is known to be issued as soon as its transaction is recorded.
+     */
+    static class CampaignCoupons extends CouponFlow.IssueCoupons {
+        private final List<String> rowIds;
+
+        CampaignCoupons(List<CouponFlow.CouponRequest> requests, List<String> rowIds) {
+            super(requests, requests.size());
+            this.rowIds = rowIds;
+        }
+
+        @Override
+        @Suspendable
+        protected void batchSigned(List<Integer> batchRows, SecureHash txId) {
+            getServiceHub().withEntityManager(entityManager -> {
+                for (Integer row : batchRows) {
+                    entityManager.find(PersistentRow.class, rowIds.get(row)).setResult(txId.toString(), null);
+                }
+                entityManager.flush();
+            });
+        }
+    }
+
+    /**
+     * Marks a chunk failed once the flow with {@code runId} which claimed it has ended in an error, so
+     * {@link ResumeCampaigns} can run it again. Started by {@link CampaignService} after the failed flow has
+     * rolled back; returns whether the chunk was released.
+     */
+    @StartableByService
+    public static class ReleaseCampaignChunk extends FlowLogic<Boolean> {
+        private final String chunkId;
+        private final String runId;
+
+        public ReleaseCampaignChunk(String chunkId, String runId) {
+            this.chunkId = chunkId;
+            this.runId = runId;
+        }
+
+        @Override
+        @Suspendable
+        public Boolean call() throws FlowException {
+            return getServiceHub().withEntityManager(entityManager -> {
+                PersistentChunk chunk = entityManager.find(PersistentChunk.class, chunkId);
+                if (chunk == null || !STARTED.equals(chunk.getStatus()) || !runId.equals(chunk.getRunId())) {
+                    return false;
+                }
+                chunk.fail();
+                entityManager.flush();
+                return true;
+            });
+        }
+    }
+
+    /**
+     * Relaunches the chunks of every campaign which have not been started or which failed, returning the number
+     * of campaigns resumed. Runs when the node starts, and may be run again to retry failed chunks.
+     */
+    @StartableByRPC
+    @StartableByService
+    public static class ResumeCampaigns extends FlowLogic<Integer> {
+        @Override
+        @Suspendable
+        public Integer call() throws FlowException {
+            CampaignService campaignService = getServiceHub().cordaService(CampaignService.class);
+
+            return getServiceHub().withEntityManager(entityManager -> {
+                List<String> campaignIds = entityManager
+                        .createQuery("SELECT DISTINCT k.campaignId FROM CouponCampaignChunk k WHERE k.status IN :statuses", String.class)
+                        .setParameter("statuses", RESUMABLE)
+                        .getResultList();
+
+                for (String campaignId : campaignIds) {
+                    PersistentCampaign campaign = entityManager.find(PersistentCampaign.class, campaignId);
+                    List<PersistentChunk> chunks = entityManager
+                            .createQuery("SELECT k FROM CouponCampaignChunk k WHERE k.campaignId = :campaignId ORDER BY k.chunkIndex", PersistentChunk.class)
+                            .setParameter("campaignId", campaignId)
+                            .getResultList();
+
+                    List<String> pending = chunks.stream()
+                            .filter(chunk -> RESUMABLE.contains(chunk.getStatus()))
+                            .map(PersistentChunk::getChunkId)
+                            .collect(Collectors.toList());
+                    List<PersistentChunk> done = chunks.stream()
+                            .filter(chunk -> DONE.equals(chunk.getStatus()))
+                            .collect(Collectors.toList());
+
+                    campaignService.launch(
+                            campaignId,
+                            campaign.getTotalRows(),
+                            campaign.getTotalChunks(),
+                            campaign.getMaxInFlight(),
+                            pending,
+                            done.stream().mapToLong(PersistentChunk::getIssued).sum(),
+                            done.stream().mapToLong(PersistentChunk::getFailed).sum(),
+                            done.size());
+                    getLogger().info("Resumed campaign " + campaignId + " with " + pending.size() + " pending or failed chunks");
+                }
+
+                return campaignIds.size();
+            });
+        }
+    }
+
+    /**
+     * Returns the progress of a campaign: live counters while this node runs it,
+     * otherwise the totals recorded for its finished chunks.
+     */
+    @StartableByRPC
+    public static class CampaignStatus extends FlowLogic<CampaignProgress> {
+        private final String campaignId;
+
+        public CampaignStatus(String campaignId) {
+            this.campaignId = campaignId;
+        }
+
+        @Override
+        @Suspendable
+        public CampaignProgress call() throws FlowException {
+            CampaignProgress progress = getServiceHub().cordaService(CampaignService.class).getProgress(campaignId);
+            if (progress != null) {
+                return progress;
+            }
+
+            progress = getServiceHub().withEntityManager(entityManager -> {
+                PersistentCampaign campaign = entityManager.find(PersistentCampaign.class, campaignId);
+                if (campaign == null) {
+                    return null;
+                }
+
+                Object[] totals = entityManager
+                        .createQuery("SELECT COUNT(k), SUM(k.issued), SUM(k.failed) FROM CouponCampaignChunk k " +
+                                "WHERE k.campaignId = :campaignId AND k.status = :status", Object[].class)
+                        .setParameter("campaignId", campaignId)
+                        .setParameter("status", DONE)
+                        .getSingleResult();
+
+                return new CampaignProgress(
+                        campaignId,
+                        campaign.getTotalRows(),
+                        totals[1] != null ? ((Number) totals[1]).longValue() : 0,
+                        totals[2] != null ? ((Number) totals[2]).longValue() : 0,
+                        campaign.getTotalChunks(),
+                        ((Number) totals[0]).intValue(),
+                        0,
+                        0,
+                        0);
+            });
+
+            if (progress == null) {
+                throw new FlowException("Unknown campaign " + campaignId);
+            }
+            return progress;
+        }
+    }
+}
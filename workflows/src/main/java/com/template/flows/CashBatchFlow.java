@@ -0,0 +1,192 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.Lists;
+import com.r3.corda.lib.tokens.contracts.states.AbstractToken;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import com.r3.corda.lib.tokens.contracts.types.TokenType;
+import com.r3.corda.lib.tokens.contracts.utilities.TransactionUtilitiesKt;
+import com.r3.corda.lib.tokens.workflows.types.PartyAndAmount;
+import net.corda.core.contracts.Amount;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.r3.corda.lib.tokens.workflows.flows.issue.IssueTokensUtilitiesKt.addIssueTokens;
+import static com.r3.corda.lib.tokens.workflows.flows.move.MoveTokensUtilitiesKt.addMoveFungibleTokens;
+
+/**
+ * List-based variants of {@link IssueCash} and {@link MoveCash} which pay many recipients per transaction.
+ *
+ * Recipients are split into batches of at most {@code cash.batch.maxOutputsPerTransaction} (or the
+ * given cap), and each batch is issued or moved in a single transaction.
+ */
+public class CashBatchFlow {
+    private CashBatchFlow() {}
+
+    static final String MAX_OUTPUTS_CONFIG = "cash.batch.maxOutputsPerTransaction";
+
+    static final int DEFAULT_MAX_OUTPUTS_PER_TRANSACTION = 200;
+
+    private static int batchSize(FlowLogic<?> flow, Integer maxOutputsPerTransaction) throws FlowException {
+        int batchSize = maxOutputsPerTransaction != null ?
+                maxOutputsPerTransaction :
+                AppConfig.getInt(flow.getServiceHub(), MAX_OUTPUTS_CONFIG, DEFAULT_MAX_OUTPUTS_PER_TRANSACTION);
+        if (batchSize < 1) {
+            throw new FlowException("Maximum outputs per transaction must be positive");
+        }
+        return batchSize;
+    }
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class IssueBatch extends FlowLogic<List<SecureHash>> {
+        private final ProgressTracker progressTracker = new ProgressTracker();
+
+        private final List<PartyAndAmount<TokenType>> payouts;
+        private final Integer maxOutputsPerTransaction;
+
+        public IssueBatch(List<PartyAndAmount<TokenType>> payouts, Integer maxOutputsPerTransaction) {
+            this.payouts = payouts;
+            this.maxOutputsPerTransaction = maxOutputsPerTransaction;
+        }
+
+        public IssueBatch(List<PartyAndAmount<TokenType>> payouts) {
+            this(payouts, null);
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Override
+        @Suspendable
+        public List<SecureHash> call() throws FlowException {
+            List<SecureHash> txIds = new ArrayList<>();
+
+            for (List<PartyAndAmount<TokenType>> batch : Lists.partition(payouts, batchSize(this, maxOutputsPerTransaction))) {
+                Party notary = NotaryBinding.selectNotary(getServiceHub(), null);
+
+                List<AbstractToken> tokens = new ArrayList<>();
+                for (PartyAndAmount<TokenType> payout : batch) {
+                    TokenType currencyType = payout.getAmount().getToken();
+                    IssuedTokenType issuedCurrency = new IssuedTokenType(getOurIdentity(), currencyType);
+                    tokens.add(new FungibleToken(
+                            new Amount<>(payout.getAmount().getQuantity(), issuedCurrency),
+                            payout.getParty(),
+                            TransactionUtilitiesKt.getAttachmentIdForGenericParam(currencyType)));
+                }
+
+                TransactionBuilder transactionBuilder = new TransactionBuilder(notary);
+                addIssueTokens(transactionBuilder, tokens);
+
+                txIds.add(finalise(this, transactionBuilder, batch));
+            }
+
+            return txIds;
+        }
+    }
+
+    @InitiatedBy(IssueBatch.class)
+    public static class IssueBatchResponder extends FlowLogic<SignedTransaction> {
+        private final FlowSession session;
+
+        public IssueBatchResponder(FlowSession session) {
+            this.session = session;
+        }
+
+        @Override
+        @Suspendable
+        public SignedTransaction call() throws FlowException {
+            return subFlow(new ReceiveFinalityFlow(session));
+        }
+    }
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class MoveBatch extends FlowLogic<List<SecureHash>> {
+        private final ProgressTracker progressTracker = new ProgressTracker();
+
+        private final List<PartyAndAmount<TokenType>> payouts;
+        private final Integer maxOutputsPerTransaction;
+
+        public MoveBatch(List<PartyAndAmount<TokenType>> payouts, Integer maxOutputsPerTransaction) {
+            this.payouts = payouts;
+            this.maxOutputsPerTransaction = maxOutputsPerTransaction;
+        }
+
+        public MoveBatch(List<PartyAndAmount<TokenType>> payouts) {
+            this(payouts, null);
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Override
+        @Suspendable
+        public List<SecureHash> call() throws FlowException {
+            List<SecureHash> txIds = new ArrayList<>();
+
+            for (List<PartyAndAmount<TokenType>> batch : Lists.partition(payouts, batchSize(this, maxOutputsPerTransaction))) {
+                Map<TokenType, Long> totals = new LinkedHashMap<>();
+                batch.forEach(payout -> totals.merge(payout.getAmount().getToken(), payout.getAmount().getQuantity(), Long::sum));
+
+                // Pay from the notary holding most of the first currency, moving any shortfall onto it
+                Party notary = NotaryBinding.notaryForFungibleTokens(this, batch.get(0).getAmount().getToken());
+                for (Map.Entry<TokenType, Long> total : totals.entrySet()) {
+                    NotaryBinding.gatherFungibleTokens(this, notary, total.getKey(), total.getValue());
+                }
+
+                TransactionBuilder transactionBuilder = new TransactionBuilder(notary);
+
+                // It's important NOT to use IssuedTokenType here, so tokens from any issuer can be selected
+                addMoveFungibleTokens(transactionBuilder, getServiceHub(), batch, getOurIdentity(), NotaryBinding.onNotary(notary));
+
+                txIds.add(finalise(this, transactionBuilder, batch));
+            }
+
+            return txIds;
+        }
+    }
+
+    @InitiatedBy(MoveBatch.class)
+    public static class MoveBatchResponder extends FlowLogic<SignedTransaction> {
+        private final FlowSession session;
+
+        public MoveBatchResponder(FlowSession session) {
+            this.session = session;
+        }
+
+        @Override
+        @Suspendable
+        public SignedTransaction call() throws FlowException {
+            return subFlow(new ReceiveFinalityFlow(session));
+        }
+    }
+
+    /**
+     * Verifies and signs the batch transaction, then notarises it and sends it to every recipient of the batch.
+     */
+    @Suspendable
+    private static SecureHash finalise(FlowLogic<?> flow, TransactionBuilder transactionBuilder, List<PartyAndAmount<TokenType>> batch) throws FlowException {
+        Set<AbstractParty> recipients = new LinkedHashSet<>();
+        batch.forEach(payout -> recipients.add(payout.getParty()));
+
+        return NotaryBinding.signAndFinalise(flow, transactionBuilder, recipients).getId();
+    }
+}
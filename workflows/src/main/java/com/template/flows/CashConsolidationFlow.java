@@ -0,0 +1,241 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.r3.corda.lib.tokens.contracts.internal.schemas.PersistentFungibleToken;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import com.r3.corda.lib.tokens.contracts.types.TokenType;
+import com.r3.corda.lib.tokens.money.FiatCurrency;
+import com.template.services.FlowMetricsService;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.flows.StartableByService;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.StatesNotAvailableException;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.*;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.NonEmptySet;
+import net.corda.core.utilities.ProgressTracker;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+import static com.r3.corda.lib.tokens.workflows.flows.move.MoveTokensUtilitiesKt.addMoveTokens;
+import static com.r3.corda.lib.tokens.workflows.utilities.QueryUtilitiesKt.heldTokenAmountCriteria;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Merges the many small fungible tokens a holder collects from change and payments into a few large ones,
+ * so paying selects fewer inputs and the vault holds fewer states.
+ *
+ * Tokens are merged per issuer and notary once we hold at least {@code cash.consolidation.threshold} of them
+ * from one issuer, smallest first and up to {@code cash.consolidation.maxInputsPerTransaction} in a transaction.
+ * Tokens soft locked by other flows, such as a payment being built, are left alone.
+ * {@link com.template.services.CashConsolidationService} can run this in the background.
+ */
+public class CashConsolidationFlow {
+    private CashConsolidationFlow() {}
+
+    static final String THRESHOLD_CONFIG = "cash.consolidation.threshold";
+    static final String MAX_INPUTS_CONFIG = "cash.consolidation.maxInputsPerTransaction";
+    static final String MAX_TRANSACTIONS_CONFIG = "cash.consolidation.maxTransactionsPerRun";
+
+    static final int DEFAULT_THRESHOLD = 20;
+    static final int DEFAULT_MAX_INPUTS = 100;
+    static final int DEFAULT_MAX_TRANSACTIONS = 20;
+
+    @CordaSerializable
+    public static class ConsolidationResult {
+        private final long merged;
+        private final long created;
+        private final int failed;
+        private final long elapsedMillis;
+
+        public ConsolidationResult(long merged, long created, int failed, long elapsedMillis) {
+            this.merged = merged;
+            this.created = created;
+            this.failed = failed;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * Tokens consumed by the consolidation.
+         */
+        public long getMerged() { return merged; }
+
+        /**
+         * Tokens created in their place, one per transaction.
+         */
+        public long getCreated() { return created; }
+
+        /**
+         * Transactions which failed, leaving their tokens as they were for the next run.
+         */
+        public int getFailed() { return failed; }
+
+        public long getElapsedMillis() { return elapsedMillis; }
+
+        @Override
+        public String toString() {
+            return String.format("Merged %d tokens into %d, %d transactions failed, in %d ms", merged, created, failed, elapsedMillis);
+        }
+    }
+
+    /**
+     * Consolidates the tokens of {@code currency} we hold from each issuer of which we hold at least {@code threshold}
+     * unlocked tokens. The threshold and inputs per transaction default to the {@code cash.consolidation.threshold}
+     * and {@code cash.consolidation.maxInputsPerTransaction} CorDapp settings.
+     */
+    @StartableByRPC
+    @StartableByService
+    public static class ConsolidateCash extends FlowLogic<ConsolidationResult> {
+        private final ProgressTracker progressTracker = new ProgressTracker();
+
+        private final String currency;
+        private final Integer threshold;
+        private final Integer maxInputs;
+
+        public ConsolidateCash(String currency, Integer threshold, Integer maxInputs) {
+            this.currency = currency;
+            this.threshold = threshold;
+            this.maxInputs = maxInputs;
+        }
+
+        public ConsolidateCash(String currency) {
+            this(currency, null, null);
+        }
+
+        public ConsolidateCash() {
+            this("JPY");
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Override
+        @Suspendable
+        public ConsolidationResult call() throws FlowException {
+            int minTokens = threshold != null ? threshold : AppConfig.getInt(getServiceHub(), THRESHOLD_CONFIG, DEFAULT_THRESHOLD);
+            int inputs = maxInputs != null ? maxInputs : AppConfig.getInt(getServiceHub(), MAX_INPUTS_CONFIG, DEFAULT_MAX_INPUTS);
+            int maxTransactions = AppConfig.getInt(getServiceHub(), MAX_TRANSACTIONS_CONFIG, DEFAULT_MAX_TRANSACTIONS);
+            if (minTokens < 2 || inputs < 2) {
+                throw new FlowException("The threshold and inputs per transaction must be at least two");
+            }
+
+            Instant started = getServiceHub().getClock().instant();
+            TokenType tokenType = FiatCurrency.Companion.getInstance(currency);
+            UUID lockId = getRunId().getUuid();
+
+            // Tokens we lock stay locked until we finish, so ones which could not be merged are not fetched again.
+            QueryCriteria unlocked = heldTokenAmountCriteria(tokenType, getOurIdentity())
+                    .and(new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED, null, null, null,
+                            new QueryCriteria.SoftLockingCondition(QueryCriteria.SoftLockingType.UNLOCKED_ONLY, ImmutableList.of())));
+            Sort smallestFirst = new Sort(ImmutableList.of(new Sort.SortColumn(
+                    new SortAttribute.Custom(PersistentFungibleToken.class, "amount"), Sort.Direction.ASC)));
+
+            long merged = 0;
+            long created = 0;
+            int failed = 0;
+            int transactions = 0;
+            for (Party issuer : fragmentedIssuers(unlocked, minTokens)) {
+                QueryCriteria fromIssuer = unlocked.and(new QueryCriteria.VaultCustomQueryCriteria(
+                        Builder.equal(ReportFlow.tokenField("issuer"), issuer)));
+
+                boolean progressed = true;
+                while (progressed && transactions < maxTransactions) {
+                    Vault.Page<FungibleToken> page = getServiceHub().getVaultService()
+                            .queryBy(FungibleToken.class, fromIssuer, new PageSpecification(DEFAULT_PAGE_NUM, inputs), smallestFirst);
+                    if (page.getTotalStatesAvailable() < minTokens) {
+                        break;
+                    }
+
+                    // One transaction per notary, as a transaction's inputs must share one
+                    Map<Party, List<StateAndRef<FungibleToken>>> byNotary = new LinkedHashMap<>();
+                    for (StateAndRef<FungibleToken> token : page.getStates()) {
+                        try {
+                            getServiceHub().getVaultService().softLockReserve(lockId, NonEmptySet.of(token.getRef()));
+                        } catch (StatesNotAvailableException e) {
+                            // Taken by a payment since we queried.
+                            continue;
+                        }
+                        byNotary.computeIfAbsent(token.getState().getNotary(), k -> new ArrayList<>()).add(token);
+                    }
+
+                    progressed = false;
+                    for (List<StateAndRef<FungibleToken>> group : byNotary.values()) {
+                        if (group.size() < 2 || transactions >= maxTransactions) {
+                            continue;
+                        }
+                        transactions++;
+                        try {
+                            merge(group);
+                            merged += group.size();
+                            created++;
+                            progressed = true;
+                        } catch (FlowException e) {
+                            getLogger().warn("Failed to merge " + group.size() + " tokens from " + issuer, e);
+                            failed++;
+                        }
+                    }
+                }
+            }
+
+            ConsolidationResult result = new ConsolidationResult(merged, created, failed,
+                    Duration.between(started, getServiceHub().getClock().instant()).toMillis());
+            FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+            metrics.update("ConsolidateCash", "merged", merged);
+            metrics.update("ConsolidateCash", "created", created);
+            getLogger().info(result.toString());
+            return result;
+        }
+
+        /**
+         * The issuers of which we hold at least {@code minTokens} of the tokens matching {@code criteria},
+         * counted by the database.
+         */
+        @Suspendable
+        private List<Party> fragmentedIssuers(QueryCriteria criteria, int minTokens) {
+            List<Object> counts = getServiceHub().getVaultService().queryBy(FungibleToken.class,
+                    criteria.and(new QueryCriteria.VaultCustomQueryCriteria(ReportFlow.count(
+                            ReportFlow.tokenField("amount"), ImmutableList.of(ReportFlow.tokenField("issuer"))))))
+                    .getOtherResults();
+
+            // Rows of count then issuer
+            List<Party> issuers = new ArrayList<>();
+            for (int i = 0; i + 1 < counts.size(); i += 2) {
+                if (((Number) counts.get(i)).longValue() >= minTokens) {
+                    issuers.add((Party) counts.get(i + 1));
+                }
+            }
+            return issuers;
+        }
+
+        /**
+         * Moves the tokens, all from one issuer on one notary, into a single token held by us.
+         */
+        @Suspendable
+        private void merge(List<StateAndRef<FungibleToken>> tokens) throws FlowException {
+            FungibleToken first = tokens.get(0).getState().getData();
+            IssuedTokenType issuedTokenType = first.getIssuedTokenType();
+            long total = 0;
+            for (StateAndRef<FungibleToken> token : tokens) {
+                total += token.getState().getData().getAmount().getQuantity();
+            }
+
+            FungibleToken consolidated = new FungibleToken(new Amount<>(total, issuedTokenType), getOurIdentity(), first.getTokenTypeJarHash());
+            TransactionBuilder transactionBuilder = new TransactionBuilder(tokens.get(0).getState().getNotary());
+            addMoveTokens(transactionBuilder, tokens, ImmutableList.of(consolidated));
+
+            NotaryBinding.signAndFinalise(this, transactionBuilder, ImmutableList.of());
+        }
+    }
+}
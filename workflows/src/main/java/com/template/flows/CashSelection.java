@@ -0,0 +1,64 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.r3.corda.lib.tokens.contracts.internal.schemas.PersistentFungibleToken;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.TokenType;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.StatesNotAvailableException;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.*;
+import net.corda.core.utilities.NonEmptySet;
+
+import java.util.List;
+import java.util.UUID;
+
+import static com.r3.corda.lib.tokens.workflows.utilities.QueryUtilitiesKt.heldTokenAmountCriteria;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Chooses which of our cash tokens pays for a purchase, so concurrent payments spend different tokens.
+ *
+ * The best fit is the smallest unlocked token on the notary covering the whole payment. Spending it leaves
+ * larger tokens for other payments and makes the least change, which suits a wallet shaped into equal
+ * denominations by {@link WalletShapingFlow}. The token is soft locked under the flow's lock id, the one the
+ * token SDK's selection uses, so it can be released with {@link CouponSelection#release}.
+ */
+public class CashSelection {
+    private CashSelection() {}
+
+    // Candidates fetched per query; only the first unlocked one is used.
+    private static final int CANDIDATES = 10;
+
+    /**
+     * Returns criteria for {@code addMoveFungibleTokens} on {@code notary} restricted to the best fitting token,
+     * soft locked under {@code lockId}, or every token on the notary when no single token covers {@code quantity}.
+     */
+    @Suspendable
+    public static QueryCriteria bestFit(FlowLogic<?> flow, UUID lockId, Party notary, TokenType tokenType, long quantity) {
+        QueryCriteria covering = heldTokenAmountCriteria(tokenType, flow.getOurIdentity())
+                .and(new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED, null, null, ImmutableList.of(notary),
+                        new QueryCriteria.SoftLockingCondition(QueryCriteria.SoftLockingType.UNLOCKED_ONLY, ImmutableList.of())))
+                .and(new QueryCriteria.VaultCustomQueryCriteria(
+                        Builder.greaterThanOrEqual(ReportFlow.tokenField("amount"), quantity)));
+        Sort smallestFirst = new Sort(ImmutableList.of(new Sort.SortColumn(
+                new SortAttribute.Custom(PersistentFungibleToken.class, "amount"), Sort.Direction.ASC)));
+
+        List<StateAndRef<FungibleToken>> candidates = flow.getServiceHub().getVaultService()
+                .queryBy(FungibleToken.class, covering, new PageSpecification(DEFAULT_PAGE_NUM, CANDIDATES), smallestFirst)
+                .getStates();
+        for (StateAndRef<FungibleToken> candidate : candidates) {
+            try {
+                flow.getServiceHub().getVaultService().softLockReserve(lockId, NonEmptySet.of(candidate.getRef()));
+                return new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED, null, ImmutableList.of(candidate.getRef()));
+            } catch (StatesNotAvailableException e) {
+                // Locked by another payment since the query ran, try the next one.
+            }
+        }
+
+        return NotaryBinding.onNotary(notary);
+    }
+}
@@ -0,0 +1,266 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import com.template.schemas.CouponSchemaV1;
+import com.template.services.FlowMetricsService;
+import com.template.states.CouponToken;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.TimeWindow;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.StatesNotAvailableException;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.NonEmptySet;
+import net.corda.core.utilities.ProgressTracker;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+import static com.r3.corda.lib.tokens.workflows.flows.redeem.RedeemFlowUtilitiesKt.addTokensToRedeem;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Redeems the expired coupons we hold, so unused coupons do not pile up in the vault.
+ *
+ * Expired coupons are swept in batches of up to {@code coupon.expiry.batchSize}, each batch redeemed in one
+ * transaction per issuer and notary which the issuer countersigns. {@link com.template.services.CouponExpiryService}
+ * starts a sweep in the node's off-peak hours.
+ */
+public class CouponExpiryFlow {
+    private CouponExpiryFlow() {}
+
+    static final String BATCH_SIZE_CONFIG = "coupon.expiry.batchSize";
+    static final String MAX_BATCHES_CONFIG = "coupon.expiry.maxBatchesPerSweep";
+
+    static final int DEFAULT_BATCH_SIZE = 200;
+    static final int DEFAULT_MAX_BATCHES = 50;
+
+    @CordaSerializable
+    public static class SweepResult {
+        private final long expired;
+        private final long failed;
+        private final int transactions;
+        private final long elapsedMillis;
+
+        public SweepResult(long expired, long failed, int transactions, long elapsedMillis) {
+            this.expired = expired;
+            this.failed = failed;
+            this.transactions = transactions;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public long getExpired() { return expired; }
+
+        /**
+         * Coupons whose redemption failed, such as when their issuer was unreachable. They are retried by the next sweep.
+         */
+        public long getFailed() { return failed; }
+
+        public int getTransactions() { return transactions; }
+
+        public long getElapsedMillis() { return elapsedMillis; }
+
+        @Override
+        public String toString() {
+            return String.format("Expired %d coupons in %d transactions, %d failed, in %d ms", expired, transactions, failed, elapsedMillis);
+        }
+    }
+
+    /**
+     * Redeems up to {@code maxBatches} batches of our coupons which have expired, oldest expiry first.
+     * The batch size and number of batches default to the {@code coupon.expiry.batchSize} and
+     * {@code coupon.expiry.maxBatchesPerSweep} CorDapp settings.
+     */
+    @StartableByRPC
+    @StartableByService
+    public static class SweepExpiredCoupons extends FlowLogic<SweepResult> {
+        private final ProgressTracker progressTracker = new ProgressTracker();
+
+        private final Integer batchSize;
+        private final Integer maxBatches;
+
+        public SweepExpiredCoupons(Integer batchSize, Integer maxBatches) {
+            this.batchSize = batchSize;
+            this.maxBatches = maxBatches;
+        }
+
+        public SweepExpiredCoupons() {
+            this(null, null);
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Override
+        @Suspendable
+        public SweepResult call() throws FlowException {
+            int size = batchSize != null ? batchSize : AppConfig.getInt(getServiceHub(), BATCH_SIZE_CONFIG, DEFAULT_BATCH_SIZE);
+            int batches = maxBatches != null ? maxBatches : AppConfig.getInt(getServiceHub(), MAX_BATCHES_CONFIG, DEFAULT_MAX_BATCHES);
+            if (size < 1 || batches < 1) {
+                throw new FlowException("Batch size and number of batches must be positive");
+            }
+
+            Instant now = getServiceHub().getClock().instant();
+            UUID lockId = getRunId().getUuid();
+
+            // Coupons we lock stay locked until the sweep ends, so a batch that fails is not fetched again.
+            QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED, null, null, null,
+                    new QueryCriteria.SoftLockingCondition(QueryCriteria.SoftLockingType.UNLOCKED_ONLY, ImmutableList.of()))
+                    .and(CouponQuery.criteria(null, getOurIdentity(), null))
+                    .and(CouponQuery.expired(now));
+            Sort oldestExpiryFirst = new Sort(ImmutableList.of(new Sort.SortColumn(
+                    new SortAttribute.Custom(CouponSchemaV1.PersistentCoupon.class, "expiresAt"),
+                    Sort.Direction.ASC)));
+
+            long expired = 0;
+            long failed = 0;
+            int transactions = 0;
+            for (int batch = 0; batch < batches; batch++) {
+                List<StateAndRef<CouponToken>> candidates = getServiceHub().getVaultService()
+                        .queryBy(CouponToken.class, criteria, new PageSpecification(DEFAULT_PAGE_NUM, size), oldestExpiryFirst)
+                        .getStates();
+                if (candidates.isEmpty()) {
+                    break;
+                }
+
+                // One transaction per issuer and notary, as each needs that issuer's signature and that notary
+                Map<List<Object>, List<StateAndRef<CouponToken>>> groups = new LinkedHashMap<>();
+                for (StateAndRef<CouponToken> coupon : candidates) {
+                    try {
+                        getServiceHub().getVaultService().softLockReserve(lockId, NonEmptySet.of(coupon.getRef()));
+                    } catch (StatesNotAvailableException e) {
+                        // Being redeemed by another flow.
+                        continue;
+                    }
+                    groups.computeIfAbsent(Arrays.asList(coupon.getState().getData().getIssuer(), coupon.getState().getNotary()),
+                            k -> new ArrayList<>()).add(coupon);
+                }
+
+                for (List<StateAndRef<CouponToken>> group : groups.values()) {
+                    try {
+                        subFlow(new ExpireCoupons(group, now));
+                        expired += group.size();
+                        transactions++;
+                    } catch (FlowException e) {
+                        getLogger().warn("Failed to expire " + group.size() + " coupons from " + group.get(0).getState().getData().getIssuer(), e);
+                        failed += group.size();
+                    }
+                }
+            }
+
+            SweepResult result = new SweepResult(expired, failed, transactions,
+                    Duration.between(now, getServiceHub().getClock().instant()).toMillis());
+            FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+            metrics.update("SweepExpiredCoupons", "expired", expired);
+            metrics.update("SweepExpiredCoupons", "failed", failed);
+            getLogger().info(result.toString());
+            return result;
+        }
+    }
+
+    /**
+     * Redeems coupons from one issuer on one notary which expired by {@code expiredBy}, in a single transaction
+     * whose time window starts at {@code expiredBy} so the issuer can check they had expired.
+     */
+    @InitiatingFlow
+    public static class ExpireCoupons extends FlowLogic<SignedTransaction> {
+        private final List<StateAndRef<CouponToken>> coupons;
+        private final Instant expiredBy;
+
+        public ExpireCoupons(List<StateAndRef<CouponToken>> coupons, Instant expiredBy) {
+            this.coupons = coupons;
+            this.expiredBy = expiredBy;
+        }
+
+        @Override
+        @Suspendable
+        public SignedTransaction call() throws FlowException {
+            Party issuer = coupons.get(0).getState().getData().getIssuer();
+            TransactionBuilder transactionBuilder = new TransactionBuilder(coupons.get(0).getState().getNotary());
+
+            // The token contract wants one redeem command per issued token type
+            Map<IssuedTokenType, List<StateAndRef<CouponToken>>> byTokenType = new LinkedHashMap<>();
+            for (StateAndRef<CouponToken> coupon : coupons) {
+                byTokenType.computeIfAbsent(coupon.getState().getData().getIssuedTokenType(), k -> new ArrayList<>()).add(coupon);
+            }
+            for (List<StateAndRef<CouponToken>> sameType : byTokenType.values()) {
+                addTokensToRedeem(transactionBuilder, sameType, null);
+            }
+            transactionBuilder.setTimeWindow(TimeWindow.fromOnly(expiredBy));
+
+            transactionBuilder.verify(getServiceHub());
+            SignedTransaction partlySignedTx = getServiceHub().signInitialTransaction(transactionBuilder);
+
+            FlowSession issuerSession = initiateFlow(issuer);
+            SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(partlySignedTx, ImmutableList.of(issuerSession)));
+            return NotaryBinding.finalise(this, fullySignedTx, ImmutableList.of(issuerSession));
+        }
+    }
+
+    @InitiatedBy(ExpireCoupons.class)
+    public static class ExpireCouponsHandler extends FlowLogic<SignedTransaction> {
+        private final FlowSession session;
+
+        public ExpireCouponsHandler(FlowSession session) {
+            this.session = session;
+        }
+
+        @Override
+        @Suspendable
+        public SignedTransaction call() throws FlowException {
+            Party ourIdentity = getOurIdentity();
+
+            class SignExpiryFlow extends SignTransactionFlow {
+                private SignExpiryFlow(FlowSession otherSession, ProgressTracker progressTracker) {
+                    super(otherSession, progressTracker);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) throws FlowException {
+                    if (!stx.getTx().getOutputs().isEmpty()) {
+                        throw new FlowException("Expiring coupons must not create any states");
+                    }
+                    TimeWindow timeWindow = stx.getTx().getTimeWindow();
+                    if (timeWindow == null || timeWindow.getFromTime() == null) {
+                        throw new FlowException("Expiring coupons needs a time window from when they had expired");
+                    }
+
+                    LedgerTransaction ledgerTx;
+                    try {
+                        ledgerTx = stx.toLedgerTransaction(getServiceHub(), false);
+                    } catch (Exception e) {
+                        throw new FlowException("Cannot resolve the coupons to expire", e);
+                    }
+
+                    // Only coupons we issued which had expired when the transaction is notarised
+                    for (ContractState input : ledgerTx.getInputStates()) {
+                        if (!(input instanceof CouponToken) || !((CouponToken) input).getIssuer().equals(ourIdentity)) {
+                            throw new FlowException("Only coupons we issued can be expired");
+                        }
+                        if (!((CouponToken) input).getCouponTokenType().isExpired(timeWindow.getFromTime())) {
+                            throw new FlowException("Coupon " + ((CouponToken) input).getLinearId() + " has not expired");
+                        }
+                    }
+                }
+            }
+
+            SecureHash txId = subFlow(new SignExpiryFlow(session, SignTransactionFlow.tracker())).getId();
+            return subFlow(new ReceiveFinalityFlow(session, txId));
+        }
+    }
+}
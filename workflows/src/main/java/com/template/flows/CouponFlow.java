@@ -1,32 +1,38 @@
 package com.template.flows;
 
 import co.paralleluniverse.fibers.Suspendable;
-import com.google.common.collect.ComputationException;
 import com.google.common.collect.ImmutableList;
-import com.r3.corda.lib.tokens.contracts.states.NonFungibleToken;
+import com.google.common.collect.Lists;
 import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
-import com.r3.corda.lib.tokens.contracts.types.TokenType;
 import com.r3.corda.lib.tokens.contracts.utilities.TransactionUtilitiesKt;
-import com.r3.corda.lib.tokens.workflows.flows.redeem.RedeemNonFungibleTokensFlow;
-import com.r3.corda.lib.tokens.workflows.flows.redeem.RedeemTokensFlow;
-import com.r3.corda.lib.tokens.workflows.flows.redeem.RedeemTokensFlowHandler;
-import com.r3.corda.lib.tokens.workflows.flows.rpc.IssueTokens;
-import com.r3.corda.lib.tokens.workflows.flows.rpc.RedeemNonFungibleTokens;
-import com.r3.corda.lib.tokens.workflows.flows.rpc.RedeemNonFungibleTokensHandler;
+import com.template.services.FlowMetricsService;
+import com.template.states.CouponToken;
 import com.template.states.CouponTokenType;
 import net.corda.core.contracts.ContractState;
 import net.corda.core.contracts.StateAndRef;
 import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
 import net.corda.core.flows.*;
 import net.corda.core.identity.Party;
-import net.corda.core.node.services.Vault;
-import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.ConstructorForDeserialization;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.LedgerTransaction;
 import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
 import net.corda.core.utilities.ProgressTracker;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
+import static com.r3.corda.lib.tokens.workflows.flows.issue.IssueTokensUtilitiesKt.addIssueTokens;
+import static com.r3.corda.lib.tokens.workflows.flows.redeem.RedeemFlowUtilitiesKt.addTokensToRedeem;
+
 public class CouponFlow {
     private CouponFlow() {}
 
@@ -45,28 +51,29 @@ public class CouponFlow {
 
         private final Integer discount;
 
-        public IssueCoupon(Party to, String itemId, Integer discount) {
+        private final Instant expiresAt;
+
+        public IssueCoupon(Party to, String itemId, Integer discount, Instant expiresAt) {
             this.recipient = to;
             this.itemId = itemId;
             this.discount = discount;
+            this.expiresAt = expiresAt;
+        }
+
+        public IssueCoupon(Party to, String itemId, Integer discount) {
+            this(to, itemId, discount, null);
         }
 
         public IssueCoupon(Party to, String itemId) {
-            this.recipient = to;
-            this.itemId = itemId;
-            this.discount = 10;
+            this(to, itemId, 10);
         }
 
         public IssueCoupon(Party to, Integer discount) {
-            this.recipient = to;
-            this.itemId = DEFAULT_ITEM;
-            this.discount = discount;
+            this(to, DEFAULT_ITEM, discount);
         }
 
         public IssueCoupon(Party to) {
-            this.recipient = to;
-            this.itemId = DEFAULT_ITEM;
-            this.discount = 10;
+            this(to, DEFAULT_ITEM, 10);
         }
 
         @Override
@@ -80,17 +87,300 @@ public class CouponFlow {
             if (discount < 0 || discount >= 100) {
                 throw new FlowException("Discount rate must be a positve integer smaller than 100");
             }
+            if (expiresAt != null && !expiresAt.isAfter(getServiceHub().getClock().instant())) {
+                throw new FlowException("Coupon must expire in the future");
+            }
 
-            CouponTokenType tokenType = new CouponTokenType(itemId, discount);
+            CouponTokenType tokenType = new CouponTokenType(itemId, discount, expiresAt);
             IssuedTokenType issuedTokenType = new IssuedTokenType(getOurIdentity(), tokenType);
 
-            NonFungibleToken nonFungibleToken = new NonFungibleToken(
+            CouponToken couponToken = new CouponToken(
                     issuedTokenType,
                     recipient,
                     new UniqueIdentifier(),
                     TransactionUtilitiesKt.getAttachmentIdForGenericParam(tokenType));
 
-            return subFlow(new IssueTokens(ImmutableList.of(nonFungibleToken)));
+            // Issuance has no inputs, so the notary comes from the selection policy
+            TransactionBuilder transactionBuilder = new TransactionBuilder(
+                    NotaryBinding.selectNotary(getServiceHub(), notaryKey(getOurIdentity(), itemId)));
+            addIssueTokens(transactionBuilder, ImmutableList.of(couponToken));
+
+            return NotaryBinding.signAndFinalise(this, transactionBuilder, ImmutableList.of(recipient));
+        }
+    }
+
+    @InitiatedBy(IssueCoupon.class)
+    public static class IssueCouponResponder extends FlowLogic<SignedTransaction> {
+        private final FlowSession session;
+
+        public IssueCouponResponder(FlowSession session) {
+            this.session = session;
+        }
+
+        @Override
+        @Suspendable
+        public SignedTransaction call() throws FlowException {
+            return subFlow(new ReceiveFinalityFlow(session));
+        }
+    }
+
+    /**
+     * The key passed to the notary selection policy for coupons, so the hash policy keeps an issuer's coupons
+     * for one item on one notary.
+     */
+    static String notaryKey(Party issuer, String itemId) {
+        return CouponToken.partyToString(issuer) + "|" + itemId;
+    }
+
+    /**
+     * A single row of a bulk coupon issuance.
+     */
+    @CordaSerializable
+    public static class CouponRequest {
+        private final Party recipient;
+        private final String itemId;
+        private final int discount;
+        private final Instant expiresAt;
+
+        @ConstructorForDeserialization
+        public CouponRequest(Party recipient, String itemId, int discount, Instant expiresAt) {
+            this.recipient = recipient;
+            this.itemId = itemId;
+            this.discount = discount;
+            this.expiresAt = expiresAt;
+        }
+
+        public CouponRequest(Party recipient, String itemId, int discount) {
+            this(recipient, itemId, discount, null);
+        }
+
+        public Party getRecipient() { return recipient; }
+
+        public String getItemId() { return itemId; }
+
+        public int getDiscount() { return discount; }
+
+        /**
+         * When the coupon expires, or null if it never does.
+         */
+        public Instant getExpiresAt() { return expiresAt; }
+
+        @Override
+        public String toString() {
+            return discount + "% off " + itemId + " for " + recipient.getName() + (expiresAt != null ? " until " + expiresAt : "");
+        }
+    }
+
+    /**
+     * The outcome of one {@link CouponRequest}: the issuing transaction and coupon ID on success, or the error.
+     */
+    @CordaSerializable
+    public static class CouponResult {
+        private final int row;
+        private final SecureHash txId;
+        private final UniqueIdentifier linearId;
+        private final String error;
+
+        public CouponResult(int row, SecureHash txId, UniqueIdentifier linearId, String error) {
+            this.row = row;
+            this.txId = txId;
+            this.linearId = linearId;
+            this.error = error;
+        }
+
+        public int getRow() { return row; }
+
+        public SecureHash getTxId() { return txId; }
+
+        public UniqueIdentifier getLinearId() { return linearId; }
+
+        public String getError() { return error; }
+
+        public boolean isIssued() { return error == null; }
+
+        @Override
+        public String toString() {
+            return "Row " + row + ": " + (isIssued() ? linearId + " in " + txId : error);
+        }
+    }
+
+    @CordaSerializable
+    public static class IssueCouponsResult {
+        private final List<CouponResult> results;
+        private final int transactions;
+        private final long elapsedMillis;
+
+        public IssueCouponsResult(List<CouponResult> results, int transactions, long elapsedMillis) {
+            this.results = results;
+            this.transactions = transactions;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public List<CouponResult> getResults() { return results; }
+
+        public int getTransactions() { return transactions; }
+
+        public long getElapsedMillis() { return elapsedMillis; }
+
+        public long getIssuedCount() {
+            return results.stream().filter(CouponResult::isIssued).count();
+        }
+
+        public double getCouponsPerSecond() {
+            return elapsedMillis > 0 ? getIssuedCount() * 1000.0 / elapsedMillis : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Issued %d of %d coupons in %d transactions (%.1f coupons/s)",
+                    getIssuedCount(), results.size(), transactions, getCouponsPerSecond());
+        }
+    }
+
+    /**
+     * Issues many coupons, packing up to {@code maxOutputsPerTransaction} of them into each transaction.
+     *
+     * The cap defaults to the {@code coupon.issue.maxOutputsPerTransaction} CorDapp setting.
+     * A failed transaction only fails the rows packed into it, and every row gets a result.
+     */
+    @StartableByRPC
+    @InitiatingFlow
+    public static class IssueCoupons extends FlowLogic<IssueCouponsResult> {
+        static final String MAX_OUTPUTS_CONFIG = "coupon.issue.maxOutputsPerTransaction";
+
+        static final int DEFAULT_MAX_OUTPUTS_PER_TRANSACTION = 200;
+
+        private final ProgressTracker progressTracker = new ProgressTracker();
+
+        private final List<CouponRequest> requests;
+
+        private final Integer maxOutputsPerTransaction;
+
+        public IssueCoupons(List<CouponRequest> requests, Integer maxOutputsPerTransaction) {
+            this.requests = requests;
+            this.maxOutputsPerTransaction = maxOutputsPerTransaction;
+        }
+
+        public IssueCoupons(List<CouponRequest> requests) {
+            this(requests, null);
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override
+        public IssueCouponsResult call() throws FlowException {
+            int batchSize = maxOutputsPerTransaction != null ?
+                    maxOutputsPerTransaction :
+                    AppConfig.getInt(getServiceHub(), MAX_OUTPUTS_CONFIG, DEFAULT_MAX_OUTPUTS_PER_TRANSACTION);
+            if (batchSize < 1) {
+                throw new FlowException("Maximum outputs per transaction must be positive");
+            }
+
+            Instant start = getServiceHub().getClock().instant();
+            CouponResult[] results = new CouponResult[requests.size()];
+            CouponToken[] coupons = new CouponToken[requests.size()];
+            int transactions = 0;
+
+            // Rows are grouped by notary first, so every transaction has a single notary
+            Map<Party, List<Integer>> rowsByNotary = new LinkedHashMap<>();
+
+            for (int row = 0; row < requests.size(); row++) {
+                CouponRequest request = requests.get(row);
+
+                if (request.getDiscount() < 0 || request.getDiscount() >= 100) {
+                    results[row] = new CouponResult(row, null, null, "Discount rate must be a positve integer smaller than 100");
+                    continue;
+                }
+                if (request.getExpiresAt() != null && !request.getExpiresAt().isAfter(start)) {
+                    results[row] = new CouponResult(row, null, null, "Coupon must expire in the future");
+                    continue;
+                }
+
+                CouponTokenType tokenType = new CouponTokenType(request.getItemId(), request.getDiscount(), request.getExpiresAt());
+                coupons[row] = new CouponToken(
+                        new IssuedTokenType(getOurIdentity(), tokenType),
+                        request.getRecipient(),
+                        new UniqueIdentifier(),
+                        TransactionUtilitiesKt.getAttachmentIdForGenericParam(tokenType));
+
+                Party notary = NotaryBinding.selectNotary(getServiceHub(), notaryKey(getOurIdentity(), request.getItemId()));
+                rowsByNotary.computeIfAbsent(notary, k -> new ArrayList<>()).add(row);
+            }
+
+            for (Map.Entry<Party, List<Integer>> notaryRows : rowsByNotary.entrySet()) {
+                for (List<Integer> batchRows : Lists.partition(notaryRows.getValue(), batchSize)) {
+                    issueBatch(notaryRows.getKey(), batchRows, coupons, results);
+                    transactions++;
+                }
+            }
+
+            long elapsedMillis = Duration.between(start, getServiceHub().getClock().instant()).toMillis();
+            IssueCouponsResult result = new IssueCouponsResult(Arrays.asList(results), transactions, elapsedMillis);
+
+            FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+            metrics.update("IssueCoupons", "issued", result.getIssuedCount());
+            metrics.update("IssueCoupons", "failedRows", results.length - result.getIssuedCount());
+            getLogger().info(result.toString());
+            return result;
+        }
+
+        @Suspendable
+        private void issueBatch(Party notary, List<Integer> batchRows, CouponToken[] coupons, CouponResult[] results) {
+            List<CouponToken> batch = new ArrayList<>();
+            List<Party> recipients = new ArrayList<>();
+            for (Integer row : batchRows) {
+                batch.add(coupons[row]);
+                recipients.add(requests.get(row).getRecipient());
+            }
+
+            try {
+                TransactionBuilder transactionBuilder = new TransactionBuilder(notary);
+                addIssueTokens(transactionBuilder, ImmutableList.copyOf(batch));
+
+                SignedTransaction signedTransaction = NotaryBinding.sign(this, transactionBuilder);
+                List<FlowSession> sessions = NotaryBinding.sessionsFor(this, recipients);
+                SecureHash txId = signedTransaction.getId();
+                batchSigned(batchRows, txId);
+
+                NotaryBinding.finalise(this, signedTransaction, sessions);
+                for (Integer row : batchRows) {
+                    results[row] = new CouponResult(row, txId, coupons[row].getLinearId(), null);
+                }
+            } catch (FlowException | RuntimeException e) {
+                // Quasar's SuspendExecution is a checked exception, so suspending never lands here
+                getLogger().warn("Failed to issue a batch of " + batch.size() + " coupons", e);
+                String error = e.getMessage() != null ? e.getMessage() : e.toString();
+                for (Integer row : batchRows) {
+                    results[row] = new CouponResult(row, null, null, error);
+                }
+            }
+        }
+
+        /**
+         * Called with a batch's rows and transaction ID just before it is finalised. Anything written to the
+         * database here commits no later than the transaction is recorded locally.
+         */
+        @Suspendable
+        protected void batchSigned(List<Integer> batchRows, SecureHash txId) throws FlowException {
+        }
+    }
+
+    @InitiatedBy(IssueCoupons.class)
+    public static class IssueCouponsResponder extends FlowLogic<SignedTransaction> {
+        private final FlowSession session;
+
+        public IssueCouponsResponder(FlowSession session) {
+            this.session = session;
+        }
+
+        @Override
+        @Suspendable
+        public SignedTransaction call() throws FlowException {
+            return subFlow(new ReceiveFinalityFlow(session));
         }
     }
 
@@ -114,30 +404,88 @@ public class CouponFlow {
         @Override
         @Suspendable
         public SignedTransaction call() throws FlowException {
-            StringBuffer output = new StringBuffer();
-
-            // Query for non-fungible token states
-            List<StateAndRef<NonFungibleToken>> nonFungibleStateRefs = getServiceHub()
-                    .getVaultService()
-                    .queryBy(NonFungibleToken.class)
-                    .getStates();
-
-            // Find any non-fungible token state of CouponToken
-            StateAndRef<NonFungibleToken> inputStateRef =
-                    nonFungibleStateRefs.stream().filter(stateAndRef -> {
-                        NonFungibleToken nonFungibleToken = stateAndRef.getState().getData();
-                        TokenType realTokenType = nonFungibleToken.getIssuedTokenType().getTokenType();
-
-                        return (realTokenType instanceof CouponTokenType);
-                    }).findAny().orElseThrow(() -> new IllegalArgumentException("No coupon found"));
-
-            NonFungibleToken inputState = inputStateRef.getState().getData();
-            System.out.println("**********Token*********");
-            System.out.println(inputState.getTokenType());
-            System.out.println("**********Issuer*********");
-            System.out.println(issuer);
-
-            return subFlow(new RedeemNonFungibleTokens(inputState.getTokenType(), issuer));
+            // Find the best coupon from the issuer held by us, soft locked against concurrent redemptions
+            FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+            long started = metrics.start();
+            UUID lockId = getRunId().getUuid();
+            StateAndRef<CouponToken> coupon = CouponSelection.selectAndLock(getServiceHub(), lockId, issuer, getOurIdentity(), null);
+            started = metrics.time("RedeemCoupon", "couponQuery", started);
+            if (coupon == null) {
+                throw new IllegalArgumentException("No coupon found");
+            }
+
+            try {
+                // Redeem exactly the selected coupon on the notary it is bound to, as the issuer may have given us more than one
+                TransactionBuilder transactionBuilder = new TransactionBuilder(coupon.getState().getNotary());
+                addTokensToRedeem(transactionBuilder, ImmutableList.of(coupon), null);
+                transactionBuilder.verify(getServiceHub());
+                started = metrics.time("RedeemCoupon", "verify", started);
+
+                SignedTransaction partlySignedTx = getServiceHub().signInitialTransaction(transactionBuilder);
+                started = metrics.time("RedeemCoupon", "sign", started);
+
+                FlowSession issuerSession = initiateFlow(issuer);
+                SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(partlySignedTx, ImmutableList.of(issuerSession)));
+                metrics.time("RedeemCoupon", "collectSignatures", started);
+
+                return NotaryBinding.finalise(this, fullySignedTx, ImmutableList.of(issuerSession));
+            } catch (FlowException | RuntimeException e) {
+                CouponSelection.release(getServiceHub(), lockId);
+                throw e;
+            }
+        }
+    }
+
+    @InitiatedBy(RedeemCoupon.class)
+    public static class RedeemCouponHandler extends FlowLogic<SignedTransaction> {
+        private final FlowSession session;
+
+        public RedeemCouponHandler(FlowSession session) {
+            this.session = session;
+        }
+
+        @Override
+        @Suspendable
+        public SignedTransaction call() throws FlowException {
+            Party ourIdentity = getOurIdentity();
+            Party requester = session.getCounterparty();
+
+            class SignRedeemFlow extends SignTransactionFlow {
+                private SignRedeemFlow(FlowSession otherSession, ProgressTracker progressTracker) {
+                    super(otherSession, progressTracker);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) throws FlowException {
+                    if (!stx.getTx().getOutputs().isEmpty()) {
+                        throw new FlowException("Redeeming a coupon must not create any states");
+                    }
+                    if (stx.getNotary() == null || !getServiceHub().getNetworkMapCache().isNotary(stx.getNotary())) {
+                        throw new FlowException("Unknown notary " + stx.getNotary());
+                    }
+
+                    LedgerTransaction ledgerTx;
+                    try {
+                        ledgerTx = stx.toLedgerTransaction(getServiceHub(), false);
+                    } catch (Exception e) {
+                        throw new FlowException("Cannot resolve the coupons to redeem", e);
+                    }
+
+                    // Only coupons we issued, held by the party asking us to redeem them
+                    for (ContractState input : ledgerTx.getInputStates()) {
+                        if (!(input instanceof CouponToken) || !((CouponToken) input).getIssuer().equals(ourIdentity)) {
+                            throw new FlowException("Only coupons we issued can be redeemed");
+                        }
+                        Party holder = getServiceHub().getIdentityService().wellKnownPartyFromAnonymous(((CouponToken) input).getHolder());
+                        if (!requester.equals(holder)) {
+                            throw new FlowException("Coupon " + ((CouponToken) input).getLinearId() + " is not held by " + requester);
+                        }
+                    }
+                }
+            }
+
+            SecureHash txId = subFlow(new SignRedeemFlow(session, SignTransactionFlow.tracker())).getId();
+            return subFlow(new ReceiveFinalityFlow(session, txId));
         }
     }
 
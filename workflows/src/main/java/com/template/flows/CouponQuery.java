@@ -0,0 +1,115 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.template.schemas.CouponSchemaV1;
+import com.template.states.CouponToken;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+
+import java.lang.reflect.Field;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Vault queries for coupons, backed by the indexed columns of {@link CouponSchemaV1}.
+ */
+public class CouponQuery {
+    private CouponQuery() {}
+
+    /**
+     * Returns at most {@code limit} unconsumed and unexpired coupons matching the given filters, highest discount first.
+     * Any of {@code issuer}, {@code holder} and {@code itemId} may be null to leave that column unfiltered.
+     */
+    @Suspendable
+    public static List<StateAndRef<CouponToken>> findCoupons(ServiceHub serviceHub, AbstractParty issuer, AbstractParty holder, String itemId, int limit) {
+        return findCoupons(serviceHub, issuer, holder, itemId, limit, null);
+    }
+
+    /**
+     * As {@link #findCoupons(ServiceHub, AbstractParty, AbstractParty, String, int)}, but when {@code lockId} is not null
+     * coupons soft locked by anyone other than {@code lockId} are skipped.
+     */
+    @Suspendable
+    public static List<StateAndRef<CouponToken>> findCoupons(ServiceHub serviceHub, AbstractParty issuer, AbstractParty holder, String itemId, int limit, UUID lockId) {
+        QueryCriteria criteria = lockId == null ?
+                new QueryCriteria.VaultQueryCriteria() :
+                new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED, null, null, null,
+                        new QueryCriteria.SoftLockingCondition(QueryCriteria.SoftLockingType.UNLOCKED_AND_SPECIFIED, ImmutableList.of(lockId)));
+
+        Sort sort = new Sort(ImmutableList.of(new Sort.SortColumn(
+                new SortAttribute.Custom(CouponSchemaV1.PersistentCoupon.class, "discount"),
+                Sort.Direction.DESC)));
+
+        return serviceHub
+                .getVaultService()
+                .queryBy(CouponToken.class,
+                        criteria.and(criteria(issuer, holder, itemId)).and(unexpired(serviceHub.getClock().instant())),
+                        new PageSpecification(DEFAULT_PAGE_NUM, limit), sort)
+                .getStates();
+    }
+
+    /**
+     * Returns the unconsumed coupon with the highest discount matching the given filters, or null if none.
+     */
+    @Suspendable
+    public static StateAndRef<CouponToken> findCoupon(ServiceHub serviceHub, AbstractParty issuer, AbstractParty holder, String itemId) {
+        List<StateAndRef<CouponToken>> coupons = findCoupons(serviceHub, issuer, holder, itemId, 1);
+        return coupons.isEmpty() ? null : coupons.get(0);
+    }
+
+    /**
+     * Returns criteria for unconsumed coupons matching the given filters, any of which may be null to leave that column unfiltered.
+     */
+    public static QueryCriteria criteria(AbstractParty issuer, AbstractParty holder, String itemId) {
+        QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria();
+
+        if (issuer != null) {
+            criteria = criteria.and(columnEquals("issuer", CouponToken.partyToString(issuer)));
+        }
+        if (holder != null) {
+            criteria = criteria.and(columnEquals("holder", CouponToken.partyToString(holder)));
+        }
+        if (itemId != null) {
+            criteria = criteria.and(columnEquals("itemId", itemId));
+        }
+        return criteria;
+    }
+
+    /**
+     * Returns criteria for coupons which never expire or have not expired at {@code time}.
+     */
+    public static QueryCriteria unexpired(Instant time) {
+        return new QueryCriteria.VaultCustomQueryCriteria(Builder.isNull(field("expiresAt")))
+                .or(new QueryCriteria.VaultCustomQueryCriteria(Builder.greaterThan(field("expiresAt"), time)));
+    }
+
+    /**
+     * Returns criteria for coupons which have expired at {@code time}.
+     */
+    public static QueryCriteria expired(Instant time) {
+        return new QueryCriteria.VaultCustomQueryCriteria(Builder.lessThanOrEqual(field("expiresAt"), time));
+    }
+
+    private static QueryCriteria columnEquals(String fieldName, String value) {
+        return new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(field(fieldName), value));
+    }
+
+    static Field field(String fieldName) {
+        try {
+            return CouponSchemaV1.PersistentCoupon.class.getDeclaredField(fieldName);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Unknown coupon column " + fieldName, e);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.template.states.CouponToken;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.StatesNotAvailableException;
+import net.corda.core.utilities.NonEmptySet;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Selects a coupon and soft locks it for the calling flow, so concurrent flows never redeem the same coupon.
+ *
+ * Coupons locked by other flows are skipped. If another flow locks a candidate between the query and the
+ * reservation, the next candidate is tried. The lock is released by {@link #release} or when the flow ends.
+ */
+public class CouponSelection {
+    private CouponSelection() {}
+
+    // Candidates fetched per query; more are fetched only when all of them were taken concurrently.
+    private static final int CANDIDATES = 10;
+
+    private static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * Returns the best unlocked coupon matching the filters, soft locked under {@code lockId}, or null if none is available.
+     */
+    @Suspendable
+    public static StateAndRef<CouponToken> selectAndLock(ServiceHub serviceHub, UUID lockId, AbstractParty issuer, AbstractParty holder, String itemId) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            List<StateAndRef<CouponToken>> candidates = CouponQuery.findCoupons(serviceHub, issuer, holder, itemId, CANDIDATES, lockId);
+            if (candidates.isEmpty()) {
+                return null;
+            }
+
+            for (StateAndRef<CouponToken> candidate : candidates) {
+                try {
+                    serviceHub.getVaultService().softLockReserve(lockId, NonEmptySet.of(candidate.getRef()));
+                    return candidate;
+                } catch (StatesNotAvailableException e) {
+                    // Locked by another flow since the query ran, try the next one.
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Releases every state soft locked under {@code lockId}, including cash selected by the token SDK for the same flow.
+     */
+    @Suspendable
+    public static void release(ServiceHub serviceHub, UUID lockId) {
+        serviceHub.getVaultService().softLockRelease(lockId, null);
+    }
+}
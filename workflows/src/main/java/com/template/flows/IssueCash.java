@@ -7,13 +7,15 @@ import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
 import com.r3.corda.lib.tokens.contracts.utilities.TransactionUtilitiesKt;
 import com.r3.corda.lib.tokens.contracts.types.TokenType;
 import com.r3.corda.lib.tokens.money.FiatCurrency;
-import com.r3.corda.lib.tokens.workflows.flows.rpc.IssueTokens;
 import net.corda.core.contracts.Amount;
 import net.corda.core.flows.*;
 import net.corda.core.identity.Party;
 import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
 import net.corda.core.utilities.ProgressTracker;
 
+import static com.r3.corda.lib.tokens.workflows.flows.issue.IssueTokensUtilitiesKt.addIssueTokens;
+
 @InitiatingFlow
 @StartableByRPC
 public class IssueCash extends FlowLogic<SignedTransaction> {
@@ -48,6 +50,25 @@ public class IssueCash extends FlowLogic<SignedTransaction> {
         // FungibleToken is a State class that implements FungibleState interface
         FungibleToken fungibleToken = new FungibleToken(amountToIssue, recipient, TransactionUtilitiesKt.getAttachmentIdForGenericParam(currencyType));
 
-        return subFlow(new IssueTokens(ImmutableList.of(fungibleToken)));
+        // Issuance has no inputs, so the notary comes from the selection policy
+        TransactionBuilder transactionBuilder = new TransactionBuilder(NotaryBinding.selectNotary(getServiceHub(), null));
+        addIssueTokens(transactionBuilder, ImmutableList.of(fungibleToken));
+
+        return NotaryBinding.signAndFinalise(this, transactionBuilder, ImmutableList.of(recipient));
+    }
+
+    @InitiatedBy(IssueCash.class)
+    public static class IssueCashResponder extends FlowLogic<SignedTransaction> {
+        private final FlowSession session;
+
+        public IssueCashResponder(FlowSession session) {
+            this.session = session;
+        }
+
+        @Override
+        @Suspendable
+        public SignedTransaction call() throws FlowException {
+            return subFlow(new ReceiveFinalityFlow(session));
+        }
     }
 }
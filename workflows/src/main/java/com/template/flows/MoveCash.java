@@ -1,19 +1,20 @@
 package com.template.flows;
 
 import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
 import com.r3.corda.lib.tokens.contracts.types.TokenType;
 import com.r3.corda.lib.tokens.money.FiatCurrency;
-import com.r3.corda.lib.tokens.workflows.flows.rpc.MoveFungibleTokens;
 import com.r3.corda.lib.tokens.workflows.types.PartyAndAmount;
+import com.template.services.FlowMetricsService;
 import net.corda.core.contracts.Amount;
-import net.corda.core.flows.FlowException;
-import net.corda.core.flows.FlowLogic;
-import net.corda.core.flows.InitiatingFlow;
-import net.corda.core.flows.StartableByRPC;
+import net.corda.core.flows.*;
 import net.corda.core.identity.Party;
 import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
 import net.corda.core.utilities.ProgressTracker;
 
+import static com.r3.corda.lib.tokens.workflows.flows.move.MoveTokensUtilitiesKt.addMoveFungibleTokens;
+
 @InitiatingFlow
 @StartableByRPC
 public class MoveCash extends FlowLogic<SignedTransaction> {
@@ -48,6 +49,31 @@ public class MoveCash extends FlowLogic<SignedTransaction> {
         TokenType tokenTypeToMove = FiatCurrency.Companion.getInstance(currency);
         PartyAndAmount partyAndAmount = new PartyAndAmount(recipient, new Amount (amount, tokenTypeToMove));
 
-        return subFlow(new MoveFungibleTokens(partyAndAmount));
+        // Spend from the notary holding most of the currency, moving any shortfall onto it first
+        FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+        long started = metrics.start();
+        Party notary = NotaryBinding.notaryForFungibleTokens(this, tokenTypeToMove);
+        NotaryBinding.gatherFungibleTokens(this, notary, tokenTypeToMove, amount);
+        metrics.time("MoveCash", "notaryChange", started);
+
+        TransactionBuilder transactionBuilder = new TransactionBuilder(notary);
+        addMoveFungibleTokens(transactionBuilder, getServiceHub(), ImmutableList.of(partyAndAmount), getOurIdentity(), NotaryBinding.onNotary(notary));
+
+        return NotaryBinding.signAndFinalise(this, transactionBuilder, ImmutableList.of(recipient));
+    }
+
+    @InitiatedBy(MoveCash.class)
+    public static class MoveCashResponder extends FlowLogic<SignedTransaction> {
+        private final FlowSession session;
+
+        public MoveCashResponder(FlowSession session) {
+            this.session = session;
+        }
+
+        @Override
+        @Suspendable
+        public SignedTransaction call() throws FlowException {
+            return subFlow(new ReceiveFinalityFlow(session));
+        }
     }
 }
@@ -0,0 +1,228 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.r3.corda.lib.tokens.contracts.internal.schemas.PersistentFungibleToken;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.TokenType;
+import com.template.services.FlowMetricsService;
+import com.template.services.NotarySelectionService;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.*;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.r3.corda.lib.tokens.workflows.utilities.QueryUtilitiesKt.heldTokenAmountCriteria;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_SIZE;
+
+/**
+ * Keeps transactions on the notary which holds their input states.
+ *
+ * Transactions without inputs get a notary from {@link NotarySelectionService}. Transactions spending
+ * fungible tokens use the notary holding most of them, and tokens held on other notaries are moved
+ * across with {@link NotaryChangeFlow} when that notary alone does not hold enough.
+ */
+public class NotaryBinding {
+    private NotaryBinding() {}
+
+    // Upper bound on the notary changes a single payment may trigger.
+    private static final int MAX_NOTARY_CHANGES = 50;
+
+    // Tokens soft locked by another flow are about to be spent, so they count towards no notary.
+    private static final QueryCriteria.SoftLockingCondition UNLOCKED =
+            new QueryCriteria.SoftLockingCondition(QueryCriteria.SoftLockingType.UNLOCKED_ONLY, ImmutableList.of());
+
+    public static Party selectNotary(ServiceHub serviceHub, String key) {
+        return serviceHub.cordaService(NotarySelectionService.class).selectNotary(key);
+    }
+
+    public static QueryCriteria onNotary(Party notary) {
+        return new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED, null, null, ImmutableList.of(notary));
+    }
+
+    /**
+     * Returns the notary on which we hold the most of {@code tokenType}.
+     */
+    @Suspendable
+    public static Party notaryForFungibleTokens(FlowLogic<?> flow, TokenType tokenType) {
+        List<Party> notaries = flow.getServiceHub().getNetworkMapCache().getNotaryIdentities().stream()
+                .sorted(Comparator.comparing(notary -> notary.getName().toString()))
+                .collect(Collectors.toList());
+        if (notaries.size() == 1) {
+            return notaries.get(0);
+        }
+
+        Party best = notaries.get(0);
+        long bestQuantity = -1;
+        for (Party notary : notaries) {
+            long quantity = sumHeld(flow, tokenType, onNotary(notary));
+            if (quantity > bestQuantity) {
+                best = notary;
+                bestQuantity = quantity;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Moves our unlocked {@code tokenType} tokens from other notaries to {@code notary}, largest first,
+     * until at least {@code quantity} is held on it or nothing else can be moved.
+     */
+    @Suspendable
+    public static void gatherFungibleTokens(FlowLogic<?> flow, Party notary, TokenType tokenType, long quantity) throws FlowException {
+        long held = sumHeld(flow, tokenType, onNotary(notary));
+        if (held >= quantity) {
+            return;
+        }
+
+        // Only tokens on the other notaries are candidates, so the page is never spent on tokens already in place.
+        List<AbstractParty> otherNotaries = flow.getServiceHub().getNetworkMapCache().getNotaryIdentities().stream()
+                .filter(candidate -> !candidate.equals(notary))
+                .collect(Collectors.toList());
+        if (otherNotaries.isEmpty()) {
+            return;
+        }
+
+        QueryCriteria elsewhere = heldTokenAmountCriteria(tokenType, flow.getOurIdentity())
+                .and(new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED, null, null, otherNotaries, UNLOCKED));
+        Sort largestFirst = new Sort(ImmutableList.of(new Sort.SortColumn(
+                new SortAttribute.Custom(PersistentFungibleToken.class, "amount"),
+                Sort.Direction.DESC)));
+
+        List<StateAndRef<FungibleToken>> candidates = flow.getServiceHub().getVaultService()
+                .queryBy(FungibleToken.class, elsewhere, new PageSpecification(DEFAULT_PAGE_NUM, MAX_NOTARY_CHANGES), largestFirst)
+                .getStates();
+
+        for (StateAndRef<FungibleToken> candidate : candidates) {
+            if (held >= quantity) {
+                break;
+            }
+            bindToNotary(flow, candidate, notary);
+            held += candidate.getState().getData().getAmount().getQuantity();
+        }
+    }
+
+    /**
+     * Returns {@code state} unchanged if it is already on {@code notary}, otherwise runs a notary change.
+     */
+    @Suspendable
+    public static <T extends ContractState> StateAndRef<T> bindToNotary(FlowLogic<?> flow, StateAndRef<T> state, Party notary) throws FlowException {
+        if (state.getState().getNotary().equals(notary)) {
+            return state;
+        }
+        return flow.subFlow(new NotaryChangeFlow<>(state, notary, AbstractStateReplacementFlow.Instigator.Companion.tracker()));
+    }
+
+    /**
+     * Verifies and signs the transaction, then finalises it with every recipient other than ourselves.
+     */
+    @Suspendable
+    public static SignedTransaction signAndFinalise(FlowLogic<?> flow, TransactionBuilder transactionBuilder, Collection<? extends AbstractParty> recipients) throws FlowException {
+        SignedTransaction signedTransaction = sign(flow, transactionBuilder);
+        return finalise(flow, signedTransaction, sessionsFor(flow, recipients));
+    }
+
+    /**
+     * Verifies the transaction and signs it with our key, recording both phases in {@link FlowMetricsService}.
+     */
+    @Suspendable
+    public static SignedTransaction sign(FlowLogic<?> flow, TransactionBuilder transactionBuilder) {
+        FlowMetricsService metrics = flow.getServiceHub().cordaService(FlowMetricsService.class);
+        String flowName = flow.getClass().getSimpleName();
+
+        long started = metrics.start();
+        transactionBuilder.verify(flow.getServiceHub());
+        started = metrics.time(flowName, "verify", started);
+        SignedTransaction signedTransaction = flow.getServiceHub().signInitialTransaction(transactionBuilder);
+        metrics.time(flowName, "sign", started);
+        metrics.update(flowName, "outputs", transactionBuilder.outputStates().size());
+        return signedTransaction;
+    }
+
+    /**
+     * Opens a session with every recipient other than ourselves, failing if one of them is not known to us.
+     */
+    @Suspendable
+    public static List<FlowSession> sessionsFor(FlowLogic<?> flow, Collection<? extends AbstractParty> recipients) throws FlowException {
+        Set<Party> counterparties = new LinkedHashSet<>();
+        for (AbstractParty recipient : recipients) {
+            Party wellKnownRecipient = flow.getServiceHub().getIdentityService().wellKnownPartyFromAnonymous(recipient);
+            if (wellKnownRecipient == null) {
+                throw new FlowException("Unknown recipient " + recipient);
+            }
+            counterparties.add(wellKnownRecipient);
+        }
+        counterparties.remove(flow.getOurIdentity());
+
+        List<FlowSession> sessions = new ArrayList<>();
+        for (Party counterparty : counterparties) {
+            sessions.add(flow.initiateFlow(counterparty));
+        }
+        return sessions;
+    }
+
+    /**
+     * Runs {@link FinalityFlow}, recording it as the flow's {@code finality} phase in {@link FlowMetricsService},
+     * and reports how long notarisation took to {@link NotarySelectionService}.
+     */
+    @Suspendable
+    public static SignedTransaction finalise(FlowLogic<?> flow, SignedTransaction signedTransaction, Collection<FlowSession> sessions) throws FlowException {
+        FlowMetricsService metrics = flow.getServiceHub().cordaService(FlowMetricsService.class);
+        long started = metrics.start();
+        Instant start = flow.getServiceHub().getClock().instant();
+        SignedTransaction finalised = flow.subFlow(new FinalityFlow(signedTransaction, sessions));
+        metrics.time(flow.getClass().getSimpleName(), "finality", started);
+
+        // Transactions without inputs or a time window skip the notary, so they say nothing about its latency.
+        boolean notarised = !signedTransaction.getTx().getInputs().isEmpty() || signedTransaction.getTx().getTimeWindow() != null;
+        if (notarised && signedTransaction.getNotary() != null) {
+            flow.getServiceHub().cordaService(NotarySelectionService.class).recordLatency(
+                    signedTransaction.getNotary(),
+                    Duration.between(start, flow.getServiceHub().getClock().instant()).toMillis());
+        }
+
+        return finalised;
+    }
+
+    @Suspendable
+    private static long sumHeld(FlowLogic<?> flow, TokenType tokenType, QueryCriteria notaryCriteria) {
+        QueryCriteria criteria = heldTokenAmountCriteria(tokenType, flow.getOurIdentity())
+                .and(notaryCriteria)
+                .and(new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED, null, null, null, UNLOCKED));
+
+        long total = 0;
+        int pageNumber = DEFAULT_PAGE_NUM;
+        long seen = 0;
+        Vault.Page<FungibleToken> page;
+        do {
+            page = flow.getServiceHub().getVaultService()
+                    .queryBy(FungibleToken.class, criteria, new PageSpecification(pageNumber++, DEFAULT_PAGE_SIZE));
+            for (StateAndRef<FungibleToken> token : page.getStates()) {
+                total += token.getState().getData().getAmount().getQuantity();
+            }
+            seen += page.getStates().size();
+        } while (seen < page.getTotalStatesAvailable() && !page.getStates().isEmpty());
+
+        return total;
+    }
+}
@@ -13,6 +13,12 @@ import net.corda.core.flows.StartableByRPC;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Prints every state in the vault.
+ *
+ * @deprecated loads the whole vault into memory. Use {@link StateQueryFlow.QueryStates} to page through one kind of state.
+ */
+@Deprecated
 @StartableByRPC
 public class PrintStates extends FlowLogic<String> {
     @Override
@@ -2,8 +2,7 @@ package com.template.flows;
 
 import co.paralleluniverse.fibers.Suspendable;
 import com.google.common.collect.ImmutableList;
-import com.r3.corda.lib.tokens.contracts.states.NonFungibleToken;
-import com.r3.corda.lib.tokens.contracts.types.TokenType;
+import com.template.states.CouponToken;
 import com.template.states.CouponTokenType;
 import com.template.contracts.PurchaseOrderContract;
 import com.template.states.PurchaseOrderState;
@@ -28,39 +27,38 @@ public class PurchaseFlow {
     public static class PurchaseWithCoupon extends FlowLogic<SignedTransaction> {
         private final ProgressTracker progressTracker = new ProgressTracker();
 
+        private final String itemId;
+
+        public PurchaseWithCoupon(String itemId) {
+            this.itemId = itemId;
+        }
+
         @Override
         public ProgressTracker getProgressTracker() {
             return progressTracker;
         }
 
         private CouponTokenType getCouponToken() {
-            List<StateAndRef<NonFungibleToken>> nonFungibleStateRefs = getServiceHub()
-                    .getVaultService()
-                    .queryBy(NonFungibleToken.class)
-                    .getStates();
-
-            StateAndRef<NonFungibleToken> inputStateRef =
-                    nonFungibleStateRefs.stream().filter(stateAndRef -> {
-                        NonFungibleToken nonFungibleToken = stateAndRef.getState().getData();
-                        TokenType realTokenType = nonFungibleToken.getIssuedTokenType().getTokenType();
+            StateAndRef<CouponToken> inputStateRef = CouponQuery.findCoupon(getServiceHub(), null, getOurIdentity(), null);
+            if (inputStateRef == null) {
+                throw new IllegalArgumentException("No coupon found");
+            }
 
-                        return (realTokenType instanceof CouponTokenType);
-                    }).findAny().orElseThrow(() -> new IllegalArgumentException("No coupon found"));
-
-            return (CouponTokenType) inputStateRef.getState().getData().getTokenType();
+            return inputStateRef.getState().getData().getCouponTokenType();
         }
 
         @Override
         @Suspendable
         public SignedTransaction call() throws FlowException {
-            Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
-
             NetworkMapCache networkMapCache = getServiceHub().getNetworkMapCache();
             CordaX500Name nodeAName = new CordaX500Name("PartyA", "London", "GB");
             CordaX500Name nodeBName = new CordaX500Name("PartyB", "New York", "US");
             Party seller = networkMapCache.getPeerByLegalName(nodeAName);
             Party buyer = networkMapCache.getPeerByLegalName(nodeBName);
 
+            // Orders for the same item from the same seller share a notary, as their coupons do
+            Party notary = NotaryBinding.selectNotary(getServiceHub(), CouponFlow.notaryKey(seller, itemId));
+
             // NodeInfo nodeA = getServiceHub().getNetworkMapCache().getNodeByLegalName(new CordaX500Name("PartyA", "New York", "US"));
             // System.out.println("*********Node A**********");
             // System.out.println(nodeA);
@@ -76,17 +74,12 @@ public class PurchaseFlow {
             //     System.out.println(nodeInfo.getLegalIdentities().get(0));
             // });
 
-            System.out.println("*********Notary**********");
-            System.out.println(notary);
-            System.out.println("*********Seller Party**********");
-            System.out.println(seller);
-            System.out.println("*********Buyer Party**********");
-            System.out.println(buyer);
+            getLogger().debug("Notary " + notary + ", seller " + seller + ", buyer " + buyer);
 
             TransactionBuilder transactionBuilder = new TransactionBuilder(notary);
 
             // Output State
-            PurchaseOrderState outputState = new PurchaseOrderState(seller, buyer, "book-101");
+            PurchaseOrderState outputState = new PurchaseOrderState(seller, buyer, itemId);
 
             List<PublicKey> requiredSigners = ImmutableList.of(
                     outputState.getSeller().getOwningKey(),
@@ -0,0 +1,50 @@
+package com.template.flows;
+
+import com.template.schemas.PurchaseOrderSchemaV1;
+import com.template.states.CouponToken;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.QueryCriteria;
+
+import java.lang.reflect.Field;
+import java.time.Instant;
+
+/**
+ * Vault queries for purchase orders, backed by the indexed columns of {@link PurchaseOrderSchemaV1}.
+ */
+public class PurchaseOrderQuery {
+    private PurchaseOrderQuery() {}
+
+    /**
+     * Returns criteria for unconsumed purchase orders matching the given filters, any of which may be null
+     * to leave that column unfiltered. Orders are matched from {@code from} inclusive until {@code until} exclusive.
+     */
+    public static QueryCriteria criteria(AbstractParty seller, AbstractParty buyer, String itemId, Instant from, Instant until) {
+        QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria();
+
+        if (seller != null) {
+            criteria = criteria.and(new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(field("seller"), CouponToken.partyToString(seller))));
+        }
+        if (buyer != null) {
+            criteria = criteria.and(new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(field("buyer"), CouponToken.partyToString(buyer))));
+        }
+        if (itemId != null) {
+            criteria = criteria.and(new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(field("itemId"), itemId)));
+        }
+        if (from != null) {
+            criteria = criteria.and(new QueryCriteria.VaultCustomQueryCriteria(Builder.greaterThanOrEqual(field("orderedAt"), from)));
+        }
+        if (until != null) {
+            criteria = criteria.and(new QueryCriteria.VaultCustomQueryCriteria(Builder.lessThan(field("orderedAt"), until)));
+        }
+        return criteria;
+    }
+
+    static Field field(String fieldName) {
+        try {
+            return PurchaseOrderSchemaV1.PersistentPurchaseOrder.class.getDeclaredField(fieldName);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Unknown purchase order column " + fieldName, e);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.template.schemas.PurchaseOrderSchemaV1;
+import com.template.states.PurchaseOrderState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.*;
+import net.corda.core.schemas.PersistentState;
+import net.corda.core.schemas.PersistentStateRef;
+import net.corda.core.serialization.CordaSerializable;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Reporting queries over purchase orders, such as all orders for an item in the last hour or all orders
+ * from a buyer. Every filter is a {@link QueryCriteria.VaultCustomQueryCriteria} on an indexed column of
+ * {@link PurchaseOrderSchemaV1}, so the database does the filtering however many orders there are.
+ */
+public class PurchaseOrderQueryFlow {
+    private static final int BACKFILL_PAGE_SIZE = 1000;
+
+    /**
+     * Optional filters on purchase orders. Null fields leave that column unfiltered. Orders are matched
+     * from {@code from} inclusive until {@code until} exclusive.
+     */
+    @CordaSerializable
+    public static class OrderFilters {
+        private final AbstractParty seller;
+        private final AbstractParty buyer;
+        private final String itemId;
+        private final Instant from;
+        private final Instant until;
+
+        public OrderFilters(AbstractParty seller, AbstractParty buyer, String itemId, Instant from, Instant until) {
+            this.seller = seller;
+            this.buyer = buyer;
+            this.itemId = itemId;
+            this.from = from;
+            this.until = until;
+        }
+
+        public AbstractParty getSeller() { return seller; }
+
+        public AbstractParty getBuyer() { return buyer; }
+
+        public String getItemId() { return itemId; }
+
+        public Instant getFrom() { return from; }
+
+        public Instant getUntil() { return until; }
+
+        QueryCriteria toCriteria() {
+            return PurchaseOrderQuery.criteria(seller, buyer, itemId, from, until);
+        }
+    }
+
+    /**
+     * Returns one page of the unconsumed purchase orders matching the filters, newest first.
+     */
+    @StartableByRPC
+    public static class FindOrders extends FlowLogic<StateQueryFlow.StatePage> {
+        private final OrderFilters filters;
+        private final int pageNumber;
+        private final int pageSize;
+
+        public FindOrders(OrderFilters filters, int pageNumber, int pageSize) {
+            this.filters = filters;
+            this.pageNumber = pageNumber;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        @Suspendable
+        public StateQueryFlow.StatePage call() throws FlowException {
+            if (pageNumber < DEFAULT_PAGE_NUM) {
+                throw new FlowException("Pages are numbered from " + DEFAULT_PAGE_NUM);
+            }
+            if (pageSize < 1 || pageSize > StateQueryFlow.MAX_PAGE_SIZE) {
+                throw new FlowException("Page size must be between 1 and " + StateQueryFlow.MAX_PAGE_SIZE);
+            }
+
+            Sort newestFirst = new Sort(ImmutableList.of(new Sort.SortColumn(
+                    new SortAttribute.Custom(PurchaseOrderSchemaV1.PersistentPurchaseOrder.class, "orderedAt"),
+                    Sort.Direction.DESC)));
+
+            Vault.Page<PurchaseOrderState> page = getServiceHub().getVaultService().queryBy(
+                    PurchaseOrderState.class, filters.toCriteria(), new PageSpecification(pageNumber, pageSize), newestFirst);
+
+            List<StateQueryFlow.StateSummary> orders = new ArrayList<>(page.getStates().size());
+            for (StateAndRef<PurchaseOrderState> order : page.getStates()) {
+                orders.add(StateQueryFlow.PurchaseOrderSummary.of(order));
+            }
+            return new StateQueryFlow.StatePage(StateQueryFlow.Kind.PURCHASE_ORDER, pageNumber, pageSize,
+                    page.getTotalStatesAvailable(), orders);
+        }
+    }
+
+    /**
+     * Counts the unconsumed purchase orders matching the filters, in the database.
+     */
+    @StartableByRPC
+    public static class CountOrders extends FlowLogic<Long> {
+        private final OrderFilters filters;
+
+        public CountOrders(OrderFilters filters) {
+            this.filters = filters;
+        }
+
+        @Override
+        @Suspendable
+        public Long call() throws FlowException {
+            QueryCriteria count = new QueryCriteria.VaultCustomQueryCriteria(Builder.count(PurchaseOrderQuery.field("itemId")));
+
+            List<Object> results = getServiceHub().getVaultService()
+                    .queryBy(PurchaseOrderState.class, filters.toCriteria().and(count))
+                    .getOtherResults();
+            return results.isEmpty() ? 0L : ((Number) results.get(0)).longValue();
+        }
+    }
+
+    /**
+     * Writes the {@link PurchaseOrderSchemaV1} rows of orders recorded before the schema was added, consumed or not,
+     * as the vault only maps states it records after a schema is installed. Orders which already have a row are
+     * skipped, so it is safe to run again. Returns the number of rows written.
+     */
+    @StartableByRPC
+    public static class BackfillOrders extends FlowLogic<Long> {
+        @Override
+        @Suspendable
+        public Long call() throws FlowException {
+            QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL);
+            int pageNumber = DEFAULT_PAGE_NUM;
+            long read = 0;
+            long written = 0;
+            Vault.Page<PurchaseOrderState> page;
+            do {
+                page = getServiceHub().getVaultService().queryBy(
+                        PurchaseOrderState.class, criteria, new PageSpecification(pageNumber++, BACKFILL_PAGE_SIZE));
+                List<StateAndRef<PurchaseOrderState>> orders = page.getStates();
+                written += getServiceHub().withEntityManager(entityManager -> {
+                    long persisted = 0;
+                    for (StateAndRef<PurchaseOrderState> order : orders) {
+                        PersistentStateRef stateRef = new PersistentStateRef(order.getRef());
+                        if (entityManager.find(PurchaseOrderSchemaV1.PersistentPurchaseOrder.class, stateRef) == null) {
+                            PersistentState row = order.getState().getData().generateMappedObject(PurchaseOrderSchemaV1.INSTANCE);
+                            row.setStateRef(stateRef);
+                            entityManager.persist(row);
+                            persisted++;
+                        }
+                    }
+                    entityManager.flush();
+                    entityManager.clear();
+                    return persisted;
+                });
+                read += orders.size();
+            } while (read < page.getTotalStatesAvailable() && !page.getStates().isEmpty());
+
+            getLogger().info("Backfilled " + written + " of " + read + " purchase orders");
+            return written;
+        }
+    }
+}
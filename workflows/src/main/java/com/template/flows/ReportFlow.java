@@ -0,0 +1,183 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.r3.corda.lib.tokens.contracts.internal.schemas.PersistentFungibleToken;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.template.states.CouponToken;
+import com.template.states.PurchaseOrderState;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.node.services.vault.*;
+import net.corda.core.serialization.CordaSerializable;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Reports computed by the vault's database with SUM and COUNT grouped by a few columns, so only the
+ * aggregated rows are returned however many states the vault holds.
+ *
+ * Aggregate results come back in {@code Vault.Page#getOtherResults()} as a flat list, each row being the
+ * aggregate followed by its group by values in the order they were given.
+ */
+public class ReportFlow {
+    /**
+     * The quantity of one token type from one issuer, such as the JPY issued by a bank.
+     */
+    @CordaSerializable
+    public static class BalanceRow {
+        private final String tokenIdentifier;
+        private final String issuer;
+        private final long quantity;
+
+        public BalanceRow(String tokenIdentifier, String issuer, long quantity) {
+            this.tokenIdentifier = tokenIdentifier;
+            this.issuer = issuer;
+            this.quantity = quantity;
+        }
+
+        public String getTokenIdentifier() { return tokenIdentifier; }
+
+        public String getIssuer() { return issuer; }
+
+        public long getQuantity() { return quantity; }
+    }
+
+    /**
+     * The orders for one item from one seller, and their total price before coupon discounts.
+     */
+    @CordaSerializable
+    public static class SalesRow {
+        private final String seller;
+        private final String itemId;
+        private final long orders;
+        private final long grossSales;
+
+        public SalesRow(String seller, String itemId, long orders, long grossSales) {
+            this.seller = seller;
+            this.itemId = itemId;
+            this.orders = orders;
+            this.grossSales = grossSales;
+        }
+
+        public String getSeller() { return seller; }
+
+        public String getItemId() { return itemId; }
+
+        public long getOrders() { return orders; }
+
+        public long getGrossSales() { return grossSales; }
+    }
+
+    /**
+     * Sums the unconsumed fungible tokens by token type and issuer, held by {@code holder} or by anyone in the vault if null.
+     */
+    @StartableByRPC
+    public static class Balances extends FlowLogic<List<BalanceRow>> {
+        private final AbstractParty holder;
+
+        public Balances(AbstractParty holder) {
+            this.holder = holder;
+        }
+
+        public Balances() {
+            this(null);
+        }
+
+        @Override
+        @Suspendable
+        public List<BalanceRow> call() throws FlowException {
+            Field tokenIdentifier = tokenField("tokenIdentifier");
+            Field issuer = tokenField("issuer");
+
+            QueryCriteria criteria = new QueryCriteria.VaultCustomQueryCriteria(
+                    Builder.sum(tokenField("amount"), ImmutableList.of(tokenIdentifier, issuer)));
+            if (holder != null) {
+                criteria = criteria.and(new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(tokenField("holder"), holder)));
+            }
+
+            List<Object> sums = getServiceHub().getVaultService().queryBy(FungibleToken.class, criteria).getOtherResults();
+            List<BalanceRow> balances = new ArrayList<>(sums.size() / 3);
+            // Rows of sum, token identifier then issuer
+            for (int i = 0; i + 2 < sums.size(); i += 3) {
+                balances.add(new BalanceRow(
+                        (String) sums.get(i + 1),
+                        CouponToken.partyToString((AbstractParty) sums.get(i + 2)),
+                        ((Number) sums.get(i)).longValue()));
+            }
+            return balances;
+        }
+    }
+
+    /**
+     * Counts and sums the unconsumed purchase orders matching the filters by seller and item, sorted by seller then item.
+     */
+    @StartableByRPC
+    public static class Sales extends FlowLogic<List<SalesRow>> {
+        private final PurchaseOrderQueryFlow.OrderFilters filters;
+
+        public Sales(PurchaseOrderQueryFlow.OrderFilters filters) {
+            this.filters = filters;
+        }
+
+        public Sales() {
+            this(new PurchaseOrderQueryFlow.OrderFilters(null, null, null, null, null));
+        }
+
+        @Override
+        @Suspendable
+        public List<SalesRow> call() throws FlowException {
+            List<Field> sellerAndItem = ImmutableList.of(PurchaseOrderQuery.field("seller"), PurchaseOrderQuery.field("itemId"));
+
+            List<Object> sums = query(Builder.sum(PurchaseOrderQuery.field("price"), sellerAndItem));
+            List<Object> counts = query(count(PurchaseOrderQuery.field("itemId"), sellerAndItem));
+
+            // Both queries group the same orders, so have the same rows of aggregate, seller then item
+            Map<List<Object>, Long> ordersBySellerAndItem = new HashMap<>();
+            for (int i = 0; i + 2 < counts.size(); i += 3) {
+                ordersBySellerAndItem.put(Arrays.asList(counts.get(i + 1), counts.get(i + 2)), ((Number) counts.get(i)).longValue());
+            }
+
+            List<SalesRow> sales = new ArrayList<>(sums.size() / 3);
+            for (int i = 0; i + 2 < sums.size(); i += 3) {
+                String seller = (String) sums.get(i + 1);
+                String itemId = (String) sums.get(i + 2);
+                sales.add(new SalesRow(seller, itemId,
+                        ordersBySellerAndItem.getOrDefault(Arrays.<Object>asList(seller, itemId), 0L),
+                        ((Number) sums.get(i)).longValue()));
+            }
+            sales.sort(Comparator.comparing(SalesRow::getSeller).thenComparing(SalesRow::getItemId));
+            return sales;
+        }
+
+        @Suspendable
+        private List<Object> query(CriteriaExpression aggregate) {
+            QueryCriteria criteria = filters.toCriteria().and(new QueryCriteria.VaultCustomQueryCriteria(aggregate));
+            return getServiceHub().getVaultService().queryBy(PurchaseOrderState.class, criteria).getOtherResults();
+        }
+    }
+
+    /**
+     * A grouped COUNT, which {@link Builder} only offers ungrouped.
+     */
+    @SuppressWarnings("unchecked")
+    public static CriteriaExpression count(Field field, List<Field> groupBy) {
+        List<Column> groupByColumns = new ArrayList<>(groupBy.size());
+        for (Field column : groupBy) {
+            groupByColumns.add(new Column(column));
+        }
+        return new CriteriaExpression.AggregateFunctionExpression(new Column(field),
+                new ColumnPredicate.AggregateFunction(AggregateFunctionType.COUNT), groupByColumns, null);
+    }
+
+    static Field tokenField(String name) {
+        try {
+            return PersistentFungibleToken.class.getDeclaredField(name);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Unknown token column " + name, e);
+        }
+    }
+}
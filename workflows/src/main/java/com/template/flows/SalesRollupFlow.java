@@ -0,0 +1,345 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.template.contracts.PurchaseOrderContract;
+import com.template.services.SalesRollupService;
+import com.template.states.CouponToken;
+import com.template.states.PurchaseOrderState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.flows.StartableByService;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.CordaSerializable;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static com.template.services.SalesRollupSchemaV1.TABLE;
+
+/**
+ * Flows maintaining and reading the sales rollups of {@link com.template.services.SalesRollupSchemaV1}.
+ *
+ * {@link SalesRollupService} applies the orders recorded by the node in batches with {@link ApplyRollups}.
+ * {@link RebuildRollups} recomputes the rollups from the vault, should they ever disagree with it.
+ */
+public class SalesRollupFlow {
+    private SalesRollupFlow() {}
+
+    private static final int PAGE_SIZE = 1000;
+
+    private static final Duration REBUILD_POLL = Duration.ofMillis(100);
+    static final int MAX_ROWS = 10000;
+
+    @CordaSerializable
+    public enum BucketSize {
+        MINUTE(ChronoUnit.MINUTES), HOUR(ChronoUnit.HOURS);
+
+        private final ChronoUnit unit;
+
+        BucketSize(ChronoUnit unit) {
+            this.unit = unit;
+        }
+
+        public Instant start(Instant time) {
+            return time.truncatedTo(unit);
+        }
+    }
+
+    /**
+     * The orders for an item from a seller within one time bucket, or a change to them.
+     */
+    @CordaSerializable
+    public static class Rollup {
+        private final BucketSize bucketSize;
+        private final Instant bucketStart;
+        private final String seller;
+        private final String itemId;
+        private final long orders;
+        private final long grossSales;
+        private final long netSales;
+
+        public Rollup(BucketSize bucketSize, Instant bucketStart, String seller, String itemId, long orders, long grossSales, long netSales) {
+            this.bucketSize = bucketSize;
+            this.bucketStart = bucketStart;
+            this.seller = seller;
+            this.itemId = itemId;
+            this.orders = orders;
+            this.grossSales = grossSales;
+            this.netSales = netSales;
+        }
+
+        /**
+         * The changes an order makes to each size of bucket, negated for an order that is consumed.
+         */
+        public static List<Rollup> of(PurchaseOrderState order, boolean consumed) {
+            int sign = consumed ? -1 : 1;
+            // Orders issued without a sale have no price, discount or time, and are bucketed at the epoch
+            long price = order.getPrice() != null ? order.getPrice() : 0;
+            long netSales = PurchaseOrderContract.discountedPrice(price, order.getDiscount() != null ? order.getDiscount() : 0);
+            Instant orderedAt = order.getOrderedAt() != null ? order.getOrderedAt() : Instant.EPOCH;
+
+            List<Rollup> rollups = new ArrayList<>(BucketSize.values().length);
+            for (BucketSize bucketSize : BucketSize.values()) {
+                rollups.add(new Rollup(bucketSize, bucketSize.start(orderedAt),
+                        CouponToken.partyToString(order.getSeller()), order.getItemId(),
+                        sign, sign * price, sign * netSales));
+            }
+            return rollups;
+        }
+
+        public Rollup plus(Rollup other) {
+            return new Rollup(bucketSize, bucketStart, seller, itemId,
+                    orders + other.orders, grossSales + other.grossSales, netSales + other.netSales);
+        }
+
+        /**
+         * Identifies the row of the rollup table this rollup belongs to.
+         */
+        public List<Object> key() {
+            return Arrays.asList(bucketSize, bucketStart, seller, itemId);
+        }
+
+        public BucketSize getBucketSize() { return bucketSize; }
+
+        public Instant getBucketStart() { return bucketStart; }
+
+        public String getSeller() { return seller; }
+
+        public String getItemId() { return itemId; }
+
+        public long getOrders() { return orders; }
+
+        public long getGrossSales() { return grossSales; }
+
+        /**
+         * The sales after coupon discounts.
+         */
+        public long getNetSales() { return netSales; }
+    }
+
+    /**
+     * Adds a batch of changes to the rollup table, creating rows for new buckets. Returns the number of rows written.
+     */
+    @StartableByService
+    public static class ApplyRollups extends FlowLogic<Integer> {
+        private final List<Rollup> changes;
+
+        public ApplyRollups(List<Rollup> changes) {
+            this.changes = changes;
+        }
+
+        @Override
+        @Suspendable
+        public Integer call() throws FlowException {
+            Connection connection = getServiceHub().jdbcSession();
+            try (PreparedStatement update = connection.prepareStatement(
+                    "UPDATE " + TABLE + " SET orders = orders + ?, gross_sales = gross_sales + ?, net_sales = net_sales + ?" +
+                            " WHERE bucket_size = ? AND bucket_start = ? AND seller = ? AND item_id = ?")) {
+                List<Rollup> inserts = new ArrayList<>();
+                for (Rollup change : changes) {
+                    update.setLong(1, change.getOrders());
+                    update.setLong(2, change.getGrossSales());
+                    update.setLong(3, change.getNetSales());
+                    update.setString(4, change.getBucketSize().name());
+                    update.setTimestamp(5, Timestamp.from(change.getBucketStart()));
+                    update.setString(6, change.getSeller());
+                    update.setString(7, change.getItemId());
+                    if (update.executeUpdate() == 0) {
+                        inserts.add(change);
+                    }
+                }
+                insert(connection, inserts);
+            } catch (SQLException e) {
+                throw new FlowException("Failed to apply sales rollups", e);
+            }
+            return changes.size();
+        }
+    }
+
+    /**
+     * Replaces the rollup table with totals computed from the purchase orders in the vault, returning the number
+     * of orders read.
+     *
+     * The rebuild runs as {@link ReplaceRollups} on the thread {@link SalesRollupService} writes from, after it
+     * has discarded the changes not yet applied, as the vault already holds their orders. No flush is in flight
+     * while it runs. An order recorded while the rebuild reads the vault may be counted twice, so rebuild when
+     * the node is quiet.
+     */
+    @StartableByRPC
+    public static class RebuildRollups extends FlowLogic<Long> {
+        @Override
+        @Suspendable
+        public Long call() throws FlowException {
+            SalesRollupService service = getServiceHub().cordaService(SalesRollupService.class);
+            String rebuildId = service.rebuild();
+
+            Long read;
+            while ((read = rebuilt(service, rebuildId)) == null) {
+                sleep(REBUILD_POLL);
+            }
+            return read;
+        }
+
+        private static Long rebuilt(SalesRollupService service, String rebuildId) throws FlowException {
+            CompletableFuture<Long> rebuild = service.getRebuild(rebuildId);
+            if (rebuild == null) {
+                throw new FlowException("Sales rollup rebuild " + rebuildId + " was lost when the node restarted");
+            }
+            if (!rebuild.isDone()) {
+                return null;
+            }
+            try {
+                return rebuild.get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new FlowException("Failed to rebuild sales rollups", e instanceof ExecutionException ? e.getCause() : e);
+            }
+        }
+    }
+
+    /**
+     * Replaces the rollup table with totals computed from the purchase orders in the vault, in one transaction.
+     * Returns the number of orders read. Started by {@link SalesRollupService} for {@link RebuildRollups}.
+     */
+    @StartableByService
+    public static class ReplaceRollups extends FlowLogic<Long> {
+        @Override
+        @Suspendable
+        public Long call() throws FlowException {
+            Map<List<Object>, Rollup> rollups = new HashMap<>();
+            QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED);
+            int pageNumber = 1;
+            long read = 0;
+            Vault.Page<PurchaseOrderState> page;
+            do {
+                page = getServiceHub().getVaultService().queryBy(PurchaseOrderState.class, criteria, new PageSpecification(pageNumber++, PAGE_SIZE));
+                for (StateAndRef<PurchaseOrderState> order : page.getStates()) {
+                    for (Rollup rollup : Rollup.of(order.getState().getData(), false)) {
+                        rollups.merge(rollup.key(), rollup, Rollup::plus);
+                    }
+                }
+                read += page.getStates().size();
+            } while (read < page.getTotalStatesAvailable() && !page.getStates().isEmpty());
+
+            Connection connection = getServiceHub().jdbcSession();
+            try (Statement delete = connection.createStatement()) {
+                delete.executeUpdate("DELETE FROM " + TABLE);
+                insert(connection, rollups.values());
+            } catch (SQLException e) {
+                throw new FlowException("Failed to rebuild sales rollups", e);
+            }
+
+            getLogger().info("Rebuilt " + rollups.size() + " sales rollups from " + read + " orders");
+            return read;
+        }
+    }
+
+    /**
+     * Reads the rollups of one bucket size from {@code from} inclusive until {@code until} exclusive, oldest first,
+     * for the seller and item if given. At most {@link #MAX_ROWS} rows are returned.
+     */
+    @StartableByRPC
+    public static class QueryRollups extends FlowLogic<List<Rollup>> {
+        private final BucketSize bucketSize;
+        private final AbstractParty seller;
+        private final String itemId;
+        private final Instant from;
+        private final Instant until;
+
+        public QueryRollups(BucketSize bucketSize, AbstractParty seller, String itemId, Instant from, Instant until) {
+            this.bucketSize = bucketSize;
+            this.seller = seller;
+            this.itemId = itemId;
+            this.from = from;
+            this.until = until;
+        }
+
+        @Override
+        @Suspendable
+        public List<Rollup> call() throws FlowException {
+            StringBuilder sql = new StringBuilder("SELECT bucket_start, seller, item_id, orders, gross_sales, net_sales FROM " + TABLE +
+                    " WHERE bucket_size = ?");
+            List<Object> parameters = new ArrayList<>();
+            parameters.add(bucketSize.name());
+            if (from != null) {
+                sql.append(" AND bucket_start >= ?");
+                parameters.add(Timestamp.from(from));
+            }
+            if (until != null) {
+                sql.append(" AND bucket_start < ?");
+                parameters.add(Timestamp.from(until));
+            }
+            if (seller != null) {
+                sql.append(" AND seller = ?");
+                parameters.add(CouponToken.partyToString(seller));
+            }
+            if (itemId != null) {
+                sql.append(" AND item_id = ?");
+                parameters.add(itemId);
+            }
+            sql.append(" ORDER BY bucket_start, seller, item_id");
+
+            try (PreparedStatement query = getServiceHub().jdbcSession().prepareStatement(sql.toString())) {
+                for (int i = 0; i < parameters.size(); i++) {
+                    query.setObject(i + 1, parameters.get(i));
+                }
+                query.setMaxRows(MAX_ROWS);
+
+                List<Rollup> rollups = new ArrayList<>();
+                try (ResultSet rows = query.executeQuery()) {
+                    while (rows.next()) {
+                        rollups.add(new Rollup(bucketSize,
+                                rows.getTimestamp("bucket_start").toInstant(),
+                                rows.getString("seller"),
+                                rows.getString("item_id"),
+                                rows.getLong("orders"),
+                                rows.getLong("gross_sales"),
+                                rows.getLong("net_sales")));
+                    }
+                }
+                return rollups;
+            } catch (SQLException e) {
+                throw new FlowException("Failed to read sales rollups", e);
+            }
+        }
+    }
+
+    private static void insert(Connection connection, Collection<Rollup> rollups) throws SQLException {
+        if (rollups.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO " + TABLE + " (bucket_size, bucket_start, seller, item_id, orders, gross_sales, net_sales)" +
+                        " VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+            int batched = 0;
+            for (Rollup rollup : rollups) {
+                insert.setString(1, rollup.getBucketSize().name());
+                insert.setTimestamp(2, Timestamp.from(rollup.getBucketStart()));
+                insert.setString(3, rollup.getSeller());
+                insert.setString(4, rollup.getItemId());
+                insert.setLong(5, rollup.getOrders());
+                insert.setLong(6, rollup.getGrossSales());
+                insert.setLong(7, rollup.getNetSales());
+                insert.addBatch();
+                if (++batched % PAGE_SIZE == 0) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+        }
+    }
+}
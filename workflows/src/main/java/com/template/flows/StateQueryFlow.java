@@ -0,0 +1,343 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.r3.corda.lib.tokens.contracts.internal.schemas.PersistentFungibleToken;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.template.states.CouponToken;
+import com.template.states.PurchaseOrderState;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.*;
+import net.corda.core.serialization.CordaSerializable;
+
+import java.lang.reflect.Field;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Paged vault queries returning compact summaries of states, in place of {@link PrintStates}.
+ *
+ * Each query targets a single kind of state, and fetches one page of it along with the number of
+ * such states in the vault, so no query loads more than a page into memory.
+ */
+public class StateQueryFlow {
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    @CordaSerializable
+    public enum Kind { CASH, COUPON, PURCHASE_ORDER }
+
+    /**
+     * Optional filters on a query. Null fields leave that column unfiltered. For purchase orders the
+     * issuer is matched against the seller and the holder against the buyer.
+     */
+    @CordaSerializable
+    public static class Filters {
+        private final AbstractParty issuer;
+        private final AbstractParty holder;
+        private final String itemId;
+
+        public Filters(AbstractParty issuer, AbstractParty holder, String itemId) {
+            this.issuer = issuer;
+            this.holder = holder;
+            this.itemId = itemId;
+        }
+
+        public static Filters none() {
+            return new Filters(null, null, null);
+        }
+
+        public AbstractParty getIssuer() { return issuer; }
+
+        public AbstractParty getHolder() { return holder; }
+
+        public String getItemId() { return itemId; }
+    }
+
+    /**
+     * A state reduced to the fields clients display, with parties given as {@link CouponToken#partyToString} gives them.
+     */
+    @CordaSerializable
+    public static abstract class StateSummary {
+        private final String ref;
+
+        protected StateSummary(String ref) {
+            this.ref = ref;
+        }
+
+        public String getRef() { return ref; }
+    }
+
+    @CordaSerializable
+    public static class CashSummary extends StateSummary {
+        private final String issuer;
+        private final String holder;
+        private final String tokenIdentifier;
+        private final long quantity;
+
+        public CashSummary(String ref, String issuer, String holder, String tokenIdentifier, long quantity) {
+            super(ref);
+            this.issuer = issuer;
+            this.holder = holder;
+            this.tokenIdentifier = tokenIdentifier;
+            this.quantity = quantity;
+        }
+
+        static CashSummary of(StateAndRef<FungibleToken> stateAndRef) {
+            FungibleToken token = stateAndRef.getState().getData();
+            return new CashSummary(stateAndRef.getRef().toString(),
+                    CouponToken.partyToString(token.getIssuer()),
+                    CouponToken.partyToString(token.getHolder()),
+                    token.getTokenType().getTokenIdentifier(),
+                    token.getAmount().getQuantity());
+        }
+
+        public String getIssuer() { return issuer; }
+
+        public String getHolder() { return holder; }
+
+        public String getTokenIdentifier() { return tokenIdentifier; }
+
+        public long getQuantity() { return quantity; }
+    }
+
+    @CordaSerializable
+    public static class CouponSummary extends StateSummary {
+        private final String linearId;
+        private final String issuer;
+        private final String holder;
+        private final String itemId;
+        private final int discount;
+        private final Instant expiresAt;
+
+        public CouponSummary(String ref, String linearId, String issuer, String holder, String itemId, int discount, Instant expiresAt) {
+            super(ref);
+            this.linearId = linearId;
+            this.issuer = issuer;
+            this.holder = holder;
+            this.itemId = itemId;
+            this.discount = discount;
+            this.expiresAt = expiresAt;
+        }
+
+        static CouponSummary of(StateAndRef<CouponToken> stateAndRef) {
+            CouponToken coupon = stateAndRef.getState().getData();
+            return new CouponSummary(stateAndRef.getRef().toString(),
+                    coupon.getLinearId().getId().toString(),
+                    CouponToken.partyToString(coupon.getIssuer()),
+                    CouponToken.partyToString(coupon.getHolder()),
+                    coupon.getCouponTokenType().getItemId(),
+                    coupon.getCouponTokenType().getDiscount(),
+                    coupon.getCouponTokenType().getExpiresAt());
+        }
+
+        public String getLinearId() { return linearId; }
+
+        public String getIssuer() { return issuer; }
+
+        public String getHolder() { return holder; }
+
+        public String getItemId() { return itemId; }
+
+        public int getDiscount() { return discount; }
+
+        /**
+         * When the coupon expires, or null if it never does.
+         */
+        public Instant getExpiresAt() { return expiresAt; }
+    }
+
+    @CordaSerializable
+    public static class PurchaseOrderSummary extends StateSummary {
+        private final String seller;
+        private final String buyer;
+        private final String itemId;
+        private final Long price;
+        private final Integer discount;
+        private final Instant orderedAt;
+
+        public PurchaseOrderSummary(String ref, String seller, String buyer, String itemId, Long price, Integer discount, Instant orderedAt) {
+            super(ref);
+            this.seller = seller;
+            this.buyer = buyer;
+            this.itemId = itemId;
+            this.price = price;
+            this.discount = discount;
+            this.orderedAt = orderedAt;
+        }
+
+        static PurchaseOrderSummary of(StateAndRef<PurchaseOrderState> stateAndRef) {
+            PurchaseOrderState order = stateAndRef.getState().getData();
+            return new PurchaseOrderSummary(stateAndRef.getRef().toString(),
+                    CouponToken.partyToString(order.getSeller()),
+                    CouponToken.partyToString(order.getBuyer()),
+                    order.getItemId(),
+                    order.getPrice(),
+                    order.getDiscount(),
+                    order.getOrderedAt());
+        }
+
+        public String getSeller() { return seller; }
+
+        public String getBuyer() { return buyer; }
+
+        public String getItemId() { return itemId; }
+
+        public Long getPrice() { return price; }
+
+        public Integer getDiscount() { return discount; }
+
+        public Instant getOrderedAt() { return orderedAt; }
+    }
+
+    /**
+     * One page of summaries, with the total number of unconsumed states of that kind matching the filters.
+     */
+    @CordaSerializable
+    public static class StatePage {
+        private final Kind kind;
+        private final int pageNumber;
+        private final int pageSize;
+        private final long totalStatesAvailable;
+        private final List<StateSummary> states;
+
+        public StatePage(Kind kind, int pageNumber, int pageSize, long totalStatesAvailable, List<StateSummary> states) {
+            this.kind = kind;
+            this.pageNumber = pageNumber;
+            this.pageSize = pageSize;
+            this.totalStatesAvailable = totalStatesAvailable;
+            this.states = states;
+        }
+
+        public Kind getKind() { return kind; }
+
+        public int getPageNumber() { return pageNumber; }
+
+        public int getPageSize() { return pageSize; }
+
+        public long getTotalStatesAvailable() { return totalStatesAvailable; }
+
+        public List<StateSummary> getStates() { return states; }
+    }
+
+    /**
+     * Returns one page of unconsumed states of a kind, oldest first. Pages are numbered from {@code DEFAULT_PAGE_NUM}.
+     */
+    @StartableByRPC
+    public static class QueryStates extends FlowLogic<StatePage> {
+        private final Kind kind;
+        private final int pageNumber;
+        private final int pageSize;
+        private final Filters filters;
+
+        public QueryStates(Kind kind, int pageNumber, int pageSize, Filters filters) {
+            this.kind = kind;
+            this.pageNumber = pageNumber;
+            this.pageSize = pageSize;
+            this.filters = filters != null ? filters : Filters.none();
+        }
+
+        public QueryStates(Kind kind, int pageNumber, int pageSize) {
+            this(kind, pageNumber, pageSize, Filters.none());
+        }
+
+        @Override
+        @Suspendable
+        public StatePage call() throws FlowException {
+            if (pageNumber < DEFAULT_PAGE_NUM) {
+                throw new FlowException("Pages are numbered from " + DEFAULT_PAGE_NUM);
+            }
+            if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+                throw new FlowException("Page size must be between 1 and " + MAX_PAGE_SIZE);
+            }
+
+            PageSpecification paging = new PageSpecification(pageNumber, pageSize);
+            switch (kind) {
+                case CASH:
+                    return page(FungibleToken.class, cashCriteria(filters), paging, CashSummary::of);
+                case COUPON:
+                    return page(CouponToken.class, CouponQuery.criteria(filters.getIssuer(), filters.getHolder(), filters.getItemId()), paging, CouponSummary::of);
+                default:
+                    return page(PurchaseOrderState.class,
+                            PurchaseOrderQuery.criteria(filters.getIssuer(), filters.getHolder(), filters.getItemId(), null, null),
+                            paging, PurchaseOrderSummary::of);
+            }
+        }
+
+        @Suspendable
+        private <T extends ContractState> StatePage page(Class<T> stateClass, QueryCriteria criteria, PageSpecification paging,
+                                                        Function<StateAndRef<T>, StateSummary> summary) {
+            Vault.Page<T> page = getServiceHub().getVaultService().queryBy(stateClass, criteria, paging, OLDEST_FIRST);
+
+            List<StateSummary> states = new ArrayList<>(page.getStates().size());
+            for (StateAndRef<T> state : page.getStates()) {
+                states.add(summary.apply(state));
+            }
+            return new StatePage(kind, pageNumber, pageSize, page.getTotalStatesAvailable(), states);
+        }
+    }
+
+    /**
+     * Counts the unconsumed states of every kind, with one count query per kind.
+     */
+    @StartableByRPC
+    public static class CountStates extends FlowLogic<Map<Kind, Long>> {
+        @Override
+        @Suspendable
+        public Map<Kind, Long> call() throws FlowException {
+            Map<Kind, Long> counts = new LinkedHashMap<>();
+            counts.put(Kind.CASH, count(FungibleToken.class));
+            counts.put(Kind.COUPON, count(CouponToken.class));
+            counts.put(Kind.PURCHASE_ORDER, count(PurchaseOrderState.class));
+            return counts;
+        }
+
+        // A one state page, as the total is counted in the database whatever the page size
+        @Suspendable
+        private long count(Class<? extends ContractState> stateClass) {
+            return getServiceHub().getVaultService()
+                    .queryBy(stateClass, new QueryCriteria.VaultQueryCriteria(), new PageSpecification(DEFAULT_PAGE_NUM, 1))
+                    .getTotalStatesAvailable();
+        }
+    }
+
+    private static final Sort OLDEST_FIRST = new Sort(ImmutableList.of(new Sort.SortColumn(
+            new SortAttribute.Standard(Sort.VaultStateAttribute.RECORDED_TIME),
+            Sort.Direction.ASC)));
+
+    private static QueryCriteria cashCriteria(Filters filters) throws FlowException {
+        if (filters.getItemId() != null) {
+            throw new FlowException("Cash cannot be filtered by item");
+        }
+
+        QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria();
+        if (filters.getIssuer() != null) {
+            criteria = criteria.and(new QueryCriteria.VaultCustomQueryCriteria(
+                    Builder.equal(cashField("issuer"), filters.getIssuer())));
+        }
+        if (filters.getHolder() != null) {
+            criteria = criteria.and(new QueryCriteria.VaultCustomQueryCriteria(
+                    Builder.equal(cashField("holder"), filters.getHolder())));
+        }
+        return criteria;
+    }
+
+    private static Field cashField(String name) {
+        try {
+            return PersistentFungibleToken.class.getDeclaredField(name);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Unknown token column " + name, e);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.TokenType;
+import com.r3.corda.lib.tokens.money.FiatCurrency;
+import com.r3.corda.lib.tokens.workflows.types.PartyAndAmount;
+import net.corda.core.contracts.Amount;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.flows.StartableByService;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+
+import java.util.Collections;
+import java.util.List;
+
+import static com.r3.corda.lib.tokens.workflows.flows.move.MoveTokensUtilitiesKt.addMoveFungibleTokens;
+import static com.r3.corda.lib.tokens.workflows.utilities.QueryUtilitiesKt.heldTokenAmountCriteria;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Splits our cash into tokens of one denomination, so concurrent payments each lock a different token
+ * rather than queueing on a single large one.
+ *
+ * A wallet is shaped when we hold {@code cash.shaping.count} unlocked tokens of exactly
+ * {@code cash.shaping.denomination} on the notary holding most of our cash. Missing tokens are split off
+ * our other tokens in one transaction, as far as they cover. {@link CashSelection} then pays each purchase
+ * from the smallest token covering it. Keep the count below {@code cash.consolidation.threshold}, or
+ * {@link CashConsolidationFlow} merges the denominations back together.
+ */
+public class WalletShapingFlow {
+    private WalletShapingFlow() {}
+
+    static final String DENOMINATION_CONFIG = "cash.shaping.denomination";
+    static final String COUNT_CONFIG = "cash.shaping.count";
+
+    static final long DEFAULT_DENOMINATION = 1000;
+    static final int DEFAULT_COUNT = 10;
+
+    @CordaSerializable
+    public static class ShapingResult {
+        private final long held;
+        private final long created;
+
+        public ShapingResult(long held, long created) {
+            this.held = held;
+            this.created = created;
+        }
+
+        /**
+         * Tokens of the denomination we held before shaping.
+         */
+        public long getHeld() { return held; }
+
+        public long getCreated() { return created; }
+
+        @Override
+        public String toString() {
+            return String.format("Held %d tokens of the denomination, created %d", held, created);
+        }
+    }
+
+    /**
+     * Tops our {@code currency} up to {@code count} tokens of {@code denomination}. The denomination and count
+     * default to the {@code cash.shaping.denomination} and {@code cash.shaping.count} CorDapp settings.
+     */
+    @StartableByRPC
+    @StartableByService
+    public static class ShapeWallet extends FlowLogic<ShapingResult> {
+        private final ProgressTracker progressTracker = new ProgressTracker();
+
+        private final String currency;
+        private final Long denomination;
+        private final Integer count;
+
+        public ShapeWallet(String currency, Long denomination, Integer count) {
+            this.currency = currency;
+            this.denomination = denomination;
+            this.count = count;
+        }
+
+        public ShapeWallet(String currency) {
+            this(currency, null, null);
+        }
+
+        public ShapeWallet() {
+            this("JPY");
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Override
+        @Suspendable
+        public ShapingResult call() throws FlowException {
+            long size = denomination != null ? denomination : AppConfig.getLong(getServiceHub(), DENOMINATION_CONFIG, DEFAULT_DENOMINATION);
+            int target = count != null ? count : AppConfig.getInt(getServiceHub(), COUNT_CONFIG, DEFAULT_COUNT);
+            if (size < 1 || target < 1) {
+                throw new FlowException("Denomination and count must be positive");
+            }
+
+            TokenType tokenType = FiatCurrency.Companion.getInstance(currency);
+            Party notary = NotaryBinding.notaryForFungibleTokens(this, tokenType);
+            QueryCriteria unlocked = heldTokenAmountCriteria(tokenType, getOurIdentity())
+                    .and(new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED, null, null, ImmutableList.of(notary),
+                            new QueryCriteria.SoftLockingCondition(QueryCriteria.SoftLockingType.UNLOCKED_ONLY, ImmutableList.of())));
+            QueryCriteria shaped = unlocked.and(new QueryCriteria.VaultCustomQueryCriteria(
+                    Builder.equal(ReportFlow.tokenField("amount"), size)));
+            QueryCriteria others = unlocked.and(new QueryCriteria.VaultCustomQueryCriteria(
+                    Builder.notEqual(ReportFlow.tokenField("amount"), size)));
+
+            long held = getServiceHub().getVaultService()
+                    .queryBy(FungibleToken.class, shaped, new PageSpecification(DEFAULT_PAGE_NUM, 1))
+                    .getTotalStatesAvailable();
+            int maxOutputs = AppConfig.getInt(getServiceHub(), CashBatchFlow.MAX_OUTPUTS_CONFIG, CashBatchFlow.DEFAULT_MAX_OUTPUTS_PER_TRANSACTION);
+            // The change from the split tokens takes one more output
+            long splits = Math.min(Math.min(target - held, spendable(others) / size), maxOutputs - 1);
+            if (splits <= 0) {
+                return new ShapingResult(held, 0);
+            }
+
+            // Pay ourselves one token per missing denomination, taking change from tokens of other sizes only
+            List<PartyAndAmount<TokenType>> denominations = Collections.nCopies((int) splits,
+                    new PartyAndAmount<>(getOurIdentity(), new Amount<>(size, tokenType)));
+            TransactionBuilder transactionBuilder = new TransactionBuilder(notary);
+            addMoveFungibleTokens(transactionBuilder, getServiceHub(), denominations, getOurIdentity(),
+                    NotaryBinding.onNotary(notary).and(others));
+
+            NotaryBinding.signAndFinalise(this, transactionBuilder, ImmutableList.of());
+
+            ShapingResult result = new ShapingResult(held, splits);
+            getLogger().info(result.toString());
+            return result;
+        }
+
+        @Suspendable
+        private long spendable(QueryCriteria criteria) {
+            List<Object> sums = getServiceHub().getVaultService().queryBy(FungibleToken.class,
+                    criteria.and(new QueryCriteria.VaultCustomQueryCriteria(Builder.sum(ReportFlow.tokenField("amount")))))
+                    .getOtherResults();
+            return sums.isEmpty() || sums.get(0) == null ? 0 : ((Number) sums.get(0)).longValue();
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.template.services;
+
+/**
+ * The family of schemas recording the progress of coupon campaigns run by {@link CampaignService}.
+ */
+public class CampaignSchema {
+    private CampaignSchema() {}
+}
@@ -0,0 +1,189 @@
+package com.template.services;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.schemas.MappedSchema;
+import org.jetbrains.annotations.Nullable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Version;
+import java.time.Instant;
+
+/**
+ * Tables holding each campaign, its chunks and its rows, so a campaign survives a node restart.
+ */
+public class CampaignSchemaV1 extends MappedSchema {
+    public static final String PENDING = "PENDING";
+    public static final String STARTED = "STARTED";
+    public static final String DONE = "DONE";
+    // A chunk whose issuance threw, free to be claimed again.
+    public static final String FAILED = "FAILED";
+
+    public CampaignSchemaV1() {
+        super(CampaignSchema.class, 1, ImmutableList.of(PersistentCampaign.class, PersistentChunk.class, PersistentRow.class));
+    }
+
+    @Nullable
+    @Override
+    public String getMigrationResource() {
+        return "campaign.changelog-master";
+    }
+
+    public static int chunkCount(int totalRows, int rowsPerChunk) {
+        return (totalRows + rowsPerChunk - 1) / rowsPerChunk;
+    }
+
+    public static String chunkId(String campaignId, int chunkIndex) {
+        return campaignId + "/" + chunkIndex;
+    }
+
+    public static String rowId(String campaignId, int rowIndex) {
+        return campaignId + "#" + rowIndex;
+    }
+
+    @Entity(name = "CouponCampaign")
+    @Table(name = "coupon_campaigns")
+    public static class PersistentCampaign {
+        @Id @Column(name = "campaign_id") private String campaignId;
+        @Column(name = "total_rows") private int totalRows;
+        @Column(name = "total_chunks") private int totalChunks;
+        @Column(name = "max_in_flight") private int maxInFlight;
+        @Column(name = "created_at") private Instant createdAt;
+
+        public PersistentCampaign(String campaignId, int totalRows, int totalChunks, int maxInFlight, Instant createdAt) {
+            this.campaignId = campaignId;
+            this.totalRows = totalRows;
+            this.totalChunks = totalChunks;
+            this.maxInFlight = maxInFlight;
+            this.createdAt = createdAt;
+        }
+
+        // Default constructor required by hibernate.
+        public PersistentCampaign() {}
+
+        public String getCampaignId() { return campaignId; }
+
+        public int getTotalRows() { return totalRows; }
+
+        public int getTotalChunks() { return totalChunks; }
+
+        public int getMaxInFlight() { return maxInFlight; }
+
+        public Instant getCreatedAt() { return createdAt; }
+    }
+
+    @Entity(name = "CouponCampaignChunk")
+    @Table(name = "coupon_campaign_chunks", indexes = {
+            @Index(name = "campaign_chunk_status_idx", columnList = "campaign_id, status")
+    })
+    public static class PersistentChunk {
+        @Id @Column(name = "chunk_id") private String chunkId;
+        @Column(name = "campaign_id") private String campaignId;
+        @Column(name = "chunk_index") private int chunkIndex;
+        @Column(name = "status") private String status;
+        @Column(name = "run_id") private String runId;
+        @Column(name = "issued") private int issued;
+        @Column(name = "failed") private int failed;
+        // Stops a chunk being claimed by two flows if it is relaunched while its checkpoint also resumes.
+        @Version @Column(name = "version") private int version;
+
+        public PersistentChunk(String campaignId, int chunkIndex) {
+            this.chunkId = chunkId(campaignId, chunkIndex);
+            this.campaignId = campaignId;
+            this.chunkIndex = chunkIndex;
+            this.status = PENDING;
+        }
+
+        // Default constructor required by hibernate.
+        public PersistentChunk() {}
+
+        public String getChunkId() { return chunkId; }
+
+        public String getCampaignId() { return campaignId; }
+
+        public int getChunkIndex() { return chunkIndex; }
+
+        public String getStatus() { return status; }
+
+        public String getRunId() { return runId; }
+
+        public int getIssued() { return issued; }
+
+        public int getFailed() { return failed; }
+
+        public void start(String runId) {
+            this.status = STARTED;
+            this.runId = runId;
+        }
+
+        public void fail() {
+            this.status = FAILED;
+            this.runId = null;
+        }
+
+        public void finish(int issued, int failed) {
+            this.status = DONE;
+            this.issued = issued;
+            this.failed = failed;
+        }
+    }
+
+    @Entity(name = "CouponCampaignRow")
+    @Table(name = "coupon_campaign_rows", indexes = {
+            @Index(name = "campaign_row_chunk_idx", columnList = "chunk_id")
+    })
+    public static class PersistentRow {
+        @Id @Column(name = "row_id") private String rowId;
+        @Column(name = "chunk_id") private String chunkId;
+        @Column(name = "row_index") private int rowIndex;
+        @Column(name = "recipient") private String recipient;
+        @Column(name = "item_id") private String itemId;
+        @Column(name = "discount") private int discount;
+        @Column(name = "expires_at") private Instant expiresAt;
+        @Column(name = "tx_id") private String txId;
+        @Column(name = "error") private String error;
+
+        public PersistentRow(String campaignId, int chunkIndex, int rowIndex, String recipient, String itemId, int discount,
+                             Instant expiresAt) {
+            this.rowId = rowId(campaignId, rowIndex);
+            this.chunkId = chunkId(campaignId, chunkIndex);
+            this.rowIndex = rowIndex;
+            this.recipient = recipient;
+            this.itemId = itemId;
+            this.discount = discount;
+            this.expiresAt = expiresAt;
+        }
+
+        // Default constructor required by hibernate.
+        public PersistentRow() {}
+
+        public String getRowId() { return rowId; }
+
+        public String getChunkId() { return chunkId; }
+
+        public int getRowIndex() { return rowIndex; }
+
+        public String getRecipient() { return recipient; }
+
+        public String getItemId() { return itemId; }
+
+        public int getDiscount() { return discount; }
+
+        /**
+         * When the row's coupon expires, or null if it never does.
+         */
+        public Instant getExpiresAt() { return expiresAt; }
+
+        public String getTxId() { return txId; }
+
+        public String getError() { return error; }
+
+        public void setResult(String txId, String error) {
+            this.txId = txId;
+            this.error = error;
+        }
+    }
+}
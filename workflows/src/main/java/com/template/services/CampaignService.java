@@ -0,0 +1,197 @@
+package com.template.services;
+
+import com.template.flows.CampaignFlow;
+import com.template.flows.CouponFlow;
+import net.corda.core.messaging.FlowHandle;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs coupon campaigns by starting one {@link CampaignFlow.IssueCampaignChunk} per chunk,
+ * keeping at most the campaign's maxInFlight chunk flows running at a time.
+ *
+ * Campaign, chunk and row progress is kept in {@link CampaignSchemaV1}. A chunk whose flow fails is released
+ * with {@link CampaignFlow.ReleaseCampaignChunk}. When the node starts, {@link CampaignFlow.ResumeCampaigns}
+ * relaunches every chunk which had not been started yet or had failed; chunks which were already running
+ * resume from their own checkpoints.
+ */
+@CordaService
+public class CampaignService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(CampaignService.class);
+
+    private final AppServiceHub serviceHub;
+
+    // Flows are started from a single thread, never from the constructor or from flow callbacks.
+    private final ExecutorService launcher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "coupon-campaign-launcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, CampaignRun> campaigns = new ConcurrentHashMap<>();
+
+    public CampaignService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        launcher.execute(() -> {
+            try {
+                serviceHub.startFlow(new CampaignFlow.ResumeCampaigns());
+            } catch (Exception e) {
+                logger.error("Failed to resume coupon campaigns", e);
+            }
+        });
+    }
+
+    /**
+     * Stores a new campaign with {@link CampaignFlow.StoreCampaign} and launches its chunks once it is committed.
+     * The campaign's progress is available straight away, and is dropped again if storing it fails.
+     */
+    public void start(String campaignId, List<CouponFlow.CouponRequest> requests, int rowsPerChunk, int maxInFlight) {
+        int totalChunks = CampaignSchemaV1.chunkCount(requests.size(), rowsPerChunk);
+        campaigns.put(campaignId, new CampaignRun(requests.size(), totalChunks, maxInFlight, serviceHub.getClock().instant(), 0, 0, 0));
+
+        launcher.execute(() -> {
+            try {
+                serviceHub.startFlow(new CampaignFlow.StoreCampaign(campaignId, requests, rowsPerChunk, maxInFlight))
+                        .getReturnValue()
+                        .toCompletableFuture()
+                        .whenComplete((chunkIds, error) -> {
+                            if (error != null) {
+                                logger.error("Failed to store campaign " + campaignId, error);
+                                campaigns.remove(campaignId);
+                            } else {
+                                launch(campaignId, requests.size(), totalChunks, maxInFlight, chunkIds, 0, 0, 0);
+                            }
+                        });
+            } catch (Exception e) {
+                logger.error("Failed to start storing campaign " + campaignId, e);
+                campaigns.remove(campaignId);
+            }
+        });
+    }
+
+    /**
+     * Queues the given chunks of a campaign and starts as many as the campaign allows.
+     * The issued and failed counts seed the campaign's counters when it is resumed.
+     */
+    public void launch(String campaignId, int totalRows, int totalChunks, int maxInFlight, List<String> chunkIds,
+                       long issued, long failed, int chunksDone) {
+        CampaignRun run = campaigns.computeIfAbsent(campaignId, id ->
+                new CampaignRun(totalRows, totalChunks, maxInFlight, serviceHub.getClock().instant(), issued, failed, chunksDone));
+        run.pending.addAll(chunkIds);
+        launcher.execute(() -> fill(run));
+    }
+
+    /**
+     * Called by a chunk flow once its coupons are issued.
+     */
+    public void chunkCompleted(String campaignId, long issued, long failed) {
+        CampaignRun run = campaigns.get(campaignId);
+        if (run != null) {
+            run.issued.addAndGet(issued);
+            run.failed.addAndGet(failed);
+            run.chunksDone.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the live progress of a campaign run by this node since it started, or null if it is unknown.
+     */
+    public CampaignFlow.CampaignProgress getProgress(String campaignId) {
+        CampaignRun run = campaigns.get(campaignId);
+        if (run == null) {
+            return null;
+        }
+
+        long elapsedMillis = Duration.between(run.startedAt, serviceHub.getClock().instant()).toMillis();
+        // Coupons issued before a restart are not counted towards this run's rate.
+        double couponsPerSecond = elapsedMillis > 0 ? (run.issued.get() - run.issuedBeforeStart) * 1000.0 / elapsedMillis : 0;
+        return new CampaignFlow.CampaignProgress(
+                campaignId,
+                run.totalRows,
+                run.issued.get(),
+                run.failed.get(),
+                run.totalChunks,
+                run.chunksDone.get(),
+                run.inFlight.get(),
+                elapsedMillis,
+                couponsPerSecond);
+    }
+
+    private void fill(CampaignRun run) {
+        while (run.inFlight.get() < run.maxInFlight) {
+            String chunkId = run.pending.poll();
+            if (chunkId == null) {
+                return;
+            }
+
+            run.inFlight.incrementAndGet();
+            try {
+                FlowHandle<CouponFlow.IssueCouponsResult> handle = serviceHub.startFlow(new CampaignFlow.IssueCampaignChunk(chunkId));
+                String runId = handle.getId().getUuid().toString();
+                handle.getReturnValue()
+                        .toCompletableFuture()
+                        .whenComplete((result, error) -> {
+                            if (error != null) {
+                                logger.warn("Campaign chunk " + chunkId + " failed", error);
+                                launcher.execute(() -> release(chunkId, runId));
+                            }
+                            run.inFlight.decrementAndGet();
+                            launcher.execute(() -> fill(run));
+                        });
+            } catch (Exception e) {
+                logger.error("Failed to start campaign chunk " + chunkId, e);
+                run.inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    // The failed flow has rolled back by the time its future completes, so the release commits on its own.
+    private void release(String chunkId, String runId) {
+        try {
+            serviceHub.startFlow(new CampaignFlow.ReleaseCampaignChunk(chunkId, runId));
+        } catch (Exception e) {
+            logger.error("Failed to release campaign chunk " + chunkId, e);
+        }
+    }
+
+    private static class CampaignRun {
+        private final int totalRows;
+        private final int totalChunks;
+        private final int maxInFlight;
+        private final Instant startedAt;
+
+        private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong issued;
+        private final AtomicLong failed;
+        private final AtomicInteger chunksDone;
+        private final long issuedBeforeStart;
+
+        private CampaignRun(int totalRows, int totalChunks, int maxInFlight, Instant startedAt,
+                            long issued, long failed, int chunksDone) {
+            this.totalRows = totalRows;
+            this.totalChunks = totalChunks;
+            this.maxInFlight = maxInFlight;
+            this.startedAt = startedAt;
+            this.issued = new AtomicLong(issued);
+            this.failed = new AtomicLong(failed);
+            this.chunksDone = new AtomicInteger(chunksDone);
+            this.issuedBeforeStart = issued;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.template.services;
+
+import com.template.flows.AppConfig;
+import com.template.flows.CashConsolidationFlow;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+/**
+ * Starts a {@link CashConsolidationFlow.ConsolidateCash} for {@code cash.consolidation.currency} every
+ * {@code cash.consolidation.checkMillis}, which merges our tokens from any issuer past the fragmentation threshold
+ * and otherwise does nothing.
+ *
+ * Consolidation is off unless {@code cash.consolidation.enabled} is true. Only one consolidation runs at a time.
+ */
+@CordaService
+public class CashConsolidationService extends SingletonSerializeAsToken {
+    static final String ENABLED_CONFIG = "cash.consolidation.enabled";
+    static final String CHECK_MILLIS_CONFIG = "cash.consolidation.checkMillis";
+    static final String CURRENCY_CONFIG = "cash.consolidation.currency";
+
+    static final long DEFAULT_CHECK_MILLIS = 5 * 60 * 1000;
+    static final String DEFAULT_CURRENCY = "JPY";
+
+    private final ScheduledFlow consolidation;
+
+    public CashConsolidationService(AppServiceHub serviceHub) {
+        String currency = AppConfig.getString(serviceHub, CURRENCY_CONFIG, DEFAULT_CURRENCY);
+        this.consolidation = new ScheduledFlow(serviceHub, "cash-consolidation", () -> new CashConsolidationFlow.ConsolidateCash(currency));
+
+        if (AppConfig.getBoolean(serviceHub, ENABLED_CONFIG, false)) {
+            consolidation.schedule(AppConfig.getLong(serviceHub, CHECK_MILLIS_CONFIG, DEFAULT_CHECK_MILLIS));
+        }
+    }
+
+    public boolean isConsolidating() {
+        return consolidation.isRunning();
+    }
+}
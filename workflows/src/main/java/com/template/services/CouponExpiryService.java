@@ -0,0 +1,64 @@
+package com.template.services;
+
+import com.template.flows.AppConfig;
+import com.template.flows.CouponExpiryFlow;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+import java.time.ZoneOffset;
+
+/**
+ * Starts a {@link CouponExpiryFlow.SweepExpiredCoupons} every {@code coupon.expiry.sweepMillis} during the
+ * off-peak hours, so expired coupons are redeemed while the node is quiet.
+ *
+ * The off-peak window runs from {@code coupon.expiry.offPeakStartHour} until {@code coupon.expiry.offPeakEndHour},
+ * in UTC on the node's clock, and may wrap past midnight. Equal hours allow sweeps at any time. Only one sweep
+ * runs at a time. Setting {@code coupon.expiry.enabled} to false turns sweeping off.
+ */
+@CordaService
+public class CouponExpiryService extends SingletonSerializeAsToken {
+    static final String ENABLED_CONFIG = "coupon.expiry.enabled";
+    static final String SWEEP_MILLIS_CONFIG = "coupon.expiry.sweepMillis";
+    static final String OFF_PEAK_START_CONFIG = "coupon.expiry.offPeakStartHour";
+    static final String OFF_PEAK_END_CONFIG = "coupon.expiry.offPeakEndHour";
+
+    static final long DEFAULT_SWEEP_MILLIS = 10 * 60 * 1000;
+    static final int DEFAULT_OFF_PEAK_START = 1;
+    static final int DEFAULT_OFF_PEAK_END = 5;
+
+    private final AppServiceHub serviceHub;
+    private final int offPeakStart;
+    private final int offPeakEnd;
+    private final ScheduledFlow sweep;
+
+    public CouponExpiryService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        this.offPeakStart = AppConfig.getInt(serviceHub, OFF_PEAK_START_CONFIG, DEFAULT_OFF_PEAK_START);
+        this.offPeakEnd = AppConfig.getInt(serviceHub, OFF_PEAK_END_CONFIG, DEFAULT_OFF_PEAK_END);
+        this.sweep = new ScheduledFlow(serviceHub, "coupon-expiry-sweeper", CouponExpiryFlow.SweepExpiredCoupons::new);
+
+        if (AppConfig.getBoolean(serviceHub, ENABLED_CONFIG, true)) {
+            sweep.schedule(AppConfig.getLong(serviceHub, SWEEP_MILLIS_CONFIG, DEFAULT_SWEEP_MILLIS), this::isOffPeak);
+        }
+    }
+
+    public boolean isSweeping() {
+        return sweep.isRunning();
+    }
+
+    /**
+     * Whether {@code hour} falls within the off-peak window from {@code start} until {@code end}.
+     */
+    public static boolean isOffPeak(int hour, int start, int end) {
+        if (start == end) {
+            return true;
+        }
+        return start < end ? hour >= start && hour < end : hour >= start || hour < end;
+    }
+
+    private boolean isOffPeak() {
+        int hour = serviceHub.getClock().instant().atZone(ZoneOffset.UTC).getHour();
+        return isOffPeak(hour, offPeakStart, offPeakEnd);
+    }
+}
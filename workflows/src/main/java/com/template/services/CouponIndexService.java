@@ -0,0 +1,212 @@
+package com.template.services;
+
+import com.template.flows.CouponQuery;
+import com.template.states.CouponToken;
+import com.template.states.CouponTokenType;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory index of the unconsumed coupons held by this node, keyed by issuer and by issuer and item ID.
+ *
+ * The index subscribes to {@link net.corda.core.node.services.VaultService#getUpdates()} before loading
+ * the existing coupons in pages, so no update is missed while it loads. Those updates are only published once
+ * their transaction commits, so a coupon never appears in the index that a rolled back flow recorded. Until loading completes, lookups
+ * fall back to {@link CouponQuery}. Each key keeps its coupons ordered by discount, so the best coupon
+ * for an issuer, or for an issuer and item, is read in constant time unless expired coupons come first.
+ */
+@CordaService
+public class CouponIndexService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(CouponIndexService.class);
+
+    private static final int PAGE_SIZE = 1000;
+
+    // Highest discount first, then a stable order by state reference.
+    private static final Comparator<StateAndRef<CouponToken>> BEST_FIRST = Comparator
+            .<StateAndRef<CouponToken>>comparingInt(coupon -> -coupon.getState().getData().getCouponTokenType().getDiscount())
+            .thenComparing(coupon -> coupon.getRef().getTxhash().toString())
+            .thenComparingInt(coupon -> coupon.getRef().getIndex());
+
+    private final AppServiceHub serviceHub;
+    private final Party ourIdentity;
+
+    private final Map<StateRef, StateAndRef<CouponToken>> byRef = new ConcurrentHashMap<>();
+    private final Map<String, NavigableSet<StateAndRef<CouponToken>>> byIssuer = new ConcurrentHashMap<>();
+    private final Map<String, NavigableSet<StateAndRef<CouponToken>>> byIssuerAndItem = new ConcurrentHashMap<>();
+
+    // Coupons consumed while the snapshot loads must not be added back by the snapshot.
+    private final Set<StateRef> consumedWhileLoading = ConcurrentHashMap.newKeySet();
+    private volatile boolean ready = false;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    public CouponIndexService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        this.ourIdentity = serviceHub.getMyInfo().getLegalIdentities().get(0);
+
+        serviceHub.getVaultService().getUpdates().subscribe(this::onUpdate);
+
+        Thread loader = new Thread(this::load, "coupon-index-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Returns the held coupon with the highest discount from the issuer, for the item if {@code itemId} is not null.
+     */
+    public StateAndRef<CouponToken> findCoupon(AbstractParty issuer, String itemId) {
+        if (!ready) {
+            fallbacks.incrementAndGet();
+            return CouponQuery.findCoupon(serviceHub, issuer, ourIdentity, itemId);
+        }
+
+        NavigableSet<StateAndRef<CouponToken>> coupons = itemId == null ?
+                byIssuer.get(CouponToken.partyToString(issuer)) :
+                byIssuerAndItem.get(key(CouponToken.partyToString(issuer), itemId));
+
+        // Expired coupons stay indexed until they are swept, so are skipped here.
+        StateAndRef<CouponToken> best = null;
+        if (coupons != null) {
+            Instant now = serviceHub.getClock().instant();
+            for (StateAndRef<CouponToken> coupon : coupons) {
+                if (!coupon.getState().getData().getCouponTokenType().isExpired(now)) {
+                    best = coupon;
+                    break;
+                }
+            }
+        }
+
+        (best != null ? hits : misses).incrementAndGet();
+        return best;
+    }
+
+    public boolean hasCoupon(AbstractParty issuer, String itemId) {
+        return findCoupon(issuer, itemId) != null;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public int size() {
+        return byRef.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The number of lookups answered by a vault query because the index was still loading.
+     */
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    private void load() {
+        try {
+            QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED);
+            int pageNumber = 1;
+            long loaded = 0;
+            Vault.Page<CouponToken> page;
+            do {
+                page = serviceHub.getVaultService().queryBy(CouponToken.class, criteria, new PageSpecification(pageNumber++, PAGE_SIZE));
+                for (StateAndRef<CouponToken> coupon : page.getStates()) {
+                    if (!consumedWhileLoading.contains(coupon.getRef())) {
+                        add(coupon);
+                    }
+                }
+                loaded += page.getStates().size();
+            } while (loaded < page.getTotalStatesAvailable() && !page.getStates().isEmpty());
+
+            ready = true;
+            consumedWhileLoading.clear();
+            logger.info("Coupon index loaded " + byRef.size() + " coupons");
+        } catch (Exception e) {
+            logger.error("Failed to load the coupon index, lookups will keep querying the vault", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void onUpdate(Vault.Update<ContractState> update) {
+        for (StateAndRef<ContractState> consumed : update.getConsumed()) {
+            if (consumed.getState().getData() instanceof CouponToken) {
+                if (!ready) {
+                    consumedWhileLoading.add(consumed.getRef());
+                }
+                remove(consumed.getRef());
+            }
+        }
+        for (StateAndRef<ContractState> produced : update.getProduced()) {
+            if (produced.getState().getData() instanceof CouponToken) {
+                add((StateAndRef<CouponToken>) (StateAndRef<?>) produced);
+            }
+        }
+    }
+
+    private synchronized void add(StateAndRef<CouponToken> coupon) {
+        CouponToken token = coupon.getState().getData();
+        if (!token.getHolder().getOwningKey().equals(ourIdentity.getOwningKey()) || byRef.containsKey(coupon.getRef())) {
+            return;
+        }
+
+        String issuer = CouponToken.partyToString(token.getIssuer());
+        CouponTokenType couponTokenType = token.getCouponTokenType();
+
+        byRef.put(coupon.getRef(), coupon);
+        byIssuer.computeIfAbsent(issuer, k -> new ConcurrentSkipListSet<>(BEST_FIRST)).add(coupon);
+        byIssuerAndItem.computeIfAbsent(key(issuer, couponTokenType.getItemId()), k -> new ConcurrentSkipListSet<>(BEST_FIRST)).add(coupon);
+    }
+
+    private synchronized void remove(StateRef ref) {
+        StateAndRef<CouponToken> coupon = byRef.remove(ref);
+        if (coupon == null) {
+            return;
+        }
+
+        CouponToken token = coupon.getState().getData();
+        String issuer = CouponToken.partyToString(token.getIssuer());
+        removeFrom(byIssuer, issuer, coupon);
+        removeFrom(byIssuerAndItem, key(issuer, token.getCouponTokenType().getItemId()), coupon);
+    }
+
+    private static void removeFrom(Map<String, NavigableSet<StateAndRef<CouponToken>>> index, String key, StateAndRef<CouponToken> coupon) {
+        NavigableSet<StateAndRef<CouponToken>> coupons = index.get(key);
+        if (coupons != null) {
+            coupons.remove(coupon);
+            if (coupons.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static String key(String issuer, String itemId) {
+        return issuer + "|" + itemId;
+    }
+}
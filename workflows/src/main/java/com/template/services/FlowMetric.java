@@ -0,0 +1,119 @@
+package com.template.services;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A counter and histogram of the values recorded for one flow phase.
+ *
+ * Values fall into power of two buckets, so recording is a few uncontended additions and
+ * percentiles, computed only when read, are accurate to within a factor of two.
+ */
+public class FlowMetric implements FlowMetricMBean {
+    private static final int BUCKETS = Long.SIZE + 1;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    public FlowMetric() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void update(long value) {
+        if (value < 0) {
+            return;
+        }
+        count.increment();
+        total.add(value);
+        max.accumulate(value);
+        buckets[Long.SIZE - Long.numberOfLeadingZeros(value)].increment();
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getTotal() {
+        return total.sum();
+    }
+
+    @Override
+    public double getMean() {
+        long n = getCount();
+        return n > 0 ? (double) getTotal() / n : 0;
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    @Override
+    public long get50thPercentile() {
+        return percentile(0.50);
+    }
+
+    @Override
+    public long get95thPercentile() {
+        return percentile(0.95);
+    }
+
+    @Override
+    public long get99thPercentile() {
+        return percentile(0.99);
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the {@code quantile} value, capped at the maximum seen.
+     */
+    public long percentile(double quantile) {
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            n += counts[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(quantile * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                long upperBound = i == 0 ? 0 : i >= Long.SIZE - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+                return Math.min(upperBound, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Adds everything recorded by {@code other} to this metric, such as to combine a phase across nodes.
+     */
+    public void merge(FlowMetric other) {
+        count.add(other.getCount());
+        total.add(other.getTotal());
+        max.accumulate(other.getMax());
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i].add(other.buckets[i].sum());
+        }
+    }
+
+    @Override
+    public void reset() {
+        count.reset();
+        total.reset();
+        max.reset();
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.template.services;
+
+/**
+ * The JMX view of a {@link FlowMetric}. Durations are in microseconds.
+ */
+public interface FlowMetricMBean {
+    long getCount();
+
+    long getTotal();
+
+    double getMean();
+
+    long getMax();
+
+    long get50thPercentile();
+
+    long get95thPercentile();
+
+    long get99thPercentile();
+
+    void reset();
+}
@@ -0,0 +1,93 @@
+package com.template.services;
+
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timers, histograms and counters for each flow and phase, published as MBeans on the platform MBean
+ * server next to the node's own metrics, under
+ * {@code com.template:type=FlowMetrics,node=<legal name>,flow=<flow>,phase=<phase>}.
+ *
+ * Timers are recorded in microseconds. Nothing is aggregated until an attribute is read.
+ */
+@CordaService
+public class FlowMetricsService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(FlowMetricsService.class);
+
+    static final String DOMAIN = "com.template";
+
+    private final String nodeName;
+    private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    private final Map<String, FlowMetric> metrics = new ConcurrentHashMap<>();
+
+    public FlowMetricsService(AppServiceHub serviceHub) {
+        this.nodeName = serviceHub.getMyInfo().getLegalIdentities().get(0).getName().toString();
+    }
+
+    /**
+     * Returns the current time for {@link #time}.
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time since {@code startNanos} for the phase, and returns the current time so the next phase can start from it.
+     */
+    public long time(String flow, String phase, long startNanos) {
+        long now = System.nanoTime();
+        metric(flow, phase).update(TimeUnit.NANOSECONDS.toMicros(now - startNanos));
+        return now;
+    }
+
+    /**
+     * Records a value, such as the number of outputs in a transaction, in the phase's histogram.
+     */
+    public void update(String flow, String phase, long value) {
+        metric(flow, phase).update(value);
+    }
+
+    public void increment(String flow, String counter) {
+        metric(flow, counter).update(1);
+    }
+
+    public FlowMetric metric(String flow, String phase) {
+        return metrics.computeIfAbsent(flow + "." + phase, key -> register(flow, phase));
+    }
+
+    public Map<String, FlowMetric> getMetrics() {
+        return metrics;
+    }
+
+    private FlowMetric register(String flow, String phase) {
+        FlowMetric metric = new FlowMetric();
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=FlowMetrics" +
+                    ",node=" + ObjectName.quote(nodeName) +
+                    ",flow=" + ObjectName.quote(flow) +
+                    ",phase=" + ObjectName.quote(phase));
+            try {
+                mBeanServer.registerMBean(metric, name);
+            } catch (InstanceAlreadyExistsException e) {
+                // Left behind by an earlier node with the same name in this JVM, such as in tests
+                mBeanServer.unregisterMBean(name);
+                mBeanServer.registerMBean(metric, name);
+            }
+        } catch (JMException e) {
+            logger.warn("Failed to publish metric " + flow + "." + phase + " over JMX", e);
+        }
+        return metric;
+    }
+}
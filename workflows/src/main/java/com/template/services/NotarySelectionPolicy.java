@@ -0,0 +1,81 @@
+package com.template.services;
+
+import net.corda.core.identity.Party;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses a notary for a transaction which has no input states to bind it to a notary.
+ *
+ * Notaries are always passed sorted by name, so every node makes the same choice for the same key.
+ */
+public interface NotarySelectionPolicy {
+
+    /**
+     * Chooses one of {@code notaries}. The key, such as an issuer and item ID, may be null.
+     */
+    Party select(List<Party> notaries, String key);
+
+    /**
+     * Records how long a notary took to finalise a transaction.
+     */
+    default void recordLatency(Party notary, long millis) {}
+
+    /**
+     * Spreads transactions over the notaries in turn.
+     */
+    class RoundRobin implements NotarySelectionPolicy {
+        private final AtomicLong next = new AtomicLong();
+
+        @Override
+        public Party select(List<Party> notaries, String key) {
+            return notaries.get((int) Math.floorMod(next.getAndIncrement(), (long) notaries.size()));
+        }
+    }
+
+    /**
+     * Sends every transaction with the same key to the same notary, falling back to round robin without a key.
+     */
+    class Hash implements NotarySelectionPolicy {
+        private final RoundRobin fallback = new RoundRobin();
+
+        @Override
+        public Party select(List<Party> notaries, String key) {
+            return key == null ?
+                    fallback.select(notaries, null) :
+                    notaries.get(Math.floorMod(key.hashCode(), notaries.size()));
+        }
+    }
+
+    /**
+     * Prefers the notary with the lowest recent finality latency. Notaries without a measurement are tried first.
+     */
+    class LeastLatency implements NotarySelectionPolicy {
+        // Weight of the newest sample in the moving average.
+        private static final double ALPHA = 0.2;
+
+        private final Map<Party, Double> averageMillis = new ConcurrentHashMap<>();
+
+        @Override
+        public Party select(List<Party> notaries, String key) {
+            Party best = null;
+            double bestMillis = Double.MAX_VALUE;
+            for (Party notary : notaries) {
+                double millis = averageMillis.getOrDefault(notary, 0.0);
+                if (millis < bestMillis) {
+                    best = notary;
+                    bestMillis = millis;
+                }
+            }
+            return best;
+        }
+
+        @Override
+        public void recordLatency(Party notary, long millis) {
+            averageMillis.merge(notary, (double) millis, (average, sample) -> average + ALPHA * (sample - average));
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.template.services;
+
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Chooses the notary for new transactions using the {@link NotarySelectionPolicy} named by the
+ * {@code notary.selection.policy} CorDapp setting: {@code roundRobin} (the default), {@code hash}
+ * or {@code leastLatency}.
+ */
+@CordaService
+public class NotarySelectionService extends SingletonSerializeAsToken {
+    static final String POLICY_CONFIG = "notary.selection.policy";
+
+    private final AppServiceHub serviceHub;
+    private final NotarySelectionPolicy policy;
+
+    public NotarySelectionService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+
+        String policyName = serviceHub.getAppContext().getConfig().exists(POLICY_CONFIG) ?
+                serviceHub.getAppContext().getConfig().getString(POLICY_CONFIG) :
+                "roundRobin";
+        this.policy = createPolicy(policyName);
+    }
+
+    public static NotarySelectionPolicy createPolicy(String policyName) {
+        switch (policyName) {
+            case "roundRobin":
+                return new NotarySelectionPolicy.RoundRobin();
+            case "hash":
+                return new NotarySelectionPolicy.Hash();
+            case "leastLatency":
+                return new NotarySelectionPolicy.LeastLatency();
+            default:
+                throw new IllegalArgumentException("Unknown notary selection policy " + policyName);
+        }
+    }
+
+    public Party selectNotary(String key) {
+        List<Party> notaries = serviceHub.getNetworkMapCache().getNotaryIdentities().stream()
+                .sorted(Comparator.comparing(notary -> notary.getName().toString()))
+                .collect(Collectors.toList());
+        if (notaries.isEmpty()) {
+            throw new IllegalStateException("No notary found on the network");
+        }
+        return notaries.size() == 1 ? notaries.get(0) : policy.select(notaries, key);
+    }
+
+    public void recordLatency(Party notary, long millis) {
+        if (millis >= 0) {
+            policy.recordLatency(notary, millis);
+        }
+    }
+}
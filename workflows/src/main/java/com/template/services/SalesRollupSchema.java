@@ -0,0 +1,8 @@
+package com.template.services;
+
+/**
+ * The family of schemas holding the sales rollups maintained by {@link SalesRollupService}.
+ */
+public class SalesRollupSchema {
+    private SalesRollupSchema() {}
+}
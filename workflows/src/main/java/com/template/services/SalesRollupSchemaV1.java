@@ -0,0 +1,87 @@
+package com.template.services;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.schemas.MappedSchema;
+import org.jetbrains.annotations.Nullable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Table;
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.Objects;
+
+/**
+ * A table of purchase order totals per seller, item and time bucket, so dashboards read a row per bucket
+ * rather than aggregating every order. Rows are written with plain SQL through the node's JDBC session by
+ * {@link com.template.flows.SalesRollupFlow}; the entity only describes the table.
+ */
+public class SalesRollupSchemaV1 extends MappedSchema {
+    public static final String TABLE = "sales_rollups";
+
+    public SalesRollupSchemaV1() {
+        super(SalesRollupSchema.class, 1, ImmutableList.of(PersistentSalesRollup.class));
+    }
+
+    @Nullable
+    @Override
+    public String getMigrationResource() {
+        return "sales-rollup.changelog-master";
+    }
+
+    @Entity(name = "SalesRollup")
+    // The primary key leads with the bucket, so it also serves range queries over buckets.
+    @Table(name = TABLE)
+    @IdClass(RollupKey.class)
+    public static class PersistentSalesRollup {
+        @Id @Column(name = "bucket_size") private String bucketSize;
+        @Id @Column(name = "bucket_start") private Instant bucketStart;
+        @Id @Column(name = "seller") private String seller;
+        @Id @Column(name = "item_id") private String itemId;
+        @Column(name = "orders") private long orders;
+        @Column(name = "gross_sales") private long grossSales;
+        @Column(name = "net_sales") private long netSales;
+
+        // Default constructor required by hibernate.
+        public PersistentSalesRollup() {}
+
+        public String getBucketSize() { return bucketSize; }
+
+        public Instant getBucketStart() { return bucketStart; }
+
+        public String getSeller() { return seller; }
+
+        public String getItemId() { return itemId; }
+
+        public long getOrders() { return orders; }
+
+        public long getGrossSales() { return grossSales; }
+
+        public long getNetSales() { return netSales; }
+    }
+
+    public static class RollupKey implements Serializable {
+        private String bucketSize;
+        private Instant bucketStart;
+        private String seller;
+        private String itemId;
+
+        public RollupKey() {}
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof RollupKey)) return false;
+            RollupKey key = (RollupKey) o;
+            return Objects.equals(bucketSize, key.bucketSize) && Objects.equals(bucketStart, key.bucketStart) &&
+                    Objects.equals(seller, key.seller) && Objects.equals(itemId, key.itemId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(bucketSize, bucketStart, seller, itemId);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.template.services;
+
+import com.template.flows.AppConfig;
+import com.template.flows.SalesRollupFlow;
+import com.template.states.PurchaseOrderState;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the sales rollups of {@link SalesRollupSchemaV1} up to date with the purchase orders in the vault.
+ *
+ * Orders are taken from {@link net.corda.core.node.services.VaultService#getUpdates()} once their transaction
+ * commits, merged into one change per rollup row, and written every {@code sales.rollup.flushMillis} by a
+ * {@link SalesRollupFlow.ApplyRollups} flow. A single thread starts these flows one at a time, as well as the
+ * {@link SalesRollupFlow.ReplaceRollups} flows of rebuilds, so writes to a row never race. Changes not yet
+ * written when the node stops are lost, and are recovered with {@link SalesRollupFlow.RebuildRollups}.
+ */
+@CordaService
+public class SalesRollupService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(SalesRollupService.class);
+
+    static final String FLUSH_MILLIS_CONFIG = "sales.rollup.flushMillis";
+    static final long DEFAULT_FLUSH_MILLIS = 1000;
+
+    private final AppServiceHub serviceHub;
+
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sales-rollup-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Guarded by this.
+    private Map<List<Object>, SalesRollupFlow.Rollup> pending = new HashMap<>();
+
+    private final AtomicLong ordersSeen = new AtomicLong();
+    private final AtomicLong rowsWritten = new AtomicLong();
+    private final AtomicLong failedFlushes = new AtomicLong();
+
+    // Rebuilds requested since the node started, by ID. Each is removed once its result is read.
+    private final Map<String, CompletableFuture<Long>> rebuilds = new ConcurrentHashMap<>();
+
+    public SalesRollupService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+
+        serviceHub.getVaultService().getUpdates().subscribe(this::onUpdate);
+
+        long flushMillis = AppConfig.getLong(serviceHub, FLUSH_MILLIS_CONFIG, DEFAULT_FLUSH_MILLIS);
+        writer.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a rebuild of the rollups behind any flush in flight, returning its ID for {@link #getRebuild}.
+     *
+     * On the writer thread, the changes not yet written are dropped, as the rebuild reads their orders from the
+     * vault, and {@link SalesRollupFlow.ReplaceRollups} runs before the next flush can start.
+     */
+    public String rebuild() {
+        String rebuildId = UUID.randomUUID().toString();
+        CompletableFuture<Long> rebuild = new CompletableFuture<>();
+        rebuilds.put(rebuildId, rebuild);
+
+        writer.execute(() -> {
+            synchronized (this) {
+                pending = new HashMap<>();
+            }
+            try {
+                rebuild.complete(serviceHub.startFlow(new SalesRollupFlow.ReplaceRollups()).getReturnValue().get());
+            } catch (ExecutionException e) {
+                rebuild.completeExceptionally(e.getCause());
+            } catch (Exception e) {
+                rebuild.completeExceptionally(e);
+            }
+        });
+        return rebuildId;
+    }
+
+    /**
+     * Returns the result of a rebuild, forgetting it once it is done, or null if the rebuild is unknown.
+     */
+    public CompletableFuture<Long> getRebuild(String rebuildId) {
+        CompletableFuture<Long> rebuild = rebuilds.get(rebuildId);
+        if (rebuild != null && rebuild.isDone()) {
+            rebuilds.remove(rebuildId);
+        }
+        return rebuild;
+    }
+
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    public long getOrdersSeen() {
+        return ordersSeen.get();
+    }
+
+    public long getRowsWritten() {
+        return rowsWritten.get();
+    }
+
+    public long getFailedFlushes() {
+        return failedFlushes.get();
+    }
+
+    private void onUpdate(Vault.Update<ContractState> update) {
+        List<SalesRollupFlow.Rollup> changes = new ArrayList<>();
+        collect(update.getConsumed(), true, changes);
+        collect(update.getProduced(), false, changes);
+        if (!changes.isEmpty()) {
+            merge(changes);
+        }
+    }
+
+    private void collect(Iterable<StateAndRef<ContractState>> states, boolean consumed, List<SalesRollupFlow.Rollup> changes) {
+        for (StateAndRef<ContractState> state : states) {
+            if (state.getState().getData() instanceof PurchaseOrderState) {
+                changes.addAll(SalesRollupFlow.Rollup.of((PurchaseOrderState) state.getState().getData(), consumed));
+                if (!consumed) {
+                    ordersSeen.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private synchronized void merge(List<SalesRollupFlow.Rollup> changes) {
+        for (SalesRollupFlow.Rollup change : changes) {
+            pending.merge(change.key(), change, SalesRollupFlow.Rollup::plus);
+        }
+    }
+
+    private void flush() {
+        List<SalesRollupFlow.Rollup> changes;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            changes = new ArrayList<>(pending.values());
+            pending = new HashMap<>();
+        }
+
+        try {
+            rowsWritten.addAndGet(serviceHub.startFlow(new SalesRollupFlow.ApplyRollups(changes)).getReturnValue().get());
+        } catch (Exception e) {
+            // Kept for the next flush, unless a rebuild discards them first
+            failedFlushes.incrementAndGet();
+            logger.warn("Failed to write " + changes.size() + " sales rollups, retrying", e);
+            merge(changes);
+        }
+    }
+}
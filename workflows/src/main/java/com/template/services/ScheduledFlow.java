@@ -0,0 +1,82 @@
+package com.template.services;
+
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.node.AppServiceHub;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Starts a flow from a service on a fixed delay, on a daemon thread of its own, skipping a run while the flow
+ * it last started is still going, so a slow run is never overlapped by the next.
+ */
+class ScheduledFlow {
+    private static final Logger logger = LoggerFactory.getLogger(ScheduledFlow.class);
+
+    private final AppServiceHub serviceHub;
+    private final Supplier<FlowLogic<?>> flow;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Each run starts a new flow from {@code flow}, on a scheduler thread called {@code threadName}.
+     */
+    ScheduledFlow(AppServiceHub serviceHub, String threadName, Supplier<FlowLogic<?>> flow) {
+        this.serviceHub = serviceHub;
+        this.flow = flow;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts the flow every {@code delayMillis} after the previous check, when {@code due} holds.
+     */
+    void schedule(long delayMillis, BooleanSupplier due) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            if (due.getAsBoolean()) {
+                start();
+            }
+        }, delayMillis, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void schedule(long delayMillis) {
+        schedule(delayMillis, () -> true);
+    }
+
+    boolean isRunning() {
+        return running.get();
+    }
+
+    private void start() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+
+        FlowLogic<?> logic = flow.get();
+        String name = logic.getClass().getSimpleName();
+        try {
+            serviceHub.startFlow(logic)
+                    .getReturnValue()
+                    .toCompletableFuture()
+                    .whenComplete((result, error) -> {
+                        if (error != null) {
+                            logger.warn("Scheduled " + name + " failed", error);
+                        }
+                        running.set(false);
+                    });
+        } catch (Exception e) {
+            logger.error("Failed to start a scheduled " + name, e);
+            running.set(false);
+        }
+    }
+}
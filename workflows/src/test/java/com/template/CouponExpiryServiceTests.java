@@ -0,0 +1,29 @@
+package com.template;
+
+import com.template.services.CouponExpiryService;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CouponExpiryServiceTests {
+    @Test
+    public void offPeakWithinADay() {
+        assertEquals(true, CouponExpiryService.isOffPeak(1, 1, 5));
+        assertEquals(true, CouponExpiryService.isOffPeak(3, 1, 5));
+        assertEquals(false, CouponExpiryService.isOffPeak(5, 1, 5));
+        assertEquals(false, CouponExpiryService.isOffPeak(0, 1, 5));
+    }
+
+    @Test
+    public void offPeakPastMidnight() {
+        assertEquals(true, CouponExpiryService.isOffPeak(23, 22, 2));
+        assertEquals(true, CouponExpiryService.isOffPeak(0, 22, 2));
+        assertEquals(false, CouponExpiryService.isOffPeak(2, 22, 2));
+        assertEquals(false, CouponExpiryService.isOffPeak(12, 22, 2));
+    }
+
+    @Test
+    public void equalHoursAreAlwaysOffPeak() {
+        assertEquals(true, CouponExpiryService.isOffPeak(12, 3, 3));
+    }
+}
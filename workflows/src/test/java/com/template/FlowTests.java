@@ -1,17 +1,51 @@
 package com.template;
 
+import co.paralleluniverse.fibers.Suspendable;
 import com.google.common.collect.ImmutableList;
 import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import com.r3.corda.lib.tokens.contracts.types.TokenType;
+import com.r3.corda.lib.tokens.contracts.utilities.TransactionUtilitiesKt;
+import com.r3.corda.lib.tokens.money.FiatCurrency;
+import com.r3.corda.lib.tokens.workflows.types.PartyAndAmount;
 import com.template.flows.BuyerSellerFlow;
+import com.template.flows.CampaignFlow;
+import com.template.flows.CashBatchFlow;
+import com.template.flows.CashConsolidationFlow;
+import com.template.flows.CouponExpiryFlow;
 import com.template.flows.CouponFlow;
+import com.template.flows.CouponQuery;
 import com.template.flows.IssueCash;
+import com.template.flows.PurchaseOrderQueryFlow;
+import com.template.flows.ReportFlow;
+import com.template.flows.SalesRollupFlow;
+import com.template.flows.StateQueryFlow;
+import com.template.flows.WalletShapingFlow;
+import com.template.schemas.PurchaseOrderSchemaV1;
+import com.template.services.CampaignSchemaV1;
+import com.template.services.CampaignService;
+import com.template.services.CouponIndexService;
+import com.template.services.FlowMetricsService;
+import com.template.services.SalesRollupService;
+import com.template.states.CouponToken;
+import com.template.states.CouponTokenType;
 import com.template.states.PurchaseOrderState;
 import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.Amount;
 import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.CollectSignaturesFlow;
+import net.corda.core.flows.FinalityFlow;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowSession;
 import net.corda.core.flows.UnexpectedFlowEndException;
 import net.corda.core.identity.CordaX500Name;
 import net.corda.core.identity.Party;
 import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.testing.core.TestIdentity;
 import net.corda.testing.node.MockNetwork;
 import net.corda.testing.node.MockNetworkParameters;
 import net.corda.testing.node.StartedMockNode;
@@ -22,14 +56,31 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
 
+import static com.r3.corda.lib.tokens.workflows.flows.issue.IssueTokensUtilitiesKt.addIssueTokens;
+import static com.r3.corda.lib.tokens.workflows.flows.redeem.RedeemFlowUtilitiesKt.addTokensToRedeem;
 import static net.corda.testing.common.internal.ParametersUtilitiesKt.testNetworkParameters;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class FlowTests {
     private MockNetwork network;
@@ -84,6 +135,23 @@ public class FlowTests {
         return nodeShop.startFlow(new CouponFlow.IssueCoupon(recipient, itemId, discount));
     }
 
+    /**
+     * Runs the network until {@code condition} holds, for flows which services start on their own threads.
+     */
+    private void runNetworkUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            network.runNetwork();
+            if (condition.getAsBoolean()) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Timed out waiting for the network");
+            }
+            Thread.sleep(10);
+        }
+    }
+
     private List<StateAndRef<PurchaseOrderState>> queryPurchaseOrders(StartedMockNode node) {
         return node.getServices()
                 .getVaultService()
@@ -266,5 +334,597 @@ public class FlowTests {
         assertEquals(discountedPrice, queryCashBalance(nodeShop));
     }
 
+    @Test
+    public void purchaseWithMultipleCoupons() {
+        String itemId = "item123";
+        int price = 700;
+
+        issueCash(partyA, 2000);
+        issueCoupon(partyA, itemId, 20);
+        issueCoupon(partyA, itemId, 50);
+        network.runNetwork();
+
+        nodeShop.startFlow(new BuyerSellerFlow.Seller(partyA, itemId, price));
+        network.runNetwork();
+
+        // The coupon with the highest discount is used and the other one stays in the vault
+        int discountedPrice = price - Math.round(price * 50 / 100);
+        assertEquals(1, queryPurchaseOrders(nodeA).size());
+        assertEquals((2000 - discountedPrice), queryCashBalance(nodeA));
+        assertEquals(discountedPrice, queryCashBalance(nodeShop));
+        assertEquals(1, nodeA.getServices().getVaultService().queryBy(CouponToken.class).getStates().size());
+    }
+
+    @Test
+    public void issueCouponsInBatches() throws Exception {
+        List<CouponFlow.CouponRequest> requests = ImmutableList.of(
+                new CouponFlow.CouponRequest(partyA, "item123", 10),
+                new CouponFlow.CouponRequest(partyB, "item123", 20),
+                new CouponFlow.CouponRequest(partyA, "item456", 30),
+                new CouponFlow.CouponRequest(partyB, "item456", 150),
+                new CouponFlow.CouponRequest(partyA, "item789", 40));
+
+        CordaFuture<CouponFlow.IssueCouponsResult> future = nodeShop.startFlow(new CouponFlow.IssueCoupons(requests, 2));
+        network.runNetwork();
+        CouponFlow.IssueCouponsResult result = future.get();
+
+        // The invalid discount is rejected and the remaining four coupons fit in two transactions
+        assertEquals(5, result.getResults().size());
+        assertEquals(4, result.getIssuedCount());
+        assertEquals(2, result.getTransactions());
+        assertEquals(false, result.getResults().get(3).isIssued());
+        assertEquals(3, nodeA.getServices().getVaultService().queryBy(CouponToken.class).getStates().size());
+        assertEquals(1, nodeB.getServices().getVaultService().queryBy(CouponToken.class).getStates().size());
+    }
+
+    @Test
+    public void redeemCoupon() throws Exception {
+        issueCoupon(partyA, "item123", 10);
+        network.runNetwork();
+
+        CordaFuture<SignedTransaction> future = nodeA.startFlow(new CouponFlow.RedeemCoupon(partyShop));
+        network.runNetwork();
+        future.get();
+
+        assertEquals(0, nodeA.getServices().getVaultService().queryBy(CouponToken.class).getStates().size());
+    }
+
+    @Test
+    public void redeemingAnotherIssuersCouponIsRefused() throws Exception {
+        issueCoupon(partyA, "item123", 10);
+        nodeBank.startFlow(new CouponFlow.IssueCoupon(partyA, "item123", 20));
+        network.runNetwork();
+
+        // The shop is asked to countersign the redemption of a coupon the bank issued
+        CordaFuture<SignedTransaction> future = nodeA.startFlow(new RedeemAllCoupons(partyShop));
+        network.runNetwork();
+
+        expectedException.expectCause(instanceOf(FlowException.class));
+        future.get();
+    }
+
+    @Test
+    public void runCampaignInChunks() throws Exception {
+        Party stranger = new TestIdentity(new CordaX500Name("Stranger", "Tokyo", "JP")).getParty();
+        Instant expiresAt = nodeShop.getServices().getClock().instant().plus(Duration.ofDays(30)).truncatedTo(ChronoUnit.SECONDS);
+        List<CouponFlow.CouponRequest> requests = ImmutableList.of(
+                new CouponFlow.CouponRequest(partyA, "item123", 10),
+                new CouponFlow.CouponRequest(partyB, "item123", 20),
+                new CouponFlow.CouponRequest(stranger, "item123", 30),
+                new CouponFlow.CouponRequest(partyA, "item456", 40, expiresAt),
+                new CouponFlow.CouponRequest(partyB, "item456", 50));
+
+        // Five rows in chunks of two make three chunks
+        CordaFuture<String> started = nodeShop.startFlow(new CampaignFlow.StartCampaign(requests, 2, 2));
+        network.runNetwork();
+        String campaignId = started.get();
+
+        CampaignService campaigns = nodeShop.getServices().cordaService(CampaignService.class);
+        runNetworkUntil(() -> campaigns.getProgress(campaignId).isComplete());
+
+        CampaignFlow.CampaignProgress progress = campaigns.getProgress(campaignId);
+        assertEquals(3, progress.getTotalChunks());
+        assertEquals(3, progress.getChunksDone());
+        assertEquals(4, progress.getIssued());
+        assertEquals(1, progress.getFailed());
+
+        // The stranger is not on the network, so their row records why it failed
+        String error = nodeShop.transaction(() -> nodeShop.getServices().withEntityManager(entityManager -> {
+            return entityManager.find(CampaignSchemaV1.PersistentRow.class, CampaignSchemaV1.rowId(campaignId, 2)).getError();
+        }));
+        assertEquals("Unknown recipient", error);
+
+        // Running a done chunk again, or resuming campaigns, issues nothing more
+        CordaFuture<CouponFlow.IssueCouponsResult> rerun = nodeShop.startFlow(
+                new CampaignFlow.IssueCampaignChunk(CampaignSchemaV1.chunkId(campaignId, 0)));
+        CordaFuture<Integer> resumed = nodeShop.startFlow(new CampaignFlow.ResumeCampaigns());
+        network.runNetwork();
+        assertEquals(null, rerun.get());
+        assertEquals(0, (int) resumed.get());
+        assertEquals(2, nodeA.getServices().getVaultService().queryBy(CouponToken.class).getStates().size());
+        assertEquals(2, nodeB.getServices().getVaultService().queryBy(CouponToken.class).getStates().size());
+
+        // The expiry is stored with the row and carried by the coupon issued from it
+        CouponTokenType item456 = nodeA.getServices().getVaultService().queryBy(CouponToken.class).getStates().stream()
+                .map(coupon -> coupon.getState().getData().getCouponTokenType())
+                .filter(tokenType -> tokenType.getItemId().equals("item456"))
+                .findFirst()
+                .get();
+        assertEquals(expiresAt, item456.getExpiresAt());
+    }
+
+    @Test
+    public void resumeFailedCampaignChunkWithoutReissuing() throws Exception {
+        String campaignId = "resume-test";
+        List<CouponFlow.CouponRequest> requests = ImmutableList.of(
+                new CouponFlow.CouponRequest(partyA, "item123", 10),
+                new CouponFlow.CouponRequest(partyB, "item123", 20),
+                new CouponFlow.CouponRequest(partyBank, "item123", 30));
+
+        // One chunk of three rows, issued one row per transaction by a run which throws after the first
+        CordaFuture<List<String>> stored = nodeShop.startFlow(new CampaignFlow.StoreCampaign(campaignId, requests, 3, 1));
+        network.runNetwork();
+        String chunkId = stored.get().get(0);
+
+        CordaFuture<CouponFlow.IssueCouponsResult> failing = nodeShop.startFlow(new FailAfterFirstBatch(chunkId));
+        network.runNetwork();
+        try {
+            failing.get();
+            fail("The chunk should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof FlowException);
+        }
+
+        String runId = nodeShop.transaction(() -> nodeShop.getServices().withEntityManager(entityManager -> {
+            return entityManager.find(CampaignSchemaV1.PersistentChunk.class, chunkId).getRunId();
+        }));
+        CordaFuture<Boolean> released = nodeShop.startFlow(new CampaignFlow.ReleaseCampaignChunk(chunkId, runId));
+        network.runNetwork();
+        assertTrue(released.get());
+
+        CordaFuture<Integer> resumed = nodeShop.startFlow(new CampaignFlow.ResumeCampaigns());
+        network.runNetwork();
+        assertEquals(1, (int) resumed.get());
+
+        CampaignService campaigns = nodeShop.getServices().cordaService(CampaignService.class);
+        runNetworkUntil(() -> campaigns.getProgress(campaignId).isComplete());
+        assertEquals(3, campaigns.getProgress(campaignId).getIssued());
+
+        // The row issued before the failure is not issued again
+        for (StartedMockNode node : ImmutableList.of(nodeA, nodeB, nodeBank)) {
+            assertEquals(1, node.getServices().getVaultService().queryBy(CouponToken.class).getStates().size());
+        }
+        for (int row = 0; row < requests.size(); row++) {
+            String rowId = CampaignSchemaV1.rowId(campaignId, row);
+            String txId = nodeShop.transaction(() -> nodeShop.getServices().withEntityManager(entityManager -> {
+                return entityManager.find(CampaignSchemaV1.PersistentRow.class, rowId).getTxId();
+            }));
+            assertNotNull(txId);
+        }
+    }
+
+    @Test
+    public void issueAndMoveCashInBatches() throws Exception {
+        TokenType jpy = FiatCurrency.Companion.getInstance("JPY");
+
+        // Two recipients with a cap of one output per transaction take two transactions
+        CordaFuture<List<SecureHash>> issueFuture = nodeBank.startFlow(new CashBatchFlow.IssueBatch(ImmutableList.of(
+                new PartyAndAmount<>(partyA, new Amount<>(2000, jpy)),
+                new PartyAndAmount<>(partyB, new Amount<>(500, jpy))), 1));
+        network.runNetwork();
+        assertEquals(2, issueFuture.get().size());
+
+        // Both payouts from PartyA fit in one transaction
+        CordaFuture<List<SecureHash>> moveFuture = nodeA.startFlow(new CashBatchFlow.MoveBatch(ImmutableList.of(
+                new PartyAndAmount<>(partyB, new Amount<>(300, jpy)),
+                new PartyAndAmount<>(partyShop, new Amount<>(200, jpy)))));
+        network.runNetwork();
+        assertEquals(1, moveFuture.get().size());
+
+        assertEquals(1500, queryCashBalance(nodeA));
+        assertEquals(800, queryCashBalance(nodeB));
+        assertEquals(200, queryCashBalance(nodeShop));
+    }
+
+    @Test
+    public void queryStatesByPage() throws Exception {
+        issueCoupon(partyA, "item123", 10);
+        issueCoupon(partyA, "item123", 20);
+        issueCoupon(partyA, "item456", 30);
+        network.runNetwork();
+
+        CordaFuture<StateQueryFlow.StatePage> firstPage = nodeA.startFlow(new StateQueryFlow.QueryStates(StateQueryFlow.Kind.COUPON, 1, 2));
+        CordaFuture<StateQueryFlow.StatePage> filtered = nodeA.startFlow(new StateQueryFlow.QueryStates(StateQueryFlow.Kind.COUPON, 1, 10,
+                new StateQueryFlow.Filters(partyShop, partyA, "item456")));
+        CordaFuture<Map<StateQueryFlow.Kind, Long>> counts = nodeA.startFlow(new StateQueryFlow.CountStates());
+        network.runNetwork();
+
+        assertEquals(3, firstPage.get().getTotalStatesAvailable());
+        assertEquals(2, firstPage.get().getStates().size());
+        assertEquals(1, filtered.get().getTotalStatesAvailable());
+        StateQueryFlow.CouponSummary coupon = (StateQueryFlow.CouponSummary) filtered.get().getStates().get(0);
+        assertEquals(30, coupon.getDiscount());
+        assertEquals(null, coupon.getExpiresAt());
+        assertEquals(Long.valueOf(3), counts.get().get(StateQueryFlow.Kind.COUPON));
+        assertEquals(Long.valueOf(0), counts.get().get(StateQueryFlow.Kind.CASH));
+    }
+
+    @Test
+    public void showCouponFromIndex() throws Exception {
+        issueCoupon(partyA, "item123", 30);
+        network.runNetwork();
+
+        // The index loads on its own thread, and answers from the vault until it has
+        CouponIndexService index = nodeA.getServices().cordaService(CouponIndexService.class);
+        runNetworkUntil(index::isReady);
+        long hits = index.getHits();
+        long fallbacks = index.getFallbacks();
+
+        CordaFuture<String> future = nodeA.startFlow(new BuyerSellerFlow.ShowCoupon(partyShop));
+        network.runNetwork();
+
+        assertEquals(true, future.get().contains("30% off"));
+        assertEquals(hits + 1, index.getHits());
+        assertEquals(fallbacks, index.getFallbacks());
+
+        StateAndRef<CouponToken> coupon = index.findCoupon(partyShop, "item123");
+        assertEquals(30, coupon.getState().getData().getCouponTokenType().getDiscount());
+        assertEquals("item123", coupon.getState().getData().getCouponTokenType().getItemId());
+        assertEquals(false, index.hasCoupon(partyShop, "item456"));
+    }
+
+    @Test
+    public void concurrentPurchasesUseDifferentCoupons() throws Exception {
+        int price = 700;
+
+        issueCash(partyA, 2000);
+        issueCash(partyA, 2000);
+        issueCoupon(partyA, "item123", 50);
+        issueCoupon(partyA, "item123", 20);
+        network.runNetwork();
+
+        // Both sales run at the same time, each buyer flow locking its own coupon
+        CordaFuture<SignedTransaction> first = nodeShop.startFlow(new BuyerSellerFlow.Seller(partyA, "item123", price));
+        CordaFuture<SignedTransaction> second = nodeShop.startFlow(new BuyerSellerFlow.Seller(partyA, "item123", price));
+        network.runNetwork();
+        first.get();
+        second.get();
+
+        assertEquals(2, queryPurchaseOrders(nodeA).size());
+        assertEquals(0, nodeA.getServices().getVaultService().queryBy(CouponToken.class).getStates().size());
+        assertEquals((4000 - 350 - 560), queryCashBalance(nodeA));
+    }
+
+    @Test
+    public void findOrdersByItemAndTime() throws Exception {
+        issueCash(partyA, 2000);
+        issueCoupon(partyA, "item123", 50);
+        network.runNetwork();
+
+        CordaFuture<SignedTransaction> first = nodeShop.startFlow(new BuyerSellerFlow.Seller(partyA, "item123", 700));
+        network.runNetwork();
+        first.get();
+        CordaFuture<SignedTransaction> second = nodeShop.startFlow(new BuyerSellerFlow.Seller(partyA, "item456", 300));
+        network.runNetwork();
+        second.get();
+
+        Instant now = nodeA.getServices().getClock().instant();
+        CordaFuture<StateQueryFlow.StatePage> item123 = nodeA.startFlow(new PurchaseOrderQueryFlow.FindOrders(
+                new PurchaseOrderQueryFlow.OrderFilters(partyShop, partyA, "item123", now.minusSeconds(3600), null), 1, 10));
+        CordaFuture<StateQueryFlow.StatePage> future = nodeA.startFlow(new PurchaseOrderQueryFlow.FindOrders(
+                new PurchaseOrderQueryFlow.OrderFilters(null, null, null, now.plusSeconds(3600), null), 1, 10));
+        CordaFuture<Long> count = nodeA.startFlow(new PurchaseOrderQueryFlow.CountOrders(
+                new PurchaseOrderQueryFlow.OrderFilters(partyShop, null, null, null, null)));
+        network.runNetwork();
+
+        assertEquals(1, item123.get().getTotalStatesAvailable());
+        StateQueryFlow.PurchaseOrderSummary order = (StateQueryFlow.PurchaseOrderSummary) item123.get().getStates().get(0);
+        assertEquals(Long.valueOf(700), order.getPrice());
+        assertEquals(Integer.valueOf(50), order.getDiscount());
+        assertEquals(0, future.get().getTotalStatesAvailable());
+        assertEquals(Long.valueOf(2), count.get());
+    }
+
+    @Test
+    public void backfillOrderRows() throws Exception {
+        issueCash(partyA, 2000);
+        network.runNetwork();
+        CordaFuture<SignedTransaction> sale = nodeShop.startFlow(new BuyerSellerFlow.Seller(partyA, "item123", 700));
+        network.runNetwork();
+        sale.get();
+
+        // As an order recorded before the schema was added would be
+        nodeA.transaction(() -> {
+            nodeA.getServices().withEntityManager(entityManager -> {
+                entityManager.createQuery("DELETE FROM " + PurchaseOrderSchemaV1.PersistentPurchaseOrder.class.getSimpleName()).executeUpdate();
+            });
+            return null;
+        });
+        assertEquals(Long.valueOf(0), countOrders(nodeA));
+
+        CordaFuture<Long> backfilled = nodeA.startFlow(new PurchaseOrderQueryFlow.BackfillOrders());
+        network.runNetwork();
+        assertEquals(Long.valueOf(1), backfilled.get());
+        assertEquals(Long.valueOf(1), countOrders(nodeA));
+
+        CordaFuture<Long> again = nodeA.startFlow(new PurchaseOrderQueryFlow.BackfillOrders());
+        network.runNetwork();
+        assertEquals(Long.valueOf(0), again.get());
+    }
+
+    private Long countOrders(StartedMockNode node) throws Exception {
+        CordaFuture<Long> count = node.startFlow(new PurchaseOrderQueryFlow.CountOrders(
+                new PurchaseOrderQueryFlow.OrderFilters(null, null, null, null, null)));
+        network.runNetwork();
+        return count.get();
+    }
+
+    @Test
+    public void reportBalancesAndSales() throws Exception {
+        issueCash(partyA, 2000);
+        issueCash(partyA, 1000);
+        issueCoupon(partyA, "item123", 50);
+        network.runNetwork();
+
+        for (String itemId : ImmutableList.of("item123", "item123", "item456")) {
+            CordaFuture<SignedTransaction> sale = nodeShop.startFlow(new BuyerSellerFlow.Seller(partyA, itemId, 500));
+            network.runNetwork();
+            sale.get();
+        }
+
+        CordaFuture<List<ReportFlow.BalanceRow>> balances = nodeA.startFlow(new ReportFlow.Balances(partyA));
+        CordaFuture<List<ReportFlow.SalesRow>> sales = nodeA.startFlow(new ReportFlow.Sales());
+        network.runNetwork();
+
+        assertEquals(1, balances.get().size());
+        assertEquals("JPY", balances.get().get(0).getTokenIdentifier());
+        assertEquals(queryCashBalance(nodeA), balances.get().get(0).getQuantity());
+        assertEquals(2, sales.get().size());
+        assertEquals("item123", sales.get().get(0).getItemId());
+        assertEquals(2, sales.get().get(0).getOrders());
+        assertEquals(1000, sales.get().get(0).getGrossSales());
+        assertEquals(1, sales.get().get(1).getOrders());
+    }
+
+    @Test
+    public void rebuildAndQuerySalesRollups() throws Exception {
+        issueCash(partyA, 2000);
+        issueCoupon(partyA, "item123", 50);
+        network.runNetwork();
+
+        for (String itemId : ImmutableList.of("item123", "item123", "item456")) {
+            CordaFuture<SignedTransaction> sale = nodeShop.startFlow(new BuyerSellerFlow.Seller(partyA, itemId, 400));
+            network.runNetwork();
+            sale.get();
+        }
+
+        // The rebuild runs on the rollup service's writer thread
+        CordaFuture<Long> rebuild = nodeShop.startFlow(new SalesRollupFlow.RebuildRollups());
+        runNetworkUntil(rebuild::isDone);
+        assertEquals(Long.valueOf(3), rebuild.get());
+
+        CordaFuture<List<SalesRollupFlow.Rollup>> hourly = nodeShop.startFlow(new SalesRollupFlow.QueryRollups(
+                SalesRollupFlow.BucketSize.HOUR, partyShop, "item123", null, null));
+        network.runNetwork();
+
+        long orders = hourly.get().stream().mapToLong(SalesRollupFlow.Rollup::getOrders).sum();
+        long grossSales = hourly.get().stream().mapToLong(SalesRollupFlow.Rollup::getGrossSales).sum();
+        long netSales = hourly.get().stream().mapToLong(SalesRollupFlow.Rollup::getNetSales).sum();
+        assertEquals(2, orders);
+        assertEquals(800, grossSales);
+        assertEquals(200 + 400, netSales);
+    }
+
+    @Test
+    public void salesRollupsFollowPurchases() throws Exception {
+        issueCash(partyA, 2000);
+        network.runNetwork();
+        SalesRollupService rollups = nodeShop.getServices().cordaService(SalesRollupService.class);
+
+        // The first sale inserts its rows, the second in the same buckets updates them
+        long written = rollups.getRowsWritten();
+        for (int price : new int[]{400, 300}) {
+            CordaFuture<SignedTransaction> sale = nodeShop.startFlow(new BuyerSellerFlow.Seller(partyA, "item123", price));
+            network.runNetwork();
+            sale.get();
+
+            long before = written;
+            runNetworkUntil(() -> rollups.getRowsWritten() > before && rollups.getPending() == 0);
+            written = rollups.getRowsWritten();
+        }
+        assertEquals(0, rollups.getFailedFlushes());
+
+        CordaFuture<List<SalesRollupFlow.Rollup>> hourly = nodeShop.startFlow(new SalesRollupFlow.QueryRollups(
+                SalesRollupFlow.BucketSize.HOUR, partyShop, "item123", null, null));
+        network.runNetwork();
+
+        assertEquals(2, hourly.get().stream().mapToLong(SalesRollupFlow.Rollup::getOrders).sum());
+        assertEquals(700, hourly.get().stream().mapToLong(SalesRollupFlow.Rollup::getGrossSales).sum());
+        assertEquals(700, hourly.get().stream().mapToLong(SalesRollupFlow.Rollup::getNetSales).sum());
+    }
+
+    @Test
+    public void consolidateCash() throws Exception {
+        for (int i = 1; i <= 5; i++) {
+            issueCash(partyA, 100 * i);
+        }
+        network.runNetwork();
+
+        // Below the threshold nothing is merged
+        CordaFuture<CashConsolidationFlow.ConsolidationResult> skipped = nodeA.startFlow(new CashConsolidationFlow.ConsolidateCash("JPY", 6, 10));
+        network.runNetwork();
+        assertEquals(0, skipped.get().getMerged());
+        assertEquals(5, queryCash(nodeA).size());
+
+        // Three inputs a transaction, smallest first, so 100, 200 and 300 make 600, then 400, 500 and 600 make 1500
+        CordaFuture<CashConsolidationFlow.ConsolidationResult> consolidated = nodeA.startFlow(new CashConsolidationFlow.ConsolidateCash("JPY", 3, 3));
+        network.runNetwork();
+        assertEquals(6, consolidated.get().getMerged());
+        assertEquals(2, consolidated.get().getCreated());
+        assertEquals(0, consolidated.get().getFailed());
+        assertEquals(1, queryCash(nodeA).size());
+        assertEquals(1500, queryCashBalance(nodeA));
+    }
+
+    @Test
+    public void shapeWalletAndPayFromBestFit() throws Exception {
+        issueCash(partyA, 10000);
+        network.runNetwork();
+
+        CordaFuture<WalletShapingFlow.ShapingResult> shaped = nodeA.startFlow(new WalletShapingFlow.ShapeWallet("JPY", 1000L, 5));
+        network.runNetwork();
+        assertEquals(0, shaped.get().getHeld());
+        assertEquals(5, shaped.get().getCreated());
+        assertEquals(6, queryCash(nodeA).size());
+        assertEquals(10000, queryCashBalance(nodeA));
+
+        // Already shaped, so nothing more is split
+        CordaFuture<WalletShapingFlow.ShapingResult> again = nodeA.startFlow(new WalletShapingFlow.ShapeWallet("JPY", 1000L, 5));
+        network.runNetwork();
+        assertEquals(5, again.get().getHeld());
+        assertEquals(0, again.get().getCreated());
+
+        // Concurrent purchases of 700 each spend their own 1000 token rather than the 5000 of change
+        CordaFuture<SignedTransaction> first = nodeShop.startFlow(new BuyerSellerFlow.Seller(partyA, "item123", 700));
+        CordaFuture<SignedTransaction> second = nodeShop.startFlow(new BuyerSellerFlow.Seller(partyA, "item456", 700));
+        network.runNetwork();
 
+        Set<StateRef> firstInputs = new LinkedHashSet<>(first.get().getTx().getInputs());
+        List<StateRef> secondInputs = second.get().getTx().getInputs();
+        assertEquals(1, firstInputs.size());
+        assertEquals(1, secondInputs.size());
+        assertEquals(false, firstInputs.contains(secondInputs.get(0)));
+
+        List<Long> quantities = queryCash(nodeA).stream()
+                .map(token -> token.getState().getData().getAmount().getQuantity())
+                .sorted()
+                .collect(Collectors.toList());
+        assertEquals(ImmutableList.of(300L, 300L, 1000L, 1000L, 1000L, 5000L), quantities);
+    }
+
+    @Test
+    public void sweepExpiredCoupons() throws Exception {
+        Instant expired = nodeShop.getServices().getClock().instant().minus(Duration.ofDays(1));
+        nodeShop.startFlow(new IssueExpiredCoupon(partyA, "item123", 50, expired));
+        nodeShop.startFlow(new IssueExpiredCoupon(partyA, "item123", 20, expired));
+        issueCoupon(partyA, "item123", 10);
+        network.runNetwork();
+
+        // Expired coupons are no longer offered
+        assertEquals(10, CouponQuery.findCoupon(nodeA.getServices(), partyShop, partyA, "item123")
+                .getState().getData().getCouponTokenType().getDiscount());
+
+        CordaFuture<CouponExpiryFlow.SweepResult> sweep = nodeA.startFlow(new CouponExpiryFlow.SweepExpiredCoupons(1, 10));
+        network.runNetwork();
+
+        assertEquals(2, sweep.get().getExpired());
+        assertEquals(2, sweep.get().getTransactions());
+        assertEquals(0, sweep.get().getFailed());
+        assertEquals(1, nodeA.getServices().getVaultService().queryBy(CouponToken.class).getStates().size());
+    }
+
+    @Test
+    public void flowPhaseMetricsArePublished() throws Exception {
+        issueCash(partyA, 2000);
+        network.runNetwork();
+
+        CordaFuture<SignedTransaction> future = nodeShop.startFlow(new BuyerSellerFlow.Seller(partyA, "item123", 700));
+        network.runNetwork();
+        future.get();
+
+        FlowMetricsService buyerMetrics = nodeA.getServices().cordaService(FlowMetricsService.class);
+        assertEquals(1, buyerMetrics.metric("Buyer", "total").getCount());
+        assertEquals(1, buyerMetrics.metric("Buyer", "finality").getCount());
+        assertEquals(1, buyerMetrics.metric("Buyer", "completed").getCount());
+
+        FlowMetricsService sellerMetrics = nodeShop.getServices().cordaService(FlowMetricsService.class);
+        assertEquals(1, sellerMetrics.metric("Seller", "check").getCount());
+
+        ObjectName name = new ObjectName("com.template:type=FlowMetrics" +
+                ",node=" + ObjectName.quote(partyA.getName().toString()) +
+                ",flow=" + ObjectName.quote("Buyer") +
+                ",phase=" + ObjectName.quote("total"));
+        assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Count"));
+    }
+
+    /**
+     * Redeems every coupon we hold in one transaction whoever issued it, which each issuer must refuse to sign.
+     * Runs as {@link CouponFlow.RedeemCoupon} so the issuers answer with their redeem handler.
+     */
+    public static class RedeemAllCoupons extends CouponFlow.RedeemCoupon {
+        public RedeemAllCoupons(Party issuer) {
+            super(issuer);
+        }
+
+        @Override
+        @Suspendable
+        public SignedTransaction call() throws FlowException {
+            List<StateAndRef<CouponToken>> coupons = getServiceHub().getVaultService().queryBy(CouponToken.class).getStates();
+            TransactionBuilder transactionBuilder = new TransactionBuilder(coupons.get(0).getState().getNotary());
+            Set<Party> issuers = new LinkedHashSet<>();
+            for (StateAndRef<CouponToken> coupon : coupons) {
+                addTokensToRedeem(transactionBuilder, ImmutableList.of(coupon), null);
+                issuers.add(coupon.getState().getData().getIssuer());
+            }
+
+            List<FlowSession> sessions = new ArrayList<>();
+            for (Party issuer : issuers) {
+                sessions.add(initiateFlow(issuer));
+            }
+            return subFlow(new CollectSignaturesFlow(getServiceHub().signInitialTransaction(transactionBuilder), sessions));
+        }
+    }
+
+    /**
+     * Issues a campaign chunk one row per transaction, throwing instead of issuing the second batch.
+     */
+    public static class FailAfterFirstBatch extends CampaignFlow.IssueCampaignChunk {
+        private int batches;
+
+        public FailAfterFirstBatch(String chunkId) {
+            super(chunkId, 1);
+        }
+
+        @Override
+        @Suspendable
+        protected CouponFlow.IssueCouponsResult issueBatch(List<CouponFlow.CouponRequest> requests, List<String> rowIds) throws FlowException {
+            if (++batches > 1) {
+                throw new FlowException("Failed after the first batch");
+            }
+            return super.issueBatch(requests, rowIds);
+        }
+    }
+
+    /**
+     * Issues a coupon which has already expired, which {@link CouponFlow.IssueCoupon} refuses to do.
+     */
+    public static class IssueExpiredCoupon extends CouponFlow.IssueCoupon {
+        private final Party recipient;
+        private final String itemId;
+        private final int discount;
+        private final Instant expiredAt;
+
+        public IssueExpiredCoupon(Party recipient, String itemId, int discount, Instant expiredAt) {
+            super(recipient, itemId, discount, expiredAt);
+            this.recipient = recipient;
+            this.itemId = itemId;
+            this.discount = discount;
+            this.expiredAt = expiredAt;
+        }
+
+        @Override
+        @Suspendable
+        public SignedTransaction call() throws FlowException {
+            CouponTokenType tokenType = new CouponTokenType(itemId, discount, expiredAt);
+            CouponToken coupon = new CouponToken(
+                    new IssuedTokenType(getOurIdentity(), tokenType),
+                    recipient,
+                    new UniqueIdentifier(),
+                    TransactionUtilitiesKt.getAttachmentIdForGenericParam(tokenType));
+
+            TransactionBuilder transactionBuilder = new TransactionBuilder(getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0));
+            addIssueTokens(transactionBuilder, ImmutableList.of(coupon));
+            return subFlow(new FinalityFlow(getServiceHub().signInitialTransaction(transactionBuilder), ImmutableList.of(initiateFlow(recipient))));
+        }
+    }
 }
@@ -0,0 +1,127 @@
+package com.template;
+
+import com.google.common.collect.ImmutableList;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.TokenType;
+import com.r3.corda.lib.tokens.money.FiatCurrency;
+import com.r3.corda.lib.tokens.workflows.types.PartyAndAmount;
+import com.template.flows.CashBatchFlow;
+import com.template.flows.IssueCash;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkNotarySpec;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestCordapp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static net.corda.testing.common.internal.ParametersUtilitiesKt.testNetworkParameters;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Flows on a network with two notaries, where the bank issues round robin across them.
+ */
+public class MultiNotaryFlowTests {
+    private MockNetwork network;
+
+    private StartedMockNode nodeA;
+    private StartedMockNode nodeShop;
+    private StartedMockNode nodeBank;
+
+    private Party partyA;
+    private Party partyShop;
+
+    private final TokenType jpy = FiatCurrency.Companion.getInstance("JPY");
+    private final TokenType usd = FiatCurrency.Companion.getInstance("USD");
+
+    @Before
+    public void setup() {
+        network = new MockNetwork(new MockNetworkParameters(ImmutableList.of(
+                TestCordapp.findCordapp("com.template.flows"),
+                TestCordapp.findCordapp("com.template.contracts"),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.workflows"),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.contracts")
+        )).withNetworkParameters(testNetworkParameters(Collections.emptyList(), 4))
+                .withNotarySpecs(ImmutableList.of(
+                        new MockNetworkNotarySpec(new CordaX500Name("NotaryA", "Tokyo", "JP")),
+                        new MockNetworkNotarySpec(new CordaX500Name("NotaryB", "Tokyo", "JP")))));
+
+        nodeA = network.createPartyNode(new CordaX500Name("PartyA", "Tokyo", "JP"));
+        nodeShop = network.createPartyNode(new CordaX500Name("Shop", "Tokyo", "JP"));
+        nodeBank = network.createPartyNode(new CordaX500Name("Bank", "Tokyo", "JP"));
+
+        partyA = nodeA.getInfo().getLegalIdentities().get(0);
+        partyShop = nodeShop.getInfo().getLegalIdentities().get(0);
+
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    private List<StateAndRef<FungibleToken>> queryCash(StartedMockNode node) {
+        return node.getServices()
+                .getVaultService()
+                .queryBy(FungibleToken.class)
+                .getStates();
+    }
+
+    private long balance(StartedMockNode node, TokenType tokenType) {
+        return queryCash(node).stream()
+                .map(token -> token.getState().getData().getAmount())
+                .filter(amount -> amount.getToken().getTokenType().equals(tokenType))
+                .mapToLong(Amount::getQuantity)
+                .sum();
+    }
+
+    @Test
+    public void moveBatchGathersTokensOntoOneNotary() throws Exception {
+        // Round robin puts each issuance on the other notary
+        CordaFuture<SignedTransaction> jpyOnFirst = nodeBank.startFlow(new IssueCash(1000L, partyA));
+        network.runNetwork();
+        CordaFuture<SignedTransaction> jpyOnSecond = nodeBank.startFlow(new IssueCash(600L, partyA));
+        network.runNetwork();
+        CordaFuture<List<SecureHash>> usdOnFirst = nodeBank.startFlow(new CashBatchFlow.IssueBatch(ImmutableList.of(
+                new PartyAndAmount<>(partyA, new Amount<>(300, usd)))));
+        network.runNetwork();
+        CordaFuture<List<SecureHash>> usdOnSecond = nodeBank.startFlow(new CashBatchFlow.IssueBatch(ImmutableList.of(
+                new PartyAndAmount<>(partyA, new Amount<>(200, usd)))));
+        network.runNetwork();
+        usdOnFirst.get();
+        usdOnSecond.get();
+
+        Party mostJpy = jpyOnFirst.get().getNotary();
+        assertNotEquals(mostJpy, jpyOnSecond.get().getNotary());
+
+        // Neither notary holds enough of either currency, so the shortfalls are moved onto the notary holding most JPY
+        CordaFuture<List<SecureHash>> move = nodeA.startFlow(new CashBatchFlow.MoveBatch(ImmutableList.of(
+                new PartyAndAmount<>(partyShop, new Amount<>(1500, jpy)),
+                new PartyAndAmount<>(partyShop, new Amount<>(400, usd)))));
+        network.runNetwork();
+        assertEquals(1, move.get().size());
+
+        assertEquals(100, balance(nodeA, jpy));
+        assertEquals(100, balance(nodeA, usd));
+        assertEquals(1500, balance(nodeShop, jpy));
+        assertEquals(400, balance(nodeShop, usd));
+        for (StartedMockNode node : ImmutableList.of(nodeA, nodeShop)) {
+            for (StateAndRef<FungibleToken> token : queryCash(node)) {
+                assertEquals(mostJpy, token.getState().getNotary());
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.template;
+
+import com.google.common.collect.ImmutableList;
+import com.template.services.NotarySelectionPolicy;
+import com.template.services.NotarySelectionService;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.testing.core.TestIdentity;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class NotarySelectionPolicyTests {
+    private final Party notaryA = new TestIdentity(new CordaX500Name("NotaryA", "Tokyo", "JP")).getParty();
+    private final Party notaryB = new TestIdentity(new CordaX500Name("NotaryB", "Tokyo", "JP")).getParty();
+    private final List<Party> notaries = ImmutableList.of(notaryA, notaryB);
+
+    @Test
+    public void roundRobinTakesTurns() {
+        NotarySelectionPolicy roundRobin = NotarySelectionService.createPolicy("roundRobin");
+        assertEquals(notaryA, roundRobin.select(notaries, null));
+        assertEquals(notaryB, roundRobin.select(notaries, null));
+        assertEquals(notaryA, roundRobin.select(notaries, null));
+    }
+
+    @Test
+    public void hashKeepsAKeyOnOneNotary() {
+        NotarySelectionPolicy hash = NotarySelectionService.createPolicy("hash");
+        Party chosen = hash.select(notaries, "Shop|item123");
+        assertEquals(chosen, hash.select(notaries, "Shop|item123"));
+    }
+
+    @Test
+    public void leastLatencyPrefersTheFastestNotary() {
+        NotarySelectionPolicy leastLatency = NotarySelectionService.createPolicy("leastLatency");
+        leastLatency.recordLatency(notaryA, 500);
+        assertEquals(notaryB, leastLatency.select(notaries, null));
+        leastLatency.recordLatency(notaryB, 1000);
+        assertEquals(notaryA, leastLatency.select(notaries, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownPolicyIsRejected() {
+        NotarySelectionService.createPolicy("random");
+    }
+}
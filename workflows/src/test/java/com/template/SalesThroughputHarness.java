@@ -0,0 +1,227 @@
+package com.template;
+
+import com.google.common.collect.ImmutableList;
+import com.r3.corda.lib.tokens.contracts.types.TokenType;
+import com.r3.corda.lib.tokens.money.FiatCurrency;
+import com.r3.corda.lib.tokens.workflows.types.PartyAndAmount;
+import com.template.flows.BuyerSellerFlow;
+import com.template.flows.CashBatchFlow;
+import com.template.flows.CouponFlow;
+import com.template.services.FlowMetric;
+import com.template.services.FlowMetricsService;
+import net.corda.core.contracts.Amount;
+import net.corda.core.flows.NotaryException;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestCordapp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.corda.testing.common.internal.ParametersUtilitiesKt.testNetworkParameters;
+
+/**
+ * Measures end-to-end sale throughput in process, on a {@link MockNetwork} set up like {@link FlowTests}.
+ *
+ * N buyers are funded with one cash state and one coupon per sale, then a shop runs M
+ * {@link BuyerSellerFlow.Seller} sales against them, at most {@code concurrency} at a time. The report
+ * gives sales per second, failures, notary conflicts, end-to-end latency percentiles and the phase
+ * percentiles recorded by {@link FlowMetricsService} on the shop and all buyers.
+ *
+ * Run with {@code ./gradlew workflows:salesThroughput -Pbuyers=4 -Psales=200 -Pconcurrency=16}.
+ */
+public class SalesThroughputHarness {
+    static final String ITEM_ID = "item-101";
+    static final int PRICE = 1000;
+    static final int DISCOUNT = 10;
+
+    private final int buyerCount;
+    private final int sales;
+    private final int concurrency;
+
+    public SalesThroughputHarness(int buyerCount, int sales, int concurrency) {
+        if (buyerCount < 1 || sales < 1 || concurrency < 1) {
+            throw new IllegalArgumentException("Buyers, sales and concurrency must be positive");
+        }
+        this.buyerCount = buyerCount;
+        this.sales = sales;
+        this.concurrency = concurrency;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int buyerCount = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int sales = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+        System.out.println(new SalesThroughputHarness(buyerCount, sales, concurrency).run());
+    }
+
+    public Report run() throws Exception {
+        // Nodes run on their own threads so sales really run concurrently
+        MockNetwork network = new MockNetwork(new MockNetworkParameters(ImmutableList.of(
+                TestCordapp.findCordapp("com.template.flows"),
+                TestCordapp.findCordapp("com.template.contracts"),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.workflows"),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.contracts")
+        )).withNetworkParameters(testNetworkParameters(Collections.emptyList(), 4))
+                .withThreadPerNode(true)
+                .withNetworkSendManuallyPumped(false));
+
+        try {
+            StartedMockNode bank = network.createPartyNode(new CordaX500Name("Bank", "Tokyo", "JP"));
+            StartedMockNode shop = network.createPartyNode(new CordaX500Name("Shop", "Tokyo", "JP"));
+            List<StartedMockNode> buyers = new ArrayList<>();
+            for (int i = 0; i < buyerCount; i++) {
+                buyers.add(network.createPartyNode(new CordaX500Name("Buyer" + i, "Tokyo", "JP")));
+            }
+
+            fund(bank, shop, buyers);
+            return sell(shop, buyers);
+        } finally {
+            network.stopNodes();
+        }
+    }
+
+    /**
+     * Gives each buyer one cash state and one coupon per sale it will take part in, so concurrent
+     * sales never compete for the same state.
+     */
+    private void fund(StartedMockNode bank, StartedMockNode shop, List<StartedMockNode> buyers) throws Exception {
+        TokenType jpy = FiatCurrency.Companion.getInstance("JPY");
+        List<PartyAndAmount<TokenType>> payouts = new ArrayList<>();
+        List<CouponFlow.CouponRequest> coupons = new ArrayList<>();
+
+        for (int sale = 0; sale < sales; sale++) {
+            Party buyer = identity(buyers.get(sale % buyers.size()));
+            payouts.add(new PartyAndAmount<>(buyer, new Amount<>(PRICE, jpy)));
+            coupons.add(new CouponFlow.CouponRequest(buyer, ITEM_ID, DISCOUNT));
+        }
+
+        bank.startFlow(new CashBatchFlow.IssueBatch(payouts)).get();
+        CouponFlow.IssueCouponsResult issued = shop.startFlow(new CouponFlow.IssueCoupons(coupons)).get();
+        if (issued.getIssuedCount() != sales) {
+            throw new IllegalStateException("Only " + issued.getIssuedCount() + " of " + sales + " coupons were issued");
+        }
+    }
+
+    private Report sell(StartedMockNode shop, List<StartedMockNode> buyers) throws Exception {
+        Semaphore inFlight = new Semaphore(concurrency);
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger notaryConflicts = new AtomicInteger();
+        FlowMetric latency = new FlowMetric();
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+
+        long started = System.nanoTime();
+        for (int sale = 0; sale < sales; sale++) {
+            Party buyer = identity(buyers.get(sale % buyers.size()));
+            inFlight.acquire();
+
+            long saleStarted = System.nanoTime();
+            futures.add(shop.startFlow(new BuyerSellerFlow.Seller(buyer, ITEM_ID, PRICE)).toCompletableFuture()
+                    .whenComplete((tx, error) -> {
+                        latency.update(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - saleStarted));
+                        if (error == null) {
+                            completed.incrementAndGet();
+                        } else {
+                            failed.incrementAndGet();
+                            if (isNotaryConflict(error)) {
+                                notaryConflicts.incrementAndGet();
+                            }
+                        }
+                        inFlight.release();
+                    }));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).exceptionally(error -> null).get();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        // Combine the phases recorded on the shop and on every buyer
+        Map<String, FlowMetric> phases = new TreeMap<>();
+        List<StartedMockNode> nodes = new ArrayList<>(buyers);
+        nodes.add(shop);
+        for (StartedMockNode node : nodes) {
+            node.getServices().cordaService(FlowMetricsService.class).getMetrics().forEach((name, metric) -> {
+                if (name.startsWith("Seller.") || name.startsWith("Buyer.")) {
+                    phases.computeIfAbsent(name, key -> new FlowMetric()).merge(metric);
+                }
+            });
+        }
+
+        return new Report(sales, completed.get(), failed.get(), notaryConflicts.get(), elapsedMillis, latency, phases);
+    }
+
+    private static boolean isNotaryConflict(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof NotaryException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Party identity(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    public static class Report {
+        private final int sales;
+        private final int completed;
+        private final int failed;
+        private final int notaryConflicts;
+        private final long elapsedMillis;
+        private final FlowMetric latency;
+        private final Map<String, FlowMetric> phases;
+
+        Report(int sales, int completed, int failed, int notaryConflicts, long elapsedMillis, FlowMetric latency, Map<String, FlowMetric> phases) {
+            this.sales = sales;
+            this.completed = completed;
+            this.failed = failed;
+            this.notaryConflicts = notaryConflicts;
+            this.elapsedMillis = elapsedMillis;
+            this.latency = latency;
+            this.phases = phases;
+        }
+
+        public int getCompleted() { return completed; }
+
+        public int getFailed() { return failed; }
+
+        public int getNotaryConflicts() { return notaryConflicts; }
+
+        public long getElapsedMillis() { return elapsedMillis; }
+
+        public double getSalesPerSecond() {
+            return elapsedMillis > 0 ? completed * 1000.0 / elapsedMillis : 0;
+        }
+
+        public FlowMetric getLatency() { return latency; }
+
+        public Map<String, FlowMetric> getPhases() { return phases; }
+
+        @Override
+        public String toString() {
+            StringBuilder str = new StringBuilder();
+            str.append(String.format("%d of %d sales in %d ms (%.1f sales/s), %d failed, %d notary conflicts%n",
+                    completed, sales, elapsedMillis, getSalesPerSecond(), failed, notaryConflicts));
+            str.append(String.format("%-32s %8s %10s %10s %10s %10s%n", "phase (us)", "count", "p50", "p95", "p99", "max"));
+            row(str, "sale", latency);
+            phases.forEach((name, metric) -> row(str, name, metric));
+            return str.toString();
+        }
+
+        private static void row(StringBuilder str, String name, FlowMetric metric) {
+            str.append(String.format("%-32s %8d %10d %10d %10d %10d%n", name, metric.getCount(),
+                    metric.get50thPercentile(), metric.get95thPercentile(), metric.get99thPercentile(), metric.getMax()));
+        }
+    }
+}